@@ -1,6 +1,7 @@
 package com.google.ginkage.qdmat;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.hprof.extension.ClassNameReferenceFilter;
 import org.eclipse.mat.parser.internal.SnapshotFactory;
 import org.eclipse.mat.parser.model.PrimitiveArrayImpl;
 import org.eclipse.mat.snapshot.ISnapshot;
@@ -17,11 +18,19 @@ import java.util.*;
 
 public class Analyzer {
 
-    private static ObjectNode loadFile(File dumpFile) {
+    private static final String APP_HEAP = "app";
+    private static final String EXCLUDED_CLASSES = "java.lang.ref.WeakReference,"
+            + "java.lang.ref.FinalizerReference,java.lang.reflect.ArtMethod,*ClassLoader*";
+
+    private static ObjectNode loadFile(File dumpFile, boolean appHeapOnly) {
         ObjectNode root = new ObjectNode();
 
         SnapshotFactory factory = new SnapshotFactory();
-        Map<String, String> argsMap = Collections.emptyMap();
+        Map<String, String> argsMap = new HashMap<>();
+        // only the references are navigated, the dominator tree is not needed
+        argsMap.put(SnapshotFactory.LAZY_DOMINATOR_TREE, "true");
+        // references to these are not followed, they are dropped while parsing
+        argsMap.put("exclude_classes", EXCLUDED_CLASSES);
         VoidProgressListener listener = new VoidProgressListener();
 
         try {
@@ -29,6 +38,8 @@ public class Analyzer {
             Collection<IClass> refClasses =
                     snapshot.getClassesByName("com.google.android.clockwork.home.HomeApplication", false);
 
+            int[] excludedClassIds = getExcludedClassIds(snapshot);
+
             Map<IObject, ObjectNode> visited = new HashMap<>();
             Queue<IObject> queue = new LinkedList<>();
 
@@ -55,12 +66,13 @@ public class Analyzer {
                     }
                     IObject field = (IObject) ofield;
 
-                    IClass clazz = field.getClazz();
-                    String type = clazz.getName();
-                    if (type.equals("java.lang.ref.WeakReference") ||
-                            type.equals("java.lang.ref.FinalizerReference") ||
-                            type.equals("java.lang.reflect.ArtMethod") ||
-                            type.contains("ClassLoader")) {
+                    // The field values are read from the dump, so they still point to the excluded objects
+                    if (Arrays.binarySearch(excludedClassIds, field.getClazz().getObjectId()) >= 0) {
+                        continue;
+                    }
+
+                    // Objects in the zygote and image heaps are shared with other processes
+                    if (appHeapOnly && !isInHeap(snapshot, field, APP_HEAP)) {
                         continue;
                     }
 
@@ -79,6 +91,29 @@ public class Analyzer {
         return root;
     }
 
+    private static int[] getExcludedClassIds(ISnapshot snapshot) throws SnapshotException {
+        ClassNameReferenceFilter filter = new ClassNameReferenceFilter(EXCLUDED_CLASSES, null);
+        List<Integer> ids = new ArrayList<>();
+        for (IClass clazz : snapshot.getClasses()) {
+            if (filter.isExcludedClass(clazz.getName())) {
+                ids.add(clazz.getObjectId());
+            }
+        }
+
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static boolean isInHeap(ISnapshot snapshot, IObject object, String heapName)
+            throws SnapshotException {
+        String name = snapshot.getHeapName(object.getObjectId());
+        return name == null || name.equals(heapName);
+    }
+
     private static Set<ObjectNode> flattenGraph(ObjectNode root) {
         Set<ObjectNode> graph = new HashSet<>();
         Queue<ObjectNode> queue = new LinkedList<>();
@@ -487,18 +522,21 @@ public class Analyzer {
     }
 
     public static void main(String[] args) {
-        if (args.length < 1) {
-            System.out.println("Usage: qdmat <dump>.hprof");
+        boolean appHeapOnly = args.length > 0 && args[0].equals("--app-heap");
+        int fileArg = appHeapOnly ? 1 : 0;
+        if (args.length != fileArg + 1) {
+            System.out.println("Usage: qdmat [--app-heap] <dump>.hprof");
             return;
         }
 
-        File dumpFile = new File(args[0]);
+        String fileName = args[fileArg];
+        File dumpFile = new File(fileName);
         if (!dumpFile.exists()) {
-            System.out.println("File " + args[0] + " not found");
+            System.out.println("File " + fileName + " not found");
             return;
         }
 
-        ObjectNode root = loadFile(dumpFile);
+        ObjectNode root = loadFile(dumpFile, appHeapOnly);
         Set<ObjectNode> graph = flattenGraph(root);
         Map<ObjectNode, BufferedImage> bitmaps = new HashMap<>();
         SortedSet<ObjectNode> nodes = foldGraph(graph, bitmaps);
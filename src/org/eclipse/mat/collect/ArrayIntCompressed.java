@@ -12,6 +12,8 @@
  */
 package org.eclipse.mat.collect;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class compresses fixed-size int[] in a very fast and memory efficient
  * manner if many leading and/or trailing bits of the stored ints are not used
@@ -20,10 +22,20 @@ package org.eclipse.mat.collect;
  * reading of the underlying byte[]. Furthermore alomst no additinal data is
  * used beside the underlying byte[]. Thereby the memory consumption of this
  * data structure is kept at a minmum to build efficient int[] caches.
+ * <p>
+ * Alternatively mostly small ints can be stored with as few bytes as each of
+ * them needs (see {@link #variableLength(int[], int, int)}). Then a value is
+ * found by decoding from the start of its block of {@value #BLOCK_SIZE} ints.
  */
 public class ArrayIntCompressed {
   private static final int BIT_LENGTH = 0x20;
 
+  // the regular header starts with the number of varying bits (0..32)
+  private static final byte VARIABLE_LENGTH = (byte) 0xff;
+  private static final int VARIABLE_LENGTH_HEADER = 5;
+  private static final int BLOCK_SHIFT = 4;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
   private byte[] data;
   private byte varyingBits;
   private byte trailingClearBits;
@@ -41,6 +53,50 @@ public class ArrayIntCompressed {
     trailingClearBits = data[1];
   }
 
+  /**
+   * Create <code>IntArrayCompressed</code> storing each int (from offset to
+   * offset+length) with as few bytes as its value needs, i.e. 7 bits per
+   * byte. The ints are treated as unsigned. The result is read-only.
+   *
+   * @param ints ints representing the data to be stored in compressed form
+   * @param offset offset from which on to compress the ints
+   * @param length number of ints to compress from the given array
+   * @return the compressed ints
+   */
+  public static ArrayIntCompressed variableLength(int[] ints, int offset, int length) {
+    int blocks = (length + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+
+    // worst case: 5 bytes per value
+    byte[] bytes = new byte[VARIABLE_LENGTH_HEADER + 4 * blocks + 5 * length];
+    bytes[0] = VARIABLE_LENGTH;
+    putInt(bytes, 1, length);
+
+    int pos = VARIABLE_LENGTH_HEADER + 4 * blocks;
+    for (int i = 0; i < length; i++) {
+      if ((i & (BLOCK_SIZE - 1)) == 0) {
+        putInt(bytes, VARIABLE_LENGTH_HEADER + 4 * (i >>> BLOCK_SHIFT), pos);
+      }
+
+      int value = ints[offset + i];
+      while ((value & ~0x7f) != 0) {
+        bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[pos++] = (byte) value;
+    }
+
+    byte[] data = new byte[pos];
+    System.arraycopy(bytes, 0, data, 0, pos);
+    return new ArrayIntCompressed(data);
+  }
+
+  private static void putInt(byte[] bytes, int pos, int value) {
+    bytes[pos] = (byte) (value >>> 24);
+    bytes[pos + 1] = (byte) (value >>> 16);
+    bytes[pos + 2] = (byte) (value >>> 8);
+    bytes[pos + 3] = (byte) value;
+  }
+
   /**
    * Create <code>IntArrayCompressed</code> from number of ints to be stored,
    * the number of leading and trailing clear bits. Everything else is stored
@@ -115,6 +171,8 @@ public class ArrayIntCompressed {
    * @param value value to be set at the given index
    */
   public void set(int index, int value) {
+    if (varyingBits == VARIABLE_LENGTH) throw new UnsupportedOperationException();
+
     value >>>= trailingClearBits;
     final long pos = (long) (index) * varyingBits;
     int idx = 2 + (int) (pos >>> 3);
@@ -138,6 +196,17 @@ public class ArrayIntCompressed {
    * @return value found at the given index
    */
   public int get(int index) {
+    if (varyingBits == VARIABLE_LENGTH) {
+      int pos = position(index);
+      int b = data[pos++];
+      int value = b & 0x7f;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = data[pos++];
+        value |= (b & 0x7f) << shift;
+      }
+      return value;
+    }
+
     int value = 0;
     final long pos = (long) (index) * varyingBits;
     int idx = 2 + (int) (pos >>> 3);
@@ -158,6 +227,131 @@ public class ArrayIntCompressed {
     return value << trailingClearBits;
   }
 
+  /**
+   * Get value from the given index of the data structure stored at the given
+   * offset of a buffer, e.g. a memory mapped index file, without copying it.
+   *
+   * @param buffer buffer containing bytes formerly got from
+   * {@link #toByteArray()}
+   * @param offset offset of the data structure within the buffer
+   * @param index index at which the value should be read
+   * @return value found at the given index
+   */
+  public static int get(ByteBuffer buffer, int offset, int index) {
+    if (buffer.get(offset) == VARIABLE_LENGTH) {
+      int pos = position(buffer, offset, index);
+      int b = buffer.get(pos++);
+      int value = b & 0x7f;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = buffer.get(pos++);
+        value |= (b & 0x7f) << shift;
+      }
+      return value;
+    }
+
+    final int varyingBits = buffer.get(offset);
+    final int trailingClearBits = buffer.get(offset + 1);
+    int value = 0;
+    final long pos = (long) (index) * varyingBits;
+    int idx = offset + 2 + (int) (pos >>> 3);
+    int off = ((int) (pos)) & 0x7;
+    if ((off + varyingBits) > 0x8) {
+      value = ((buffer.get(idx++) << off) & 0xff) >>> off;
+      off += varyingBits - 0x8;
+      while (off > 0x8) {
+        value <<= 0x8;
+        value |= buffer.get(idx++) & 0xff;
+        off -= 0x8;
+      }
+      value <<= off;
+      value |= (buffer.get(idx) & 0xff) >>> (0x8 - off);
+    } else {
+      value = ((buffer.get(idx) << off) & 0xff) >>> (0x8 - varyingBits);
+    }
+    return value << trailingClearBits;
+  }
+
+  /**
+   * Get consecutive values, starting at the given index.
+   *
+   * @param index index of the first value
+   * @param dest array receiving the values
+   * @param destOffset position of the first value within the array
+   * @param length number of values
+   */
+  public void get(int index, int[] dest, int destOffset, int length) {
+    if (varyingBits != VARIABLE_LENGTH) {
+      for (int i = 0; i < length; i++)
+        dest[destOffset + i] = get(index + i);
+      return;
+    }
+
+    int pos = position(index);
+    for (int end = destOffset + length; destOffset < end; destOffset++) {
+      int b = data[pos++];
+      int value = b & 0x7f;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = data[pos++];
+        value |= (b & 0x7f) << shift;
+      }
+      dest[destOffset] = value;
+    }
+  }
+
+  /**
+   * Get consecutive values of the data structure stored at the given offset
+   * of a buffer, starting at the given index.
+   *
+   * @param buffer buffer containing bytes formerly got from
+   * {@link #toByteArray()}
+   * @param offset offset of the data structure within the buffer
+   * @param index index of the first value
+   * @param dest array receiving the values
+   * @param destOffset position of the first value within the array
+   * @param length number of values
+   */
+  public static void get(ByteBuffer buffer, int offset, int index, int[] dest, int destOffset,
+      int length) {
+    if (buffer.get(offset) != VARIABLE_LENGTH) {
+      for (int i = 0; i < length; i++)
+        dest[destOffset + i] = get(buffer, offset, index + i);
+      return;
+    }
+
+    int pos = position(buffer, offset, index);
+    for (int end = destOffset + length; destOffset < end; destOffset++) {
+      int b = buffer.get(pos++);
+      int value = b & 0x7f;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = buffer.get(pos++);
+        value |= (b & 0x7f) << shift;
+      }
+      dest[destOffset] = value;
+    }
+  }
+
+  /**
+   * @return the position of the value at the given index of a variable
+   * length array: the block table points to the first value of the block,
+   * the preceding values of the block are skipped
+   */
+  private int position(int index) {
+    int block = VARIABLE_LENGTH_HEADER + 4 * (index >>> BLOCK_SHIFT);
+    int pos = (data[block] << 24) | ((data[block + 1] & 0xff) << 16)
+        | ((data[block + 2] & 0xff) << 8) | (data[block + 3] & 0xff);
+    for (int skip = index & (BLOCK_SIZE - 1); skip > 0; )
+      if (data[pos++] >= 0) skip--;
+    return pos;
+  }
+
+  private static int position(ByteBuffer buffer, int offset, int index) {
+    int pos = offset
+        + buffer.getInt(offset + VARIABLE_LENGTH_HEADER + 4 * (index >>> BLOCK_SHIFT));
+    for (int skip = index & (BLOCK_SIZE - 1); skip > 0; )
+      if (buffer.get(pos++) >= 0) skip--;
+    return pos;
+  }
+
   /**
    * Get bytes representing the internal data structure with which an
    * <code>IntArrayCompressed</code> can be reconstructed.
@@ -12,6 +12,8 @@
  */
 package org.eclipse.mat.collect;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class compresses fixed-size long[] in a very fast and memory efficient
  * manner if many leading and/or trailing bits of the stored longs are not used
@@ -158,6 +160,39 @@ public class ArrayLongCompressed {
     return value << trailingClearBits;
   }
 
+  /**
+   * Get value from the given index of the data structure stored at the given
+   * offset of a buffer, e.g. a memory mapped index file, without copying it.
+   *
+   * @param buffer buffer containing bytes formerly got from
+   * {@link #toByteArray()}
+   * @param offset offset of the data structure within the buffer
+   * @param index index at which the value should be read
+   * @return value found at the given index
+   */
+  public static long get(ByteBuffer buffer, int offset, int index) {
+    final int varyingBits = buffer.get(offset);
+    final int trailingClearBits = buffer.get(offset + 1);
+    long value = 0;
+    final long pos = (long) (index) * varyingBits;
+    int idx = offset + 2 + (int) (pos >>> 3);
+    int off = ((int) (pos)) & 0x7;
+    if ((off + varyingBits) > 0x8) {
+      value = ((buffer.get(idx++) << off) & 0xff) >>> off;
+      off += varyingBits - 0x8;
+      while (off > 0x8) {
+        value <<= 0x8;
+        value |= buffer.get(idx++) & 0xff;
+        off -= 0x8;
+      }
+      value <<= off;
+      value |= (buffer.get(idx) & 0xff) >>> (0x8 - off);
+    } else {
+      value = ((buffer.get(idx) << off) & 0xff) >>> (0x8 - varyingBits);
+    }
+    return value << trailingClearBits;
+  }
+
   /**
    * Get bytes representing the internal data structure with which an
    * <code>LongArrayCompressed</code> can be reconstructed.
@@ -0,0 +1,98 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.collect;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bit field which may be modified by several threads at once, e.g. to mark
+ * objects in parallel. The bits are kept in longs which are updated by
+ * compare-and-set. Like {@link BitField}, no method does any parameter
+ * checking.
+ */
+public final class AtomicBitField {
+  private final AtomicLongArray bits;
+  private final int size;
+
+  /**
+   * Creates a bit field with the given number of bits, all clear.
+   */
+  public AtomicBitField(int size) {
+    this.bits = new AtomicLongArray(((size - 1) >>> 6) + 1);
+    this.size = size;
+  }
+
+  /**
+   * Creates a copy of the given bit field, which must not be modified
+   * meanwhile.
+   */
+  public AtomicBitField(AtomicBitField template) {
+    this.bits = new AtomicLongArray(template.bits.length());
+    this.size = template.size;
+    for (int ii = 0; ii < bits.length(); ii++)
+      bits.set(ii, template.bits.get(ii));
+  }
+
+  /**
+   * Sets the bit on the given index.
+   *
+   * @return true if the bit was clear before, i.e. exactly one of several
+   * threads setting the same bit gets true
+   */
+  public boolean set(int index) {
+    int ii = index >>> 6;
+    long mask = 1L << (index & 0x3f);
+    while (true) {
+      long value = bits.get(ii);
+      if ((value & mask) != 0) return false;
+      if (bits.compareAndSet(ii, value, value | mask)) return true;
+    }
+  }
+
+  /**
+   * Clears the bit on the given index.
+   */
+  public void clear(int index) {
+    int ii = index >>> 6;
+    long mask = 1L << (index & 0x3f);
+    while (true) {
+      long value = bits.get(ii);
+      if ((value & mask) == 0) return;
+      if (bits.compareAndSet(ii, value, value & ~mask)) return;
+    }
+  }
+
+  /**
+   * Gets the bit on the given index.
+   */
+  public boolean get(int index) {
+    return (bits.get(index >>> 6) & (1L << (index & 0x3f))) != 0;
+  }
+
+  /**
+   * @return the number of bits
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of bits set
+   */
+  public int cardinality() {
+    int count = 0;
+    for (int ii = 0; ii < bits.length(); ii++)
+      count += Long.bitCount(bits.get(ii));
+    return count;
+  }
+}
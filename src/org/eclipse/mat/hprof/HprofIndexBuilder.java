@@ -17,12 +17,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayLong;
+import org.eclipse.mat.collect.IteratorInt;
 import org.eclipse.mat.collect.IteratorLong;
+import org.eclipse.mat.hprof.extension.ClassNameReferenceFilter;
 import org.eclipse.mat.hprof.extension.IParsingEnhancer;
+import org.eclipse.mat.hprof.extension.IReferenceFilter;
 import org.eclipse.mat.parser.IIndexBuilder;
 import org.eclipse.mat.parser.IPreliminaryIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2LongIndex;
+import org.eclipse.mat.parser.index.IIndexReader.IOne2OneIndex;
+import org.eclipse.mat.parser.index.IndexManager.Index;
 import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.parser.model.XSnapshotInfo;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.MessageUtil;
 import org.eclipse.mat.util.SimpleMonitor;
@@ -31,6 +38,7 @@ public class HprofIndexBuilder implements IIndexBuilder {
   private File file;
   private String prefix;
   private IOne2LongIndex id2position;
+  private IOne2OneIndex id2heap;
   private List<IParsingEnhancer> enhancers;
 
   public void init(File file, String prefix) {
@@ -56,8 +64,19 @@ public class HprofIndexBuilder implements IIndexBuilder {
     listener.beginTask(MessageUtil.format(Messages.HprofIndexBuilder_Parsing, file.getName()),
         3000);
 
+    XSnapshotInfo snapshotInfo = preliminary.getSnapshotInfo();
+    String excludedClasses = (String) snapshotInfo.getProperty("exclude_classes"); //$NON-NLS-1$
+    String excludedFields = (String) snapshotInfo.getProperty("exclude_fields"); //$NON-NLS-1$
+    ClassNameReferenceFilter filter =
+        new ClassNameReferenceFilter(excludedClasses, excludedFields);
+    if (!filter.isEmpty()) enhancers.add(filter);
+
     IHprofParserHandler handler = new HprofParserHandlerImpl();
-    handler.beforePass1(preliminary.getSnapshotInfo());
+    handler.beforePass1(snapshotInfo);
+    for (IParsingEnhancer enhancer : enhancers)
+      if (enhancer instanceof IReferenceFilter) {
+        handler.getReferenceFilters().add((IReferenceFilter) enhancer);
+      }
 
     SimpleMonitor.Listener mon = (SimpleMonitor.Listener) monitor.nextMonitor();
     mon.beginTask(MessageUtil.format(Messages.HprofIndexBuilder_Scanning,
@@ -69,6 +88,9 @@ public class HprofIndexBuilder implements IIndexBuilder {
 
     mon.done();
 
+    handler.getSnapshotInfo().setProperty(QuickHistogram.class.getName(),
+        pass1.getQuickHistogram());
+
     handler.beforePass2(listener);
 
     mon = (SimpleMonitor.Listener) monitor.nextMonitor();
@@ -77,7 +99,14 @@ public class HprofIndexBuilder implements IIndexBuilder {
     }), (int) (file.length() / 1000));
 
     Pass2Parser pass2 = new Pass2Parser(handler, mon);
-    pass2.read(file);
+    int availableProcessors = Runtime.getRuntime().availableProcessors();
+    ArrayLong dumpRanges = pass1.getDumpRanges();
+    if (availableProcessors > 1 && dumpRanges.size() > 2) {
+      pass2.read(file, dumpRanges, pass1.getDumpRangeHeaps(),
+          Math.min(availableProcessors, dumpRanges.size() / 2));
+    } else {
+      pass2.read(file);
+    }
 
     if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
 
@@ -89,6 +118,35 @@ public class HprofIndexBuilder implements IIndexBuilder {
       enhancer.onParsingCompleted(handler.getSnapshotInfo());
 
     id2position = handler.fillIn(preliminary);
+    id2heap = handler.getHeapIndex();
+  }
+
+  /**
+   * Scans the dump once (Pass1 only) and returns the class histogram, without
+   * building any index. With a sample fraction below 1 only that share of the
+   * heap dump segments is read and the histogram is extrapolated.
+   */
+  public static QuickHistogram readQuickHistogram(File file, double sampleFraction,
+      IProgressListener listener) throws SnapshotException, IOException {
+    SimpleMonitor monitor = new SimpleMonitor(MessageUtil.format(Messages.HprofIndexBuilder_Scanning,
+        new Object[] { file.getAbsolutePath() }), listener, new int[] { 1000 });
+
+    IHprofParserHandler handler = new HprofParserHandlerImpl();
+    XSnapshotInfo snapshotInfo = new XSnapshotInfo();
+    snapshotInfo.setPath(file.getAbsolutePath());
+    handler.beforePass1(snapshotInfo);
+
+    SimpleMonitor.Listener mon = (SimpleMonitor.Listener) monitor.nextMonitor();
+    mon.beginTask(MessageUtil.format(Messages.HprofIndexBuilder_Scanning,
+        new Object[] { file.getAbsolutePath() }), (int) (file.length() / 1000));
+    Pass1Parser pass1 = new Pass1Parser(handler, mon, sampleFraction);
+    pass1.read(file);
+
+    if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+
+    mon.done();
+
+    return pass1.getQuickHistogram();
   }
 
   public void clean(final int[] purgedMapping, IProgressListener listener) throws IOException {
@@ -116,6 +174,32 @@ public class HprofIndexBuilder implements IIndexBuilder {
 
     id2position.delete();
     id2position = null;
+
+    // //////////////////////////////////////////////////////////////
+    // object 2 heap id (Android dumps only)
+    // //////////////////////////////////////////////////////////////
+
+    if (id2heap != null) {
+      indexFile = Index.O2HEAP.getFile(prefix);
+      listener.subTask(MessageUtil.format(Messages.HprofIndexBuilder_Writing, new Object[] {
+          indexFile.getAbsolutePath()
+      }));
+      IOne2OneIndex newHeapIndex = new IndexWriter.IntIndexStreamer().writeTo(indexFile,
+          new HeapIndexIterator(id2heap, purgedMapping));
+
+      try {
+        newHeapIndex.close();
+      } catch (IOException ignore) {
+      }
+
+      try {
+        id2heap.close();
+      } catch (IOException ignore) {
+      }
+
+      id2heap.delete();
+      id2heap = null;
+    }
   }
 
   public void cancel() {
@@ -127,6 +211,15 @@ public class HprofIndexBuilder implements IIndexBuilder {
       }
       id2position.delete();
     }
+
+    if (id2heap != null) {
+      try {
+        id2heap.close();
+      } catch (IOException ignore) {
+        // $JL-EXC$
+      }
+      id2heap.delete();
+    }
   }
 
   private static final class IndexIterator implements IteratorLong {
@@ -155,4 +248,31 @@ public class HprofIndexBuilder implements IIndexBuilder {
       while (nextIndex < purgedMapping.length && purgedMapping[nextIndex] < 0) nextIndex++;
     }
   }
+
+  private static final class HeapIndexIterator implements IteratorInt {
+    private final IOne2OneIndex id2heap;
+    private final int[] purgedMapping;
+    private int nextIndex = -1;
+
+    private HeapIndexIterator(IOne2OneIndex id2heap, int[] purgedMapping) {
+      this.id2heap = id2heap;
+      this.purgedMapping = purgedMapping;
+      findNext();
+    }
+
+    public boolean hasNext() {
+      return nextIndex < purgedMapping.length;
+    }
+
+    public int next() {
+      int answer = id2heap.get(nextIndex);
+      findNext();
+      return answer;
+    }
+
+    protected void findNext() {
+      nextIndex++;
+      while (nextIndex < purgedMapping.length && purgedMapping[nextIndex] < 0) nextIndex++;
+    }
+  }
 }
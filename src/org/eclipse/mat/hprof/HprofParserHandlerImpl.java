@@ -23,11 +23,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
+import org.eclipse.mat.collect.ArrayLong;
+import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.collect.HashMapLongLong;
 import org.eclipse.mat.collect.HashMapLongObject;
 import org.eclipse.mat.collect.IteratorLong;
+import org.eclipse.mat.hprof.extension.IReferenceFilter;
 import org.eclipse.mat.parser.IPreliminaryIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2LongIndex;
+import org.eclipse.mat.parser.index.IIndexReader.IOne2OneIndex;
 import org.eclipse.mat.parser.index.IndexManager.Index;
 import org.eclipse.mat.parser.index.IndexWriter;
 import org.eclipse.mat.parser.model.ClassImpl;
@@ -37,6 +43,7 @@ import org.eclipse.mat.snapshot.model.Field;
 import org.eclipse.mat.snapshot.model.FieldDescriptor;
 import org.eclipse.mat.snapshot.model.GCRootInfo;
 import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.snapshot.model.IObject;
 import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.MessageUtil;
@@ -48,7 +55,7 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
   private XSnapshotInfo info = new XSnapshotInfo();
 
   /** constant pool cache */
-  private HashMapLongObject<String> constantPool = new HashMapLongObject<String>(10000);
+  private StringConstantPool constantPool = new StringConstantPool(10000);
   private Map<String, List<ClassImpl>> classesByName = new HashMap<String, List<ClassImpl>>();
   private HashMapLongObject<ClassImpl> classesByAddress = new HashMapLongObject<ClassImpl>();
 
@@ -61,6 +68,17 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
   private IndexWriter.LongIndexCollector object2position = null;
   private IndexWriter.IntIndexCollectorUncompressed array2size = null;
 
+  // Android heap partitions (HEAP_DUMP_INFO), empty for other dumps
+  private HashMapIntObject<String> heapNames = new HashMapIntObject<String>();
+  private HashMapLongLong class2heap = new HashMapLongLong();
+  private int currentHeapId = 0;
+  private IndexWriter.IntIndexCollector object2heapId = null;
+  private IOne2OneIndex heapIndex = null;
+
+  private List<IReferenceFilter> referenceFilters = new ArrayList<IReferenceFilter>();
+  private ArrayLong excludedAddresses = new ArrayLong();
+  private BitField excludedObjects = null;
+
   private Set<Long> requiredArrayClassIDs = new HashSet<Long>();
   private Set<Integer> requiredPrimitiveArrays = new HashSet<Integer>();
 
@@ -105,17 +123,36 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
 
       clazz.setHeapSizePerInstance(calculateInstanceSize(clazz));
       clazz.setUsedHeapSize(calculateClassSize(clazz));
+      calculateReferenceLayout(clazz);
     }
 
     // create index writers
     outbound = new IndexWriter.IntArray1NWriter(this.identifiers.size(),
         Index.OUTBOUND.getFile(info.getPrefix() + "temp."));//$NON-NLS-1$
+    if (!excludedAddresses.isEmpty()) {
+      excludedObjects = new BitField(this.identifiers.size());
+      long[] addresses = excludedAddresses.toArray();
+      int[] ids = new int[addresses.length];
+      identifiers.reverse(addresses, ids);
+      for (int objectId : ids)
+        if (objectId >= 0) excludedObjects.set(objectId);
+    }
+    excludedAddresses = null;
     object2classId = new IndexWriter.IntIndexCollector(this.identifiers.size(),
         IndexWriter.mostSignificantBit(maxClassId));
     object2position = new IndexWriter.LongIndexCollector(this.identifiers.size(),
         IndexWriter.mostSignificantBit(new File(this.info.getPath()).length()));
     array2size = new IndexWriter.IntIndexCollectorUncompressed(this.identifiers.size());
 
+    if (!heapNames.isEmpty()) {
+      int maxHeapId = 0;
+      for (int heapId : heapNames.getAllKeys())
+        maxHeapId = Math.max(maxHeapId, heapId);
+      object2heapId = new IndexWriter.IntIndexCollector(this.identifiers.size(),
+          IndexWriter.mostSignificantBit(maxHeapId));
+      info.setProperty(XSnapshotInfo.HEAP_NAMES, heapNames);
+    }
+
     // java.lang.Class needs some special treatment so that object2classId
     // is written correctly
     List<ClassImpl> javaLangClasses = classesByName.get(ClassImpl.JAVA_LANG_CLASS);
@@ -145,10 +182,20 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
       if (superclass != null) superclass.addSubClass(clazz);
 
       object2classId.set(clazz.getObjectId(), clazz.getClazz().getObjectId());
+      if (object2heapId != null) {
+        // classes loaded before the first heap info are in the default heap 0
+        long address = clazz.getObjectAddress();
+        int heapId = class2heap.containsKey(address) ? (int) class2heap.get(address) : 0;
+        object2heapId.set(clazz.getObjectId(), heapId);
+      }
 
       outbound.log(identifiers, clazz.getObjectId(), clazz.getReferences());
     }
 
+    // classes keep all references (class loader, statics), the filters
+    // apply to the instances only
+    outbound.setExcludedObjects(excludedObjects);
+
     // report dependencies for system class loader
     // (if no classes use this class loader, cleanup garbage will remove it
     // again)
@@ -227,6 +274,46 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
     return alignUpToX(ownFieldsSize + calculateSizeRecursive(superClass), info.getIdentifierSize());
   }
 
+  /**
+   * Flattens the instance fields of the class hierarchy into the byte offsets
+   * of the object references, so that Pass2 can pick the references without
+   * decoding the fields.
+   */
+  private void calculateReferenceLayout(ClassImpl clazz) {
+    boolean isWeakReferenceClass = false;
+    for (ClassImpl c = clazz; c != null; c = superClassOf(c)) {
+      if (Pass2Parser.ignorableClasses.contains(c.getName())) {
+        isWeakReferenceClass = true;
+        break;
+      }
+    }
+
+    ArrayInt offsets = new ArrayInt();
+    int offset = 0;
+    for (ClassImpl c = clazz; c != null; c = superClassOf(c)) {
+      for (FieldDescriptor field : c.getFieldDescriptors()) {
+        if (field.getType() == IObject.Type.OBJECT
+            && !(isWeakReferenceClass && field.getName().equals("referent"))//$NON-NLS-1$
+            && !isExcludedField(c, field)) {
+          offsets.add(offset);
+        }
+        offset += sizeOf(field);
+      }
+    }
+
+    clazz.setReferenceLayout(offsets.toArray(), offset);
+  }
+
+  private boolean isExcludedField(ClassImpl clazz, FieldDescriptor field) {
+    for (IReferenceFilter filter : referenceFilters)
+      if (filter.isExcludedField(clazz.getName(), field.getName())) return true;
+    return false;
+  }
+
+  private ClassImpl superClassOf(ClassImpl clazz) {
+    return clazz.hasSuperClass() ? classesByAddress.get(clazz.getSuperClassAddress()) : null;
+  }
+
   private int calculateClassSize(ClassImpl clazz) {
     int staticFieldsSize = 0;
     for (Field field : clazz.getStaticFields())
@@ -296,6 +383,12 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
 
     index.setOutbound(outbound.flush());
 
+    if (object2heapId != null) {
+      heapIndex = object2heapId.writeTo(
+          Index.O2HEAP.getFile(info.getPrefix() + "temp.")); //$NON-NLS-1$
+      object2heapId = null;
+    }
+
     return object2position.writeTo(new File(info.getPrefix() + "temp.o2hprof.index")); //$NON-NLS-1$
   }
 
@@ -326,10 +419,23 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
     return sink;
   }
 
+  public IOne2OneIndex getHeapIndex() {
+    return heapIndex;
+  }
+
   public void cancel() {
     if (constantPool != null) constantPool.clear();
 
     if (outbound != null) outbound.cancel();
+
+    if (heapIndex != null) {
+      try {
+        heapIndex.close();
+      } catch (IOException ignore) {
+        // $JL-EXC$
+      }
+      heapIndex.delete();
+    }
   }
 
   // //////////////////////////////////////////////////////////////
@@ -368,9 +474,17 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
     r.add(new XGCRootInfo(id, referrer, rootType));
   }
 
+  public void setHeap(int heapId, String heapName) {
+    currentHeapId = heapId;
+    if (!heapNames.containsKey(heapId)) {
+      heapNames.put(heapId, heapName != null ? heapName : String.valueOf(heapId));
+    }
+  }
+
   public void addClass(ClassImpl clazz, long filePosition) throws IOException {
     this.identifiers.add(clazz.getObjectAddress());
     this.classesByAddress.put(clazz.getObjectAddress(), clazz);
+    if (!heapNames.isEmpty()) class2heap.put(clazz.getObjectAddress(), currentHeapId);
 
     List<ClassImpl> list = classesByName.get(clazz.getName());
     if (list == null) classesByName.put(clazz.getName(), list = new ArrayList<ClassImpl>());
@@ -378,8 +492,20 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
   }
 
   public void addObject(HeapObject object, long filePosition) throws IOException {
-    int index = object.objectId;
+    addThreadLocals(object);
+
+    // log references
+    outbound.log(identifiers, object.objectId, object.references);
+
+    logObject(object.objectId, object.clazz, object.usedHeapSize, object.isArray,
+        object.heapId, filePosition);
+  }
+
+  public ObjectBuffer createObjectBuffer() {
+    return new ObjectBufferImpl();
+  }
 
+  private void addThreadLocals(HeapObject object) {
     // check if some thread to local variables references have to be added
     HashMapLongObject<List<XGCRootInfo>> localVars =
         threadAddressToLocals.get(object.objectAddress);
@@ -389,24 +515,77 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
         object.references.add(e.next());
       }
     }
-    // log references
-    outbound.log(identifiers, index, object.references);
+  }
 
-    int classIndex = object.clazz.getObjectId();
-    object.clazz.addInstance(object.usedHeapSize);
+  private void logObject(int index, ClassImpl clazz, int usedHeapSize, boolean isArray,
+      int heapId, long filePosition) {
+    int classIndex = clazz.getObjectId();
+    clazz.addInstance(usedHeapSize);
 
     // log address
     object2classId.set(index, classIndex);
     object2position.set(index, filePosition);
 
     // log array size
-    if (object.isArray) array2size.set(index, object.usedHeapSize);
+    if (isArray) array2size.set(index, usedHeapSize);
+
+    if (object2heapId != null) object2heapId.set(index, heapId);
+  }
+
+  /**
+   * Resolves the references on the calling thread and hands batches of
+   * objects over to the (single threaded) index writers.
+   */
+  private class ObjectBufferImpl implements ObjectBuffer {
+    private static final int BATCH_SIZE = 4096;
+
+    private IndexWriter.IntArray1NBuffer references = new IndexWriter.IntArray1NBuffer();
+    private ClassImpl[] classes = new ClassImpl[BATCH_SIZE];
+    private int[] usedHeapSizes = new int[BATCH_SIZE];
+    private boolean[] isArray = new boolean[BATCH_SIZE];
+    private int[] heapIds = new int[BATCH_SIZE];
+    private long[] filePositions = new long[BATCH_SIZE];
+    private int size;
+
+    ObjectBufferImpl() {
+      references.setExcludedObjects(excludedObjects);
+    }
+
+    public void addObject(HeapObject object, long filePosition) throws IOException {
+      addThreadLocals(object);
+
+      references.log(identifiers, object.objectId, object.references);
+      classes[size] = object.clazz;
+      usedHeapSizes[size] = object.usedHeapSize;
+      isArray[size] = object.isArray;
+      heapIds[size] = object.heapId;
+      filePositions[size] = filePosition;
+
+      if (++size == BATCH_SIZE) flush();
+    }
+
+    public void flush() throws IOException {
+      synchronized (HprofParserHandlerImpl.this) {
+        outbound.log(references);
+
+        for (int ii = 0; ii < size; ii++)
+          logObject(references.getIndex(ii), classes[ii], usedHeapSizes[ii], isArray[ii],
+              heapIds[ii], filePositions[ii]);
+      }
+
+      references.clear();
+      size = 0;
+    }
   }
 
   public void reportInstance(long id, long filePosition) {
     this.identifiers.add(id);
   }
 
+  public void reportExcludedInstance(long id) {
+    excludedAddresses.add(id);
+  }
+
   public void reportRequiredObjectArray(long arrayClassID) {
     requiredArrayClassIDs.add(arrayClassID);
   }
@@ -423,7 +602,7 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
     return info.getIdentifierSize();
   }
 
-  public HashMapLongObject<String> getConstantPool() {
+  public StringConstantPool getConstantPool() {
     return constantPool;
   }
 
@@ -464,6 +643,10 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
     return this.identifiers.reverse(address);
   }
 
+  public List<IReferenceFilter> getReferenceFilters() {
+    return referenceFilters;
+  }
+
   public XSnapshotInfo getSnapshotInfo() {
     return info;
   }
@@ -16,9 +16,10 @@ import java.io.IOException;
 import java.util.List;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayLong;
-import org.eclipse.mat.collect.HashMapLongObject;
+import org.eclipse.mat.hprof.extension.IReferenceFilter;
 import org.eclipse.mat.parser.IPreliminaryIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2LongIndex;
+import org.eclipse.mat.parser.index.IIndexReader.IOne2OneIndex;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.XSnapshotInfo;
 import org.eclipse.mat.snapshot.model.IClass;
@@ -36,6 +37,7 @@ public interface IHprofParserHandler {
     public int usedHeapSize;
     public ArrayLong references = new ArrayLong();
     public boolean isArray = false;
+    public int heapId = 0;
 
     public HeapObject(int objectId, long objectAddress, ClassImpl clazz, int usedHeapSize) {
       super();
@@ -47,6 +49,17 @@ public interface IHprofParserHandler {
     }
   }
 
+  /**
+   * Sink for the objects read by one Pass2 worker thread. The references are
+   * resolved on the worker, the results are passed on to the index writers in
+   * batches.
+   */
+  public interface ObjectBuffer {
+    void addObject(HeapObject object, long filePosition) throws IOException;
+
+    void flush() throws IOException;
+  }
+
   // //////////////////////////////////////////////////////////////
   // lifecycle
   // //////////////////////////////////////////////////////////////
@@ -57,6 +70,12 @@ public interface IHprofParserHandler {
 
   IOne2LongIndex fillIn(IPreliminaryIndex index) throws IOException;
 
+  /**
+   * Heap ids of the objects, available after {@link #fillIn}. Null if the
+   * dump contains no HEAP_DUMP_INFO records.
+   */
+  IOne2OneIndex getHeapIndex();
+
   void cancel();
 
   // //////////////////////////////////////////////////////////////
@@ -65,14 +84,26 @@ public interface IHprofParserHandler {
 
   void addProperty(String name, String value) throws IOException;
 
+  /**
+   * Classes reported from now on belong to this heap (Android dumps only).
+   */
+  void setHeap(int heapId, String heapName);
+
   void addGCRoot(long id, long referrer, int rootType) throws IOException;
 
   void addClass(ClassImpl clazz, long filePosition) throws IOException;
 
   void addObject(HeapObject object, long filePosition) throws IOException;
 
+  ObjectBuffer createObjectBuffer();
+
   void reportInstance(long id, long filePosition);
 
+  /**
+   * References to this instance are dropped, see {@link IReferenceFilter}.
+   */
+  void reportExcludedInstance(long id);
+
   void reportRequiredObjectArray(long arrayClassID);
 
   void reportRequiredPrimitiveArray(int arrayType);
@@ -83,7 +114,7 @@ public interface IHprofParserHandler {
 
   int getIdentifierSize();
 
-  HashMapLongObject<String> getConstantPool();
+  StringConstantPool getConstantPool();
 
   IClass lookupClass(long classId);
 
@@ -95,5 +126,10 @@ public interface IHprofParserHandler {
 
   int mapAddressToId(long address);
 
+  /**
+   * The filters applied while parsing; may be extended before Pass1.
+   */
+  List<IReferenceFilter> getReferenceFilters();
+
   XSnapshotInfo getSnapshotInfo();
 }
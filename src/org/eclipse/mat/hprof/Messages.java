@@ -64,21 +64,29 @@ public enum Messages {
   DominatorTree_CreateDominatorsIndexFile("DominatorTree_CreateDominatorsIndexFile"),
   DominatorTree_DepthFirstSearch("DominatorTree_DepthFirstSearch"),
   DominatorTree_DominatorTreeCalculation("DominatorTree_DominatorTreeCalculation"),
+  GCRootPaths_CalculatingShortestPaths("GCRootPaths_CalculatingShortestPaths"),
   GarbageCleaner_ReIndexingClasses("GarbageCleaner_ReIndexingClasses"),
   GarbageCleaner_ReIndexingObjects("GarbageCleaner_ReIndexingObjects"),
   GarbageCleaner_ReIndexingOutboundIndex("GarbageCleaner_ReIndexingOutboundIndex"),
   GarbageCleaner_RemovingUnreachableObjects("GarbageCleaner_RemovingUnreachableObjects"),
   GarbageCleaner_SearchingForUnreachableObjects("GarbageCleaner_SearchingForUnreachableObjects"),
   GarbageCleaner_Writing("GarbageCleaner_Writing"),
+  IndexContainer_Error_NotAContainer("{0} is not an index container"),
   IndexReader_Error_IndexIsEmbedded("IndexReader_Error_IndexIsEmbedded"),
   MultiplePathsFromGCRootsComputerImpl_FindingPaths(
       "MultiplePathsFromGCRootsComputerImpl_FindingPaths"),
+  SnapshotFactoryImpl_Error_InvalidCacheSize(
+      "Invalid index cache size {0}, expected a number of bytes with optional suffix k, m or g"),
+  SnapshotFactoryImpl_Error_InvalidSampleFraction(
+      "Invalid sample fraction {0}, expected 0 < f <= 1"),
   SnapshotFactoryImpl_Error_NoParserRegistered("SnapshotFactoryImpl_Error_NoParserRegistered"),
   SnapshotFactoryImpl_Error_ReparsingHeapDump("SnapshotFactoryImpl_Error_ReparsingHeapDump"),
+  SnapshotFactoryImpl_Error_WritingIndexManifest("Error writing index manifest {0}"),
   SnapshotFactoryImpl_ReparsingHeapDumpAsIndexOutOfDate(
       "SnapshotFactoryImpl_ReparsingHeapDumpAsIndexOutOfDate"),
   SnapshotFactoryImpl_ReparsingHeapDumpWithOutOfDateIndex(
       "SnapshotFactoryImpl_ReparsingHeapDumpWithOutOfDateIndex"),
+  SnapshotImpl_CalculatingRetainedSets("SnapshotImpl_CalculatingRetainedSets"),
   SnapshotImpl_Error_DomTreeNotAvailable("SnapshotImpl_Error_DomTreeNotAvailable"),
   SnapshotImpl_Error_ObjectNotFound("SnapshotImpl_Error_ObjectNotFound"),
   SnapshotImpl_Error_ParserNotFound("SnapshotImpl_Error_ParserNotFound"),
@@ -12,9 +12,7 @@
  */
 package org.eclipse.mat.hprof;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -24,8 +22,11 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
+import org.eclipse.mat.collect.ArrayLong;
 import org.eclipse.mat.collect.HashMapLongObject;
-import org.eclipse.mat.parser.io.PositionInputStream;
+import org.eclipse.mat.hprof.extension.IReferenceFilter;
+import org.eclipse.mat.parser.io.MappedPositionInputStream;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.snapshot.model.Field;
 import org.eclipse.mat.snapshot.model.FieldDescriptor;
@@ -42,6 +43,9 @@ public class Pass1Parser extends AbstractParser {
   private static final Pattern PATTERN_PRIMITIVE_ARRAY = Pattern.compile("^(\\[+)(.)$");
   //$NON-NLS-1$
 
+  /** approximate size of the heap dump ranges handed to the Pass2 workers */
+  private static final long DUMP_RANGE_SIZE = 16L * 1024 * 1024;
+
   private HashMapLongObject<String> class2name = new HashMapLongObject<String>();
   private HashMapLongObject<Long> thread2id = new HashMapLongObject<Long>();
   private HashMapLongObject<StackFrame> id2frame = new HashMapLongObject<StackFrame>();
@@ -49,19 +53,46 @@ public class Pass1Parser extends AbstractParser {
   private HashMapLongObject<Long> classSerNum2id = new HashMapLongObject<Long>();
   private HashMapLongObject<List<JavaLocal>> thread2locals =
       new HashMapLongObject<List<JavaLocal>>();
+  private ArrayLong dumpRanges = new ArrayLong();
+  private ArrayInt dumpRangeHeaps = new ArrayInt();
+  private int heapId = 0;
+  private byte[] chars = new byte[256];
+  private List<IReferenceFilter> filters;
+  private HashMapLongObject<Boolean> excludedClasses = new HashMapLongObject<Boolean>();
+  private Boolean[] excludedPrimitiveArrays = new Boolean[IPrimitiveArray.TYPE.length];
+  private QuickHistogram histogram = new QuickHistogram();
   private IHprofParserHandler handler;
   private SimpleMonitor.Listener monitor;
 
+  // quick look: collect the histogram only, from a fraction of the segments
+  private boolean quickLook;
+  private double sampleFraction = 1;
+
   public Pass1Parser(IHprofParserHandler handler, SimpleMonitor.Listener monitor) {
     this.handler = handler;
     this.monitor = monitor;
   }
 
+  /**
+   * Creates a parser which only collects the {@link QuickHistogram}. Objects
+   * are not reported to the handler and only the given fraction (0 &lt; f
+   * &lt;= 1) of the heap dump segments is read, evenly spread over the dump.
+   */
+  public Pass1Parser(IHprofParserHandler handler, SimpleMonitor.Listener monitor,
+      double sampleFraction) {
+    this(handler, monitor);
+    this.quickLook = true;
+    this.sampleFraction = sampleFraction;
+  }
+
   public void read(File file) throws SnapshotException, IOException {
-    in = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
+    in = new MappedPositionInputStream(file);
+    filters = quickLook ? null : handler.getReferenceFilters();
+    if (filters != null && filters.isEmpty()) filters = null;
 
     final int dumpNrToRead = determineDumpNumber();
     int currentDumpNr = 0;
+    int segmentNr = 0;
 
     try {
       // header & version
@@ -118,7 +149,13 @@ public class Pass1Parser extends AbstractParser {
           case Constants.Record.HEAP_DUMP:
           case Constants.Record.HEAP_DUMP_SEGMENT:
             if (dumpNrToRead == currentDumpNr) {
-              readDumpSegments(length);
+              if (isSampled(segmentNr++)) {
+                readDumpSegments(length);
+                histogram.endSegment(length);
+              } else {
+                in.skipBytes(length);
+                histogram.skipSegment(length);
+              }
             } else {
               in.skipBytes(length);
             }
@@ -154,14 +191,52 @@ public class Pass1Parser extends AbstractParser {
               file.getName(), dumpNrToRead), null);
     }
 
-    if (serNum2stackTrace.size() > 0) dumpThreads();
+    if (serNum2stackTrace.size() > 0 && !quickLook) dumpThreads();
+
+    histogram.resolve(handler, class2name);
+  }
+
+  /**
+   * Systematic sample: picks a segment whenever the running fraction crosses
+   * the next integer, starting with the first segment, so that dumps with
+   * fewer than 1 / fraction segments are not left without any.
+   */
+  private boolean isSampled(int segmentNr) {
+    return sampleFraction >= 1
+        || Math.floor(segmentNr * sampleFraction) > Math.floor((segmentNr - 1) * sampleFraction);
+  }
+
+  /**
+   * Start and end offsets (pairs) of the heap dump ranges found while reading
+   * the selected dump. Each range starts at a sub-record boundary and is about
+   * {@link #DUMP_RANGE_SIZE} bytes long, hence the ranges can be parsed
+   * independently.
+   */
+  public ArrayLong getDumpRanges() {
+    return dumpRanges;
+  }
+
+  /**
+   * Heap id (ANDROID_HEAP_DUMP_INFO) in effect at the start of each dump
+   * range, one entry per range.
+   */
+  public ArrayInt getDumpRangeHeaps() {
+    return dumpRangeHeaps;
+  }
+
+  /**
+   * Class histogram of the selected dump, available as soon as Pass1 is done.
+   */
+  public QuickHistogram getQuickHistogram() {
+    return histogram;
   }
 
   private void readString(long length) throws IOException {
     long id = readID();
-    byte[] chars = new byte[(int) (length - idSize)];
-    in.readFully(chars);
-    handler.getConstantPool().put(id, new String(chars));
+    int size = (int) (length - idSize);
+    if (chars.length < size) chars = new byte[size];
+    in.readFully(chars, 0, size);
+    handler.getConstantPool().put(id, chars, size);
   }
 
   private void readLoadClass() throws IOException {
@@ -203,8 +278,18 @@ public class Pass1Parser extends AbstractParser {
   private void readDumpSegments(long length) throws IOException, SnapshotException {
     long segmentStartPos = in.position();
     long segmentsEndPos = segmentStartPos + length;
+    long rangeStartPos = segmentStartPos;
+    int rangeHeapId = heapId;
 
     while (segmentStartPos < segmentsEndPos) {
+      if (segmentStartPos - rangeStartPos >= DUMP_RANGE_SIZE) {
+        dumpRanges.add(rangeStartPos);
+        dumpRanges.add(segmentStartPos);
+        dumpRangeHeaps.add(rangeHeapId);
+        rangeStartPos = segmentStartPos;
+        rangeHeapId = heapId;
+      }
+
       long workDone = segmentStartPos / 1000;
       if (this.monitor.getWorkDone() < workDone) {
         if (this.monitor.isProbablyCanceled()) {
@@ -258,7 +343,7 @@ public class Pass1Parser extends AbstractParser {
                 /* these were added for Android in 1.0.3 */
         case Constants.DumpSegment.ANDROID_HEAP_DUMP_INFO:
           // no 1.0.2 equivalent for this
-          in.skipBytes(idSize + 4);
+          readHeapDumpInfo();
           break;
         case Constants.DumpSegment.ANDROID_ROOT_INTERNED_STRING:
           readGC(GCRootInfo.Type.UNKNOWN, 0);
@@ -294,6 +379,18 @@ public class Pass1Parser extends AbstractParser {
 
       segmentStartPos = in.position();
     }
+
+    if (rangeStartPos < segmentsEndPos) {
+      dumpRanges.add(rangeStartPos);
+      dumpRanges.add(segmentsEndPos);
+      dumpRangeHeaps.add(rangeHeapId);
+    }
+  }
+
+  private void readHeapDumpInfo() throws IOException {
+    heapId = in.readInt();
+    long nameId = readID();
+    handler.setHeap(heapId, getStringConstant(nameId));
   }
 
   private void readGCThreadObject(int gcType) throws IOException {
@@ -378,7 +475,17 @@ public class Pass1Parser extends AbstractParser {
     // get name
     String className = class2name.get(address);
     if (className == null) className = "unknown-name@0x" + Long.toHexString(address); //$NON-NLS-1$
+    className = toClassName(className);
+
+    ClassImpl clazz =
+        new ClassImpl(address, className, superClassObjectId, classLoaderObjectId, statics, fields);
+    handler.addClass(clazz, segmentStartPos);
+  }
 
+  /**
+   * Converts the array signatures of the LOAD_CLASS records into class names.
+   */
+  static String toClassName(String className) {
     if (className.charAt(0) == '[') // quick check if array at hand
     {
       // fix object class names
@@ -409,22 +516,23 @@ public class Pass1Parser extends AbstractParser {
       }
     }
 
-    ClassImpl clazz =
-        new ClassImpl(address, className, superClassObjectId, classLoaderObjectId, statics, fields);
-    handler.addClass(clazz, segmentStartPos);
+    return className;
   }
 
   private void readInstanceDump(long segmentStartPos) throws IOException {
     long address = readID();
-    handler.reportInstance(address, segmentStartPos);
-    in.skipBytes(idSize + 4);
+    if (!quickLook) handler.reportInstance(address, segmentStartPos);
+    in.skipBytes(4);
+    long classID = readID();
     int payload = in.readInt();
+    histogram.addInstance(classID, payload, idSize);
+    if (filters != null && isExcludedClass(classID)) handler.reportExcludedInstance(address);
     in.skipBytes(payload);
   }
 
   private void readObjectArrayDump(long segmentStartPos) throws IOException {
     long address = readID();
-    handler.reportInstance(address, segmentStartPos);
+    if (!quickLook) handler.reportInstance(address, segmentStartPos);
 
     in.skipBytes(4);
     int size = in.readInt();
@@ -433,13 +541,17 @@ public class Pass1Parser extends AbstractParser {
     // check if class needs to be created
     IClass arrayType = handler.lookupClass(arrayClassObjectID);
     if (arrayType == null) handler.reportRequiredObjectArray(arrayClassObjectID);
+    histogram.addObjectArray(arrayClassObjectID, size, idSize);
+    if (filters != null && isExcludedClass(arrayClassObjectID)) {
+      handler.reportExcludedInstance(address);
+    }
 
     in.skipBytes(size * idSize);
   }
 
   private void readPrimitiveArrayDump(long segmentStartPos) throws SnapshotException, IOException {
     long address = readID();
-    handler.reportInstance(address, segmentStartPos);
+    if (!quickLook) handler.reportInstance(address, segmentStartPos);
 
     in.skipBytes(4);
     int size = in.readInt();
@@ -453,6 +565,10 @@ public class Pass1Parser extends AbstractParser {
     String name = IPrimitiveArray.TYPE[elementType];
     IClass clazz = handler.lookupClassByName(name, true);
     if (clazz == null) handler.reportRequiredPrimitiveArray(elementType);
+    histogram.addPrimitiveArray(elementType, size, idSize);
+    if (filters != null && isExcludedPrimitiveArray(elementType)) {
+      handler.reportExcludedInstance(address);
+    }
 
     int elementSize = IPrimitiveArray.ELEMENT_SIZE[elementType];
     in.skipBytes(elementSize * size);
@@ -463,7 +579,7 @@ public class Pass1Parser extends AbstractParser {
       throws SnapshotException, IOException {
 
     long address = readID();
-    handler.reportInstance(address, segmentStartPos);
+    if (!quickLook) handler.reportInstance(address, segmentStartPos);
 
     in.skipBytes(4);
     int size = in.readInt();
@@ -479,6 +595,39 @@ public class Pass1Parser extends AbstractParser {
     if (clazz == null) {
       handler.reportRequiredPrimitiveArray(elementType);
     }
+    histogram.addPrimitiveArray(elementType, size, idSize);
+    if (filters != null && isExcludedPrimitiveArray(elementType)) {
+      handler.reportExcludedInstance(address);
+    }
+  }
+
+  /**
+   * Asks the reference filters once per class. The names are taken from the
+   * LOAD_CLASS records, as the class dump may come after the instances.
+   */
+  private boolean isExcludedClass(long classID) {
+    Boolean excluded = excludedClasses.get(classID);
+    if (excluded == null) {
+      String className = class2name.get(classID);
+      excluded = className != null && isExcludedClass(toClassName(className));
+      excludedClasses.put(classID, excluded);
+    }
+    return excluded;
+  }
+
+  private boolean isExcludedPrimitiveArray(int elementType) {
+    Boolean excluded = excludedPrimitiveArrays[elementType];
+    if (excluded == null) {
+      excluded = isExcludedClass(IPrimitiveArray.TYPE[elementType]);
+      excludedPrimitiveArrays[elementType] = excluded;
+    }
+    return excluded;
+  }
+
+  private boolean isExcludedClass(String className) {
+    for (IReferenceFilter filter : filters)
+      if (filter.isExcludedClass(className)) return true;
+    return false;
   }
 
   private String getStringConstant(long address) {
@@ -12,25 +12,21 @@
  */
 package org.eclipse.mat.hprof;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
+import org.eclipse.mat.collect.ArrayLong;
 import org.eclipse.mat.hprof.IHprofParserHandler.HeapObject;
-import org.eclipse.mat.parser.io.PositionInputStream;
+import org.eclipse.mat.parser.io.MappedPositionInputStream;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.ObjectArrayImpl;
 import org.eclipse.mat.parser.model.PrimitiveArrayImpl;
-import org.eclipse.mat.snapshot.model.FieldDescriptor;
-import org.eclipse.mat.snapshot.model.IClass;
-import org.eclipse.mat.snapshot.model.IObject;
 import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.MessageUtil;
@@ -42,14 +38,30 @@ import org.eclipse.mat.util.SimpleMonitor;
 public class Pass2Parser extends AbstractParser {
   private IHprofParserHandler handler;
   private SimpleMonitor.Listener monitor;
+  private IHprofParserHandler.ObjectBuffer buffer;
+
+  /* reused for every object, see heapObject(...) */
+  private HeapObject heapObject = new HeapObject(0, 0, null, 0);
+
+  /* current ANDROID_HEAP_DUMP_INFO heap */
+  private int heapId = 0;
 
   public Pass2Parser(IHprofParserHandler handler, SimpleMonitor.Listener monitor) {
     this.handler = handler;
     this.monitor = monitor;
   }
 
+  /* worker: reads ranges of the dump, no progress reporting */
+  private Pass2Parser(Pass2Parser parent, File file) throws IOException {
+    this.handler = parent.handler;
+    this.version = parent.version;
+    this.idSize = parent.idSize;
+    this.buffer = handler.createObjectBuffer();
+    this.in = new MappedPositionInputStream(file);
+  }
+
   public void read(File file) throws SnapshotException, IOException {
-    in = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
+    in = new MappedPositionInputStream(file);
 
     final int dumpNrToRead = determineDumpNumber();
     int currentDumpNr = 0;
@@ -108,13 +120,144 @@ public class Pass2Parser extends AbstractParser {
     }
   }
 
+  /**
+   * Reads the given heap dump ranges (as recorded by {@link Pass1Parser}) with
+   * several threads. Each worker resolves the references of its objects and
+   * passes them on to the handler in batches. The heap ids give the heap in
+   * effect at the start of every range.
+   */
+  public void read(File file, ArrayLong dumpRanges, ArrayInt dumpRangeHeaps,
+      int numberOfThreads)
+      throws SnapshotException, IOException {
+    in = new MappedPositionInputStream(file);
+
+    try {
+      version = readVersion(in);
+      idSize = in.readInt();
+      if (idSize != 4 && idSize != 8) {
+        throw new SnapshotException(Messages.Pass1Parser_Error_SupportedDumps);
+      }
+    } finally {
+      try {
+        in.close();
+      } catch (IOException ignore) {
+      }
+    }
+
+    RangeQueue queue = new RangeQueue(dumpRanges, dumpRangeHeaps);
+
+    // create and start as much parser threads as specified
+    Thread[] threads = new Thread[numberOfThreads];
+    for (int i = 0; i < numberOfThreads; i++) {
+      threads[i] = new Thread(new Worker(new Pass2Parser(this, file), queue),
+          "Pass2ParserThread-" + (i + 1));//$NON-NLS-1$
+      threads[i].start();
+    }
+
+    // wait for all the threads to finish, also after an interrupt: the
+    // workers write into the indices of the handler until they see the abort
+    boolean interrupted = false;
+    for (int i = 0; i < numberOfThreads; i++) {
+      while (true) {
+        try {
+          threads[i].join();
+          break;
+        } catch (InterruptedException e) {
+          if (!interrupted) queue.abort(e);
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+
+    if (queue.error != null) {
+      if (queue.error instanceof IProgressListener.OperationCanceledException) {
+        throw (IProgressListener.OperationCanceledException) queue.error;
+      } else if (queue.error instanceof SnapshotException) {
+        throw (SnapshotException) queue.error;
+      } else if (queue.error instanceof IOException) {
+        throw (IOException) queue.error;
+      } else {
+        throw SnapshotException.rethrow(queue.error);
+      }
+    }
+  }
+
+  private class RangeQueue {
+    ArrayLong ranges;
+    ArrayInt heaps;
+    int next;
+    long bytesDone;
+    Throwable error;
+
+    RangeQueue(ArrayLong ranges, ArrayInt heaps) {
+      this.ranges = ranges;
+      this.heaps = heaps;
+    }
+
+    /* returns the index of the next range or -1 if done */
+    synchronized int take(long bytesRead) {
+      bytesDone += bytesRead;
+      monitor.totalWorkDone(bytesDone / 1000);
+
+      if (error == null && monitor.isCanceled()) {
+        error = new IProgressListener.OperationCanceledException();
+      }
+      if (error != null || next >= ranges.size()) return -1;
+
+      int range = next;
+      next += 2;
+      return range;
+    }
+
+    synchronized void abort(Throwable t) {
+      if (error == null) error = t;
+    }
+  }
+
+  private static class Worker implements Runnable {
+    Pass2Parser parser;
+    RangeQueue queue;
+
+    Worker(Pass2Parser parser, RangeQueue queue) {
+      this.parser = parser;
+      this.queue = queue;
+    }
+
+    public void run() {
+      try {
+        long bytesRead = 0;
+        int range;
+        while ((range = queue.take(bytesRead)) >= 0) {
+          long start = queue.ranges.get(range);
+          long end = queue.ranges.get(range + 1);
+
+          parser.heapId = queue.heaps.get(range / 2);
+          parser.in.seek(start);
+          parser.readDumpSegments(end - start);
+
+          bytesRead = end - start;
+        }
+
+        parser.buffer.flush();
+      } catch (Throwable t) {
+        queue.abort(t);
+      } finally {
+        try {
+          parser.in.close();
+        } catch (IOException ignore) {
+        }
+      }
+    }
+  }
+
   private void readDumpSegments(long length) throws SnapshotException, IOException {
     long segmentStartPos = in.position();
     long segmentsEndPos = segmentStartPos + length;
 
     while (segmentStartPos < segmentsEndPos) {
       long workDone = segmentStartPos / 1000;
-      if (this.monitor.getWorkDone() < workDone) {
+      if (this.monitor != null && this.monitor.getWorkDone() < workDone) {
         if (this.monitor.isProbablyCanceled()) {
           throw new IProgressListener.OperationCanceledException();
         }
@@ -155,7 +298,8 @@ public class Pass2Parser extends AbstractParser {
 
                 /* these were added for Android in 1.0.3 */
         case Constants.DumpSegment.ANDROID_HEAP_DUMP_INFO:
-          in.skipBytes(idSize + 4);
+          heapId = in.readInt();
+          in.skipBytes(idSize);
           break;
         case Constants.DumpSegment.ANDROID_ROOT_INTERNED_STRING:
         case Constants.DumpSegment.ANDROID_ROOT_FINALIZING:
@@ -215,44 +359,31 @@ public class Pass2Parser extends AbstractParser {
     in.skipBytes(4);
     long classID = readID();
     int bytesFollowing = in.readInt();
-    long endPos = in.position() + bytesFollowing;
 
-    List<IClass> hierarchy = handler.resolveClassHierarchy(classID);
+    ClassImpl thisClazz = (ClassImpl) handler.lookupClass(classID);
 
-    ClassImpl thisClazz = (ClassImpl) hierarchy.get(0);
-    HeapObject heapObject = new HeapObject(handler.mapAddressToId(id), id, thisClazz,
+    // the reference layout is precomputed per class before pass 2
+    if (thisClazz.getInstanceFieldsSize() != bytesFollowing) {
+      throw new IOException(
+          MessageUtil.format(Messages.Pass2Parser_Error_InsufficientBytesRead, segmentStartPos));
+    }
+
+    HeapObject heapObject = heapObject(handler.mapAddressToId(id), id, thisClazz,
         thisClazz.getHeapSizePerInstance());
 
     heapObject.references.add(thisClazz.getObjectAddress());
 
     // extract outgoing references
-    boolean isWeakReferenceClass = false;
-    for (IClass clazz : hierarchy) {
-      if (ignorableClasses.contains(clazz.getName())) {
-        isWeakReferenceClass = true;
-        break;
-      }
-    }
-    for (IClass clazz : hierarchy) {
-      for (FieldDescriptor field : clazz.getFieldDescriptors()) {
-        int type = field.getType();
-        if (type == IObject.Type.OBJECT) {
-          long refId = readID();
-          if (refId != 0 && !(isWeakReferenceClass && field.getName().equals("referent"))) {
-            heapObject.references.add(refId);
-          }
-        } else {
-          skipValue(type);
-        }
-      }
-    }
-
-    if (endPos != in.position()) {
-      throw new IOException(
-          MessageUtil.format(Messages.Pass2Parser_Error_InsufficientBytesRead, segmentStartPos));
+    int pos = 0;
+    for (int offset : thisClazz.getReferenceOffsets()) {
+      in.skipBytes(offset - pos);
+      long refId = readID();
+      if (refId != 0) heapObject.references.add(refId);
+      pos = offset + idSize;
     }
+    in.skipBytes(bytesFollowing - pos);
 
-    handler.addObject(heapObject, segmentStartPos);
+    addObject(heapObject, segmentStartPos);
   }
 
   private void readObjectArrayDump(long segmentStartPos) throws IOException {
@@ -269,7 +400,7 @@ public class Pass2Parser extends AbstractParser {
               Long.toHexString(arrayClassObjectID)));
     }
 
-    HeapObject heapObject = new HeapObject(handler.mapAddressToId(id), id, arrayType,
+    HeapObject heapObject = heapObject(handler.mapAddressToId(id), id, arrayType,
         ObjectArrayImpl.doGetUsedHeapSize(arrayType, size));
     heapObject.references.add(arrayType.getObjectAddress());
     heapObject.isArray = true;
@@ -279,7 +410,7 @@ public class Pass2Parser extends AbstractParser {
       if (refId != 0) heapObject.references.add(refId);
     }
 
-    handler.addObject(heapObject, segmentStartPos);
+    addObject(heapObject, segmentStartPos);
   }
 
   private void readPrimitiveArrayDump(long segmentStartPost) throws SnapshotException, IOException {
@@ -300,12 +431,12 @@ public class Pass2Parser extends AbstractParser {
           MessageUtil.format(Messages.Pass2Parser_Error_HandleMustCreateFakeClassForName, name));
     }
 
-    HeapObject heapObject = new HeapObject(handler.mapAddressToId(id), id, clazz,
+    HeapObject heapObject = heapObject(handler.mapAddressToId(id), id, clazz,
         PrimitiveArrayImpl.doGetUsedHeapSize(clazz, size, elementType));
     heapObject.references.add(clazz.getObjectAddress());
     heapObject.isArray = true;
 
-    handler.addObject(heapObject, segmentStartPost);
+    addObject(heapObject, segmentStartPost);
 
     int elementSize = IPrimitiveArray.ELEMENT_SIZE[elementType];
     in.skipBytes(elementSize * size);
@@ -332,11 +463,35 @@ public class Pass2Parser extends AbstractParser {
           MessageUtil.format(Messages.Pass2Parser_Error_HandleMustCreateFakeClassForName, name));
     }
 
-    HeapObject heapObject = new HeapObject(handler.mapAddressToId(id), id, clazz,
+    HeapObject heapObject = heapObject(handler.mapAddressToId(id), id, clazz,
         PrimitiveArrayImpl.doGetUsedHeapSize(clazz, size, elementType));
     heapObject.references.add(clazz.getObjectAddress());
     heapObject.isArray = true;
 
-    handler.addObject(heapObject, segmentStartPost);
+    addObject(heapObject, segmentStartPost);
+  }
+
+  /*
+   * The handler does not keep the heap object, hence one instance (and its
+   * references buffer) is reused for all objects of this parser.
+   */
+  private HeapObject heapObject(int objectId, long objectAddress, ClassImpl clazz,
+      int usedHeapSize) {
+    heapObject.objectId = objectId;
+    heapObject.objectAddress = objectAddress;
+    heapObject.clazz = clazz;
+    heapObject.usedHeapSize = usedHeapSize;
+    heapObject.references.clear();
+    heapObject.isArray = false;
+    heapObject.heapId = heapId;
+    return heapObject;
+  }
+
+  private void addObject(HeapObject heapObject, long filePosition) throws IOException {
+    if (buffer != null) {
+      buffer.addObject(heapObject, filePosition);
+    } else {
+      handler.addObject(heapObject, filePosition);
+    }
   }
 }
@@ -0,0 +1,381 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.hprof;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import org.eclipse.mat.collect.HashMapLongObject;
+import org.eclipse.mat.parser.model.ClassImpl;
+import org.eclipse.mat.snapshot.model.FieldDescriptor;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.IPrimitiveArray;
+
+/**
+ * Class histogram collected while scanning the dump in Pass1, i.e. before any
+ * index is built. Contains the number of instances and arrays per class and
+ * their shallow size, class objects themselves are not counted.
+ * <p>
+ * If only a fraction of the heap dump segments was scanned, the numbers are
+ * extrapolated by the length of the segments and come with the half width of
+ * their 95% confidence interval, estimated from the variation between the
+ * scanned segments.
+ */
+public class QuickHistogram implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** error value for estimates based on less than two segments */
+  public static final long UNKNOWN_ERROR = -1;
+
+  public static class ClassRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String className;
+    private long classAddress;
+    private long numberOfObjects;
+    private long numberOfObjectsError;
+    private long shallowHeapSize;
+    private long shallowHeapSizeError;
+
+    public ClassRecord(String className, long classAddress, long numberOfObjects,
+        long numberOfObjectsError, long shallowHeapSize, long shallowHeapSizeError) {
+      this.className = className;
+      this.classAddress = classAddress;
+      this.numberOfObjects = numberOfObjects;
+      this.numberOfObjectsError = numberOfObjectsError;
+      this.shallowHeapSize = shallowHeapSize;
+      this.shallowHeapSizeError = shallowHeapSizeError;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public long getClassAddress() {
+      return classAddress;
+    }
+
+    public long getNumberOfObjects() {
+      return numberOfObjects;
+    }
+
+    /**
+     * Half width of the 95% confidence interval of the number of objects, 0
+     * if the whole dump was scanned or {@link QuickHistogram#UNKNOWN_ERROR}.
+     */
+    public long getNumberOfObjectsError() {
+      return numberOfObjectsError;
+    }
+
+    public long getShallowHeapSize() {
+      return shallowHeapSize;
+    }
+
+    public long getShallowHeapSizeError() {
+      return shallowHeapSizeError;
+    }
+  }
+
+  public static final Comparator<ClassRecord> COMPARATOR_FOR_SHALLOW_HEAP_SIZE =
+      new Comparator<ClassRecord>() {
+        public int compare(ClassRecord o1, ClassRecord o2) {
+          return o1.shallowHeapSize > o2.shallowHeapSize ? -1
+              : o1.shallowHeapSize == o2.shallowHeapSize ? 0 : 1;
+        }
+      };
+
+  public static final Comparator<ClassRecord> COMPARATOR_FOR_NUMBER_OF_OBJECTS =
+      new Comparator<ClassRecord>() {
+        public int compare(ClassRecord o1, ClassRecord o2) {
+          return o1.numberOfObjects > o2.numberOfObjects ? -1
+              : o1.numberOfObjects == o2.numberOfObjects ? 0 : 1;
+        }
+      };
+
+  /**
+   * Objects counted per class: totals over the scanned segments, the values
+   * of the current segment, and the sums of the squared values and of the
+   * values multiplied by the segment length.
+   */
+  private static final class Tally {
+    long count;
+    long size;
+    long segmentCount;
+    long segmentSize;
+    double squaredCount;
+    double squaredSize;
+    double weightedCount;
+    double weightedSize;
+  }
+
+  private List<ClassRecord> records;
+  private long numberOfObjects;
+  private long numberOfObjectsError;
+  private long shallowHeapSize;
+  private long shallowHeapSizeError;
+  private int scannedSegments;
+  private int totalSegments;
+
+  // lengths of the scanned segments (sum, sum of squares) and of all segments
+  private transient long scannedLength;
+  private transient double squaredLength;
+  private transient long totalLength;
+
+  private transient HashMapLongObject<Tally> classTallies = new HashMapLongObject<Tally>();
+  private transient Tally[] primitiveTallies = new Tally[IPrimitiveArray.TYPE.length];
+  private transient Tally totalTally = new Tally();
+  private transient List<Tally> segmentTallies = new ArrayList<Tally>();
+
+  public List<ClassRecord> getClassRecords() {
+    return records;
+  }
+
+  public long getNumberOfObjects() {
+    return numberOfObjects;
+  }
+
+  public long getNumberOfObjectsError() {
+    return numberOfObjectsError;
+  }
+
+  public long getShallowHeapSize() {
+    return shallowHeapSize;
+  }
+
+  public long getShallowHeapSizeError() {
+    return shallowHeapSizeError;
+  }
+
+  public boolean isSampled() {
+    return scannedSegments < totalSegments;
+  }
+
+  public int getScannedSegments() {
+    return scannedSegments;
+  }
+
+  public int getTotalSegments() {
+    return totalSegments;
+  }
+
+  /**
+   * The <code>limit</code> largest records according to the comparator.
+   */
+  public List<ClassRecord> getTopClassRecords(Comparator<ClassRecord> comparator, int limit) {
+    List<ClassRecord> answer = new ArrayList<ClassRecord>(records);
+    Collections.sort(answer, comparator);
+    return limit < answer.size() ? answer.subList(0, limit) : answer;
+  }
+
+  // //////////////////////////////////////////////////////////////
+  // collect (Pass1)
+  // //////////////////////////////////////////////////////////////
+
+  void addInstance(long classAddress, int payload, int idSize) {
+    // estimate only, replaced by the instance size of the class if known
+    count(tally(classAddress), alignUpTo8(2L * idSize + payload));
+  }
+
+  void addObjectArray(long arrayClassAddress, int length, int idSize) {
+    count(tally(arrayClassAddress), alignUpTo8(2L * idSize + 4 + (long) length * idSize));
+  }
+
+  void addPrimitiveArray(int elementType, int length, int idSize) {
+    Tally tally = primitiveTallies[elementType];
+    if (tally == null) tally = primitiveTallies[elementType] = new Tally();
+    count(tally,
+        alignUpTo8(2L * idSize + 4 + (long) length * IPrimitiveArray.ELEMENT_SIZE[elementType]));
+  }
+
+  void endSegment(long length) {
+    for (Tally tally : segmentTallies) {
+      tally.count += tally.segmentCount;
+      tally.size += tally.segmentSize;
+      tally.squaredCount += (double) tally.segmentCount * tally.segmentCount;
+      tally.squaredSize += (double) tally.segmentSize * tally.segmentSize;
+      tally.weightedCount += (double) tally.segmentCount * length;
+      tally.weightedSize += (double) tally.segmentSize * length;
+      tally.segmentCount = 0;
+      tally.segmentSize = 0;
+    }
+    segmentTallies.clear();
+
+    scannedSegments++;
+    scannedLength += length;
+    squaredLength += (double) length * length;
+    skipSegment(length);
+  }
+
+  void skipSegment(long length) {
+    totalSegments++;
+    totalLength += length;
+  }
+
+  private Tally tally(long classAddress) {
+    Tally tally = classTallies.get(classAddress);
+    if (tally == null) {
+      tally = new Tally();
+      classTallies.put(classAddress, tally);
+    }
+    return tally;
+  }
+
+  private void count(Tally tally, long size) {
+    if (tally.segmentCount == 0) segmentTallies.add(tally);
+    tally.segmentCount++;
+    tally.segmentSize += size;
+
+    if (totalTally.segmentCount == 0) segmentTallies.add(totalTally);
+    totalTally.segmentCount++;
+    totalTally.segmentSize += size;
+  }
+
+  /**
+   * Turns the tallies into class records once all classes are known. Uses the
+   * same instance size calculation as {@link HprofParserHandlerImpl}. The
+   * class names are taken from the LOAD_CLASS records if the class dump
+   * itself was not scanned.
+   */
+  void resolve(IHprofParserHandler handler, HashMapLongObject<String> classNames) {
+    int idSize = handler.getIdentifierSize();
+    records = new ArrayList<ClassRecord>(classTallies.size() + primitiveTallies.length);
+
+    for (Iterator<HashMapLongObject.Entry<Tally>> e = classTallies.entries(); e.hasNext(); ) {
+      HashMapLongObject.Entry<Tally> entry = e.next();
+      long classAddress = entry.getKey();
+      Tally tally = entry.getValue();
+
+      IClass clazz = handler.lookupClass(classAddress);
+      String className;
+      if (clazz != null) {
+        className = clazz.getName();
+      } else if (classNames.get(classAddress) != null) {
+        className = Pass1Parser.toClassName(classNames.get(classAddress));
+      } else {
+        // object arrays of classes not contained in the dump
+        className = "unknown-class[]"; //$NON-NLS-1$
+      }
+
+      int instanceSize = clazz != null && !clazz.isArrayType()
+          ? calculateInstanceSize(handler, clazz, idSize) : -1;
+      if (instanceSize < 0) {
+        add(className, classAddress, tally);
+      } else {
+        long count = estimate(tally.count);
+        long countError = error(tally.count, tally.squaredCount, tally.weightedCount);
+        add(new ClassRecord(className, classAddress, count, countError, count * instanceSize,
+            countError < 0 ? UNKNOWN_ERROR : countError * instanceSize));
+      }
+    }
+
+    for (int type = 0; type < primitiveTallies.length; type++) {
+      Tally tally = primitiveTallies[type];
+      if (tally == null) continue;
+
+      String name = IPrimitiveArray.TYPE[type];
+      IClass clazz = handler.lookupClassByName(name, false);
+      add(name, clazz != null ? clazz.getObjectAddress() : 0, tally);
+    }
+
+    Collections.sort(records, COMPARATOR_FOR_SHALLOW_HEAP_SIZE);
+
+    numberOfObjectsError =
+        error(totalTally.count, totalTally.squaredCount, totalTally.weightedCount);
+    shallowHeapSizeError = error(totalTally.size, totalTally.squaredSize, totalTally.weightedSize);
+
+    classTallies = null;
+    primitiveTallies = null;
+    totalTally = null;
+    segmentTallies = null;
+  }
+
+  private void add(String className, long classAddress, Tally tally) {
+    add(new ClassRecord(className, classAddress, estimate(tally.count),
+        error(tally.count, tally.squaredCount, tally.weightedCount), estimate(tally.size),
+        error(tally.size, tally.squaredSize, tally.weightedSize)));
+  }
+
+  private void add(ClassRecord record) {
+    records.add(record);
+    numberOfObjects += record.numberOfObjects;
+    shallowHeapSize += record.shallowHeapSize;
+  }
+
+  /**
+   * Ratio estimate: the scanned values scaled by the length of all segments
+   * over the length of the scanned segments.
+   */
+  private long estimate(long sum) {
+    if (scannedSegments == totalSegments || scannedLength == 0) return sum;
+    return Math.round((double) sum * totalLength / scannedLength);
+  }
+
+  /**
+   * 95% error of the ratio estimate, treating the scanned segments as a
+   * simple random sample of clusters (with finite population correction).
+   */
+  private long error(long sum, double squaredSum, double weightedSum) {
+    int n = scannedSegments;
+    int N = totalSegments;
+    if (n == N) return 0;
+    if (n < 2 || scannedLength == 0) return UNKNOWN_ERROR;
+
+    // residual variance of y - R * x
+    double ratio = (double) sum / scannedLength;
+    double residuals = squaredSum - 2 * ratio * weightedSum + ratio * ratio * squaredLength;
+    double variance = Math.max(0, residuals / (n - 1));
+    double standardError = N * Math.sqrt((1 - (double) n / N) * variance / n);
+    return Math.round(1.96 * standardError);
+  }
+
+  /**
+   * Returns -1 if the class hierarchy is not completely known, which happens
+   * if not all segments were scanned.
+   */
+  private static int calculateInstanceSize(IHprofParserHandler handler, IClass clazz,
+      int idSize) {
+    List<IClass> hierarchy = new ArrayList<IClass>();
+    hierarchy.add(clazz);
+    while (((ClassImpl) clazz).hasSuperClass()) {
+      clazz = handler.lookupClass(((ClassImpl) clazz).getSuperClassAddress());
+      if (clazz == null) return -1;
+      hierarchy.add(clazz);
+    }
+
+    // the topmost class only contributes the object header
+    int size = 2 * idSize;
+    for (int ii = hierarchy.size() - 2; ii >= 0; ii--) {
+      int ownFieldsSize = 0;
+      for (FieldDescriptor field : hierarchy.get(ii).getFieldDescriptors()) {
+        int type = field.getType();
+        ownFieldsSize += type == IObject.Type.OBJECT ? idSize : IPrimitiveArray.ELEMENT_SIZE[type];
+      }
+      size = alignUpToX(ownFieldsSize + size, idSize);
+    }
+
+    return alignUpToX(size, 8);
+  }
+
+  private static long alignUpTo8(long n) {
+    return (n + 7) & ~7L;
+  }
+
+  private static int alignUpToX(int n, int x) {
+    int r = n % x;
+    return r == 0 ? n : n + x - r;
+  }
+}
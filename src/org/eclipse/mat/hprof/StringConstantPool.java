@@ -0,0 +1,91 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.hprof;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.mat.collect.HashMapLongLong;
+import org.eclipse.mat.collect.HashMapLongObject;
+
+/**
+ * The STRING_IN_UTF8 records of the dump. The bytes are appended to direct
+ * buffers outside of the Java heap and only decoded when a string is looked
+ * up. Decoded strings are kept, so every string used for class, field and
+ * method names is created once.
+ */
+public class StringConstantPool {
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private ByteBuffer current;
+
+  // id -> chunk index (upper 32 bits) and position of the length prefix
+  private HashMapLongLong id2offset;
+  private HashMapLongObject<String> strings;
+
+  private byte[] scratch = new byte[256];
+
+  public StringConstantPool(int initialCapacity) {
+    id2offset = new HashMapLongLong(initialCapacity);
+    strings = new HashMapLongObject<String>();
+  }
+
+  public void put(long id, byte[] bytes, int length) {
+    if (current == null || current.remaining() < length + 4) {
+      current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length + 4));
+      chunks.add(current);
+    }
+
+    id2offset.put(id, ((long) (chunks.size() - 1) << 32) | current.position());
+    current.putInt(length);
+    current.put(bytes, 0, length);
+    strings.remove(id);
+  }
+
+  /**
+   * Returns the decoded string or null if the id is unknown.
+   */
+  public String get(long id) {
+    String answer = strings.get(id);
+    if (answer != null) return answer;
+
+    if (!id2offset.containsKey(id)) return null;
+
+    long offset = id2offset.get(id);
+    ByteBuffer chunk = chunks.get((int) (offset >>> 32));
+    int position = (int) offset;
+
+    int length = chunk.getInt(position);
+    if (scratch.length < length) scratch = new byte[length];
+
+    ByteBuffer source = chunk.duplicate();
+    source.position(position + 4);
+    source.get(scratch, 0, length);
+
+    answer = new String(scratch, 0, length);
+    strings.put(id, answer);
+    return answer;
+  }
+
+  public int size() {
+    return id2offset.size();
+  }
+
+  public void clear() {
+    chunks.clear();
+    current = null;
+    id2offset.clear();
+    strings.clear();
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.hprof.extension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.eclipse.mat.snapshot.SnapshotInfo;
+
+/**
+ * Reference filter configured by comma separated class name patterns, where
+ * <code>*</code> matches any sequence of characters. Fields are given as
+ * <code>class#field</code>, e.g. <code>java.lang.ref.Reference#queue</code>.
+ */
+public class ClassNameReferenceFilter implements IReferenceFilter {
+  private List<Pattern> classes = new ArrayList<Pattern>();
+  private List<Pattern> fieldClasses = new ArrayList<Pattern>();
+  private List<Pattern> fieldNames = new ArrayList<Pattern>();
+
+  public ClassNameReferenceFilter(String excludedClasses, String excludedFields) {
+    if (excludedClasses != null) {
+      for (String name : excludedClasses.split(",")) { //$NON-NLS-1$
+        name = name.trim();
+        if (name.length() > 0) classes.add(compile(name));
+      }
+    }
+
+    if (excludedFields != null) {
+      for (String field : excludedFields.split(",")) { //$NON-NLS-1$
+        field = field.trim();
+        int p = field.indexOf('#');
+        if (p > 0 && p < field.length() - 1) {
+          fieldClasses.add(compile(field.substring(0, p)));
+          fieldNames.add(compile(field.substring(p + 1)));
+        }
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return classes.isEmpty() && fieldClasses.isEmpty();
+  }
+
+  public boolean isExcludedClass(String className) {
+    for (Pattern pattern : classes)
+      if (pattern.matcher(className).matches()) return true;
+    return false;
+  }
+
+  public boolean isExcludedField(String className, String fieldName) {
+    for (int ii = 0; ii < fieldClasses.size(); ii++)
+      if (fieldClasses.get(ii).matcher(className).matches()
+          && fieldNames.get(ii).matcher(fieldName).matches()) {
+        return true;
+      }
+    return false;
+  }
+
+  public void onParsingCompleted(SnapshotInfo snapshotInfo) {
+  }
+
+  private static Pattern compile(String wildcard) {
+    StringBuilder regex = new StringBuilder();
+    String[] parts = wildcard.split("\\*", -1); //$NON-NLS-1$
+    for (int ii = 0; ii < parts.length; ii++) {
+      if (ii > 0) regex.append(".*"); //$NON-NLS-1$
+      regex.append(Pattern.quote(parts[ii]));
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
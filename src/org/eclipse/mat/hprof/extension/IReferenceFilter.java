@@ -0,0 +1,29 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.hprof.extension;
+
+/**
+ * Parsing enhancer which drops references while the dump is parsed, i.e.
+ * before they are written to any index.
+ */
+public interface IReferenceFilter extends IParsingEnhancer {
+  /**
+   * References to instances (and arrays) of the class are dropped.
+   */
+  boolean isExcludedClass(String className);
+
+  /**
+   * The instance field declared by the class is not reported as reference.
+   */
+  boolean isExcludedField(String className, String fieldName);
+}
@@ -23,6 +23,12 @@ public interface IIndexReader {
     int[] getAll(int index[]);
 
     int[] getNext(int index, int length);
+
+    /**
+     * Like {@link #getNext(int, int)}, but copies the values into the given
+     * array.
+     */
+    void getNext(int index, int length, int[] dest, int destOffset);
   }
 
   public interface IOne2LongIndex extends IIndexReader {
@@ -35,6 +41,21 @@ public interface IIndexReader {
 
   public interface IOne2ManyIndex extends IIndexReader {
     int[] get(int index);
+
+    /**
+     * Reads the entries of many indices at once, in compressed sparse row
+     * layout: the entry of <code>index[offset + ii]</code> is stored in
+     * <code>targets[offsets[ii]]</code> up to (excluding)
+     * <code>targets[offsets[ii + 1]]</code>. The entries are read in the
+     * order of the index file, so that neighbouring entries are decoded with
+     * one pass over the pages, which is much cheaper for a graph traversal
+     * than one {@link #get(int)} per object.
+     *
+     * @param offsets receives <code>length + 1</code> positions
+     * @param targets the array to fill, may be null or too small
+     * @return the targets, a new array if the given one was too small
+     */
+    int[] getAll(int[] index, int offset, int length, int[] offsets, int[] targets);
   }
 
   public interface IOne2ManyObjectsIndex extends IOne2ManyIndex {
@@ -0,0 +1,202 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.eclipse.mat.hprof.Messages;
+import org.eclipse.mat.parser.index.IndexReader.SharedChannel;
+import org.eclipse.mat.util.MessageUtil;
+
+/**
+ * Several index files stored as sections of one file. The file starts with a
+ * table of contents (name, start and length of each section), the sections
+ * follow at page aligned positions, so that each of them can be mapped.
+ * <p>
+ * All readers of a container share its file channel, which is closed together
+ * with the container.
+ */
+public class IndexContainer {
+  private static final long MAGIC = 0x51444d4154494458L; // QDMATIDX
+  private static final int VERSION = 1;
+
+  /* sections start at multiples of the page size */
+  private static final int ALIGNMENT = 4096;
+
+  /**
+   * The range of the container holding one index file.
+   */
+  public static class Section {
+    final SharedChannel channel;
+    final long start;
+    final long length;
+
+    Section(SharedChannel channel, long start, long length) {
+      this.channel = channel;
+      this.start = start;
+      this.length = length;
+    }
+  }
+
+  File file;
+  SharedChannel channel;
+  Map<String, Section> sections = new LinkedHashMap<String, Section>();
+
+  public static File getFile(String prefix) {
+    return new File(prefix + "indices.index");//$NON-NLS-1$
+  }
+
+  public IndexContainer(File file) throws IOException {
+    this.file = file;
+
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(
+            MessageUtil.format(Messages.IndexContainer_Error_NotAContainer, file.getPath()));
+      }
+
+      this.channel = new SharedChannel(file);
+
+      int count = in.readInt();
+      for (int ii = 0; ii < count; ii++) {
+        String name = in.readUTF();
+        long start = in.readLong();
+        long length = in.readLong();
+        sections.put(name, new Section(channel, start, length));
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the section, or null if the container has no such index
+   */
+  public Section getSection(String name) {
+    return sections.get(name);
+  }
+
+  public void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ignore) {
+        // $JL-EXC$
+      } finally {
+        channel = null;
+      }
+    }
+  }
+
+  public void delete() {
+    close();
+
+    file.delete();
+  }
+
+  /**
+   * Copies the given index files into a new container. The container is
+   * written next to the target and renamed once it is complete.
+   *
+   * @param files the index files by section name
+   */
+  public static void write(File file, Map<String, File> files) throws IOException {
+    // the size of the table does not depend on the positions
+    long position = align(tableOfContents(files, null).length);
+
+    long[] starts = new long[files.size()];
+    int ii = 0;
+    for (File f : files.values()) {
+      starts[ii++] = position;
+      position = align(position + f.length());
+    }
+
+    File temp = new File(file.getPath() + ".tmp");//$NON-NLS-1$
+    RandomAccessFile out = new RandomAccessFile(temp, "rw");//$NON-NLS-1$
+    try {
+      FileChannel target = out.getChannel();
+      target.truncate(0);
+      write(target, ByteBuffer.wrap(tableOfContents(files, starts)), 0);
+
+      ii = 0;
+      for (File f : files.values()) {
+        FileChannel source = new FileInputStream(f).getChannel();
+        try {
+          // the target grows with the writes, the gaps are zero filled
+          long length = source.size();
+          target.position(starts[ii]);
+          for (long copied = 0; copied < length; ) {
+            copied += source.transferTo(copied, length - copied, target);
+          }
+        } finally {
+          source.close();
+        }
+        ii++;
+      }
+    } catch (IOException e) {
+      out.close();
+      temp.delete();
+      throw e;
+    }
+    out.close();
+
+    file.delete();
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException(file.getPath());
+    }
+  }
+
+  private static byte[] tableOfContents(Map<String, File> files, long[] starts)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(files.size());
+
+    int ii = 0;
+    for (Map.Entry<String, File> entry : files.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeLong(starts != null ? starts[ii] : 0);
+      out.writeLong(entry.getValue().length());
+      ii++;
+    }
+
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining())
+      position += channel.write(buffer, position);
+  }
+
+  private static long align(long position) {
+    return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+}
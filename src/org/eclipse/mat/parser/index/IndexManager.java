@@ -17,24 +17,43 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class IndexManager {
   public enum Index {
-    INBOUND("inbound", IndexReader.InboundReader.class), //$NON-NLS-1$
-    OUTBOUND("outbound", IndexReader.IntIndex1NSortedReader.class), //$NON-NLS-1$
-    O2CLASS("o2c", IndexReader.IntIndexReader.class), //$NON-NLS-1$
-    IDENTIFIER("idx", IndexReader.LongIndexReader.class), //$NON-NLS-1$
-    A2SIZE("a2s", IndexReader.IntIndexReader.class), //$NON-NLS-1$
-    DOMINATED("domOut", IndexReader.IntIndex1NReader.class), //$NON-NLS-1$
-    O2RETAINED("o2ret", IndexReader.LongIndexReader.class), //$NON-NLS-1$
-    DOMINATOR("domIn", IndexReader.IntIndexReader.class);//$NON-NLS-1$
+    INBOUND("inbound", IndexReader.InboundReader.class, //$NON-NLS-1$
+        MappedIndexReader.InboundReader.class),
+    OUTBOUND("outbound", IndexReader.IntIndex1NSortedReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndex1NSortedReader.class),
+    O2CLASS("o2c", IndexReader.IntIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndexReader.class),
+    IDENTIFIER("idx", IndexReader.LongIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.LongIndexReader.class),
+    A2SIZE("a2s", IndexReader.IntIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndexReader.class),
+    DOMINATED("domOut", IndexReader.IntIndex1NReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndex1NReader.class),
+    O2RETAINED("o2ret", IndexReader.LongIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.LongIndexReader.class),
+    DOMINATOR("domIn", IndexReader.IntIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndexReader.class),
+    O2HEAP("o2h", IndexReader.IntIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndexReader.class),
+    GC_PARENT("gcParent", IndexReader.IntIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndexReader.class),
+    GC_DISTANCE("gcDist", IndexReader.IntIndexReader.class, //$NON-NLS-1$
+        MappedIndexReader.IntIndexReader.class);
 
     public String filename;
     Class<? extends IIndexReader> impl;
+    Class<? extends IIndexReader> mappedImpl;
 
-    private Index(String filename, Class<? extends IIndexReader> impl) {
+    private Index(String filename, Class<? extends IIndexReader> impl,
+        Class<? extends IIndexReader> mappedImpl) {
       this.filename = filename;
       this.impl = impl;
+      this.mappedImpl = mappedImpl;
     }
 
     public File getFile(String prefix) {
@@ -52,9 +71,22 @@ public class IndexManager {
   public IIndexReader.IOne2ManyIndex domOut;
   public IIndexReader.IOne2LongIndex o2ret;
   public IIndexReader.IOne2OneIndex domIn;
+  public IIndexReader.IOne2OneIndex o2h;
+  public IIndexReader.IOne2OneIndex gcParent;
+  public IIndexReader.IOne2OneIndex gcDist;
+
+  private PageCache pageCache;
+
+  private IndexContainer container;
+
+  /* the readers are memory mapped, see init() */
+  private boolean mapped;
 
   public void setReader(final Index index, final IIndexReader reader) {
     try {
+      if (pageCache != null && reader instanceof PageCache.Client) {
+        ((PageCache.Client) reader).setPageCache(pageCache);
+      }
       this.getClass().getField(index.filename).set(this, reader);
     } catch (RuntimeException e) {
       throw new RuntimeException(e);
@@ -73,16 +105,60 @@ public class IndexManager {
     }
   }
 
+  /**
+   * Keeps the decoded pages of all (current and future) readers in the given
+   * cache instead of soft references. Memory mapped readers do not cache.
+   */
+  public void setPageCache(final PageCache cache) throws IOException {
+    this.pageCache = cache;
+    new Visitor() {
+
+      @Override void visit(Index index, IIndexReader reader) throws IOException {
+        if (reader instanceof PageCache.Client) ((PageCache.Client) reader).setPageCache(cache);
+      }
+    }.doIt();
+  }
+
+  public PageCache getPageCache() {
+    return pageCache;
+  }
+
   public void init(final String prefix) throws IOException {
+    init(prefix, false);
+  }
+
+  /**
+   * Opens the index files with the given prefix which are not open yet. The
+   * indices found in the {@link IndexContainer} of the prefix are read from
+   * there, the others from their own files.
+   *
+   * @param mapped use the memory mapped readers, see {@link MappedIndexReader}
+   */
+  public void init(final String prefix, final boolean mapped) throws IOException {
+    this.mapped = mapped;
+
+    File containerFile = IndexContainer.getFile(prefix);
+    if (container == null && containerFile.exists()) {
+      container = new IndexContainer(containerFile);
+    }
+
     new Visitor() {
 
       @Override void visit(Index index, IIndexReader reader) throws IOException {
         if (reader != null) return;
 
         try {
+          Class<? extends IIndexReader> impl = mapped ? index.mappedImpl : index.impl;
+          IndexContainer.Section section =
+              container != null ? container.getSection(index.filename) : null;
           File indexFile = index.getFile(prefix);
-          if (indexFile.exists()) {
-            Constructor<?> constructor = index.impl.getConstructor(new Class[] { File.class });
+          if (section != null) {
+            Constructor<?> constructor =
+                impl.getConstructor(new Class<?>[] { IndexContainer.Section.class });
+            reader = (IIndexReader) constructor.newInstance(new Object[] { section });
+            setReader(index, reader);
+          } else if (indexFile.exists()) {
+            Constructor<?> constructor = impl.getConstructor(new Class[] { File.class });
             reader = (IIndexReader) constructor.newInstance(new Object[] { indexFile });
             setReader(index, reader);
           }
@@ -142,6 +218,32 @@ public class IndexManager {
     return domIn;
   }
 
+  /**
+   * Heap ids (HEAP_DUMP_INFO records of Android dumps), null if the dump has
+   * no heap partitions.
+   */
+  public IIndexReader.IOne2OneIndex o2heap() {
+    return o2h;
+  }
+
+  /**
+   * The object each object is reached from first by a breadth first search
+   * from the GC roots, + 2: 1 for GC roots, 0 for unreachable objects. Null
+   * if the index was not calculated, see GCRootPaths.
+   */
+  public IIndexReader.IOne2OneIndex gcRootParent() {
+    return gcParent;
+  }
+
+  /**
+   * The number of references on the shortest path from a GC root to each
+   * object, + 1: 1 for GC roots, 0 for unreachable objects. Null if the
+   * index was not calculated.
+   */
+  public IIndexReader.IOne2OneIndex gcRootDistance() {
+    return gcDist;
+  }
+
   public void close() throws IOException {
     new Visitor() {
 
@@ -152,6 +254,11 @@ public class IndexManager {
         setReader(index, null);
       }
     }.doIt();
+
+    if (container != null) {
+      container.close();
+      container = null;
+    }
   }
 
   public void delete() throws IOException {
@@ -165,6 +272,47 @@ public class IndexManager {
         setReader(index, null);
       }
     }.doIt();
+
+    if (container != null) {
+      container.delete();
+      container = null;
+    }
+  }
+
+  /**
+   * Moves the open index files with the given prefix into one
+   * {@link IndexContainer} and reopens the readers from there. The file
+   * handles are shared and the indices can be copied as one file. If the
+   * container cannot be written, the readers are reopened from the index
+   * files before the error is thrown.
+   */
+  public void pack(final String prefix) throws IOException {
+    // indices written after the container stay in their own files
+    if (container != null) return;
+
+    final Map<String, File> files = new LinkedHashMap<String, File>();
+    new Visitor() {
+
+      @Override void visit(Index index, IIndexReader reader) throws IOException {
+        File indexFile = index.getFile(prefix);
+        if (reader != null && indexFile.exists()) files.put(index.filename, indexFile);
+      }
+    }.doIt();
+
+    close();
+
+    boolean written = false;
+    try {
+      IndexContainer.write(IndexContainer.getFile(prefix), files);
+      written = true;
+    } finally {
+      // e.g. the disk is full, the index files are still there
+      if (!written) init(prefix, mapped);
+    }
+    for (File indexFile : files.values())
+      indexFile.delete();
+
+    init(prefix, mapped);
   }
 
   private abstract class Visitor {
@@ -12,29 +12,49 @@
  */
 package org.eclipse.mat.parser.index;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayIntCompressed;
 import org.eclipse.mat.collect.ArrayLongCompressed;
+import org.eclipse.mat.collect.ArrayUtils;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.hprof.Messages;
-import org.eclipse.mat.parser.io.SimpleBufferedRandomAccessInputStream;
 
+/**
+ * Readers for the index files written by the {@link IndexWriter}. Pages are
+ * loaded with positional reads on a shared file channel, so threads missing
+ * different pages do not wait for each other. A page requested by several
+ * threads at once is read only once, the other threads wait for the result.
+ */
 public abstract class IndexReader {
   public static final boolean DEBUG = false;
 
   public static class IntIndexReader extends IndexWriter.IntIndex<SoftReference<ArrayIntCompressed>>
-      implements IIndexReader.IOne2OneIndex {
-    public Object LOCK = new Object();
-
+      implements IIndexReader.IOne2OneIndex, PageCache.Client {
     File indexFile;
-    public SimpleBufferedRandomAccessInputStream in;
+    public SharedChannel channel;
     long[] pageStart;
 
+    PageCache cache;
+    PageCache.Slots cacheSlots;
+
+    ConcurrentMap<Integer, FutureTask<ArrayIntCompressed>> loading =
+        new ConcurrentHashMap<Integer, FutureTask<ArrayIntCompressed>>();
+
     public IntIndexReader(File indexFile,
         IndexWriter.Pages<SoftReference<ArrayIntCompressed>> pages, int size, int pageSize,
         long[] pageStart) {
@@ -49,18 +69,31 @@ public abstract class IndexReader {
     }
 
     public IntIndexReader(File indexFile) throws IOException {
-      this(new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(indexFile, "r")), 0,
-          indexFile.length());//$NON-NLS-1$
+      this(new SharedChannel(indexFile), 0, indexFile.length());
       this.indexFile = indexFile;
     }
 
-    public IntIndexReader(SimpleBufferedRandomAccessInputStream in, long start, long length)
-        throws IOException {
-      this.in = in;
-      this.in.seek(start + length - 8);
+    public IntIndexReader(SharedChannel channel, long start, long length) throws IOException {
+      this(channel, 0, start, length);
+    }
+
+    /**
+     * Reads the index stored in a section of an {@link IndexContainer}.
+     */
+    public IntIndexReader(IndexContainer.Section section) throws IOException {
+      this(section.channel, section.start, 0, section.length);
+    }
+
+    /**
+     * @param base position of the index file within the channel, the
+     * positions stored in the file are relative to it
+     */
+    IntIndexReader(SharedChannel channel, long base, long start, long length) throws IOException {
+      this.channel = channel;
 
-      int pageSize = this.in.readInt();
-      int size = this.in.readInt();
+      ByteBuffer trailer = read(channel, base + start + length - 8, 8);
+      int pageSize = trailer.getInt();
+      int size = trailer.getInt();
 
       init(size, pageSize);
 
@@ -68,20 +101,17 @@ public abstract class IndexReader {
 
       pageStart = new long[pages];
 
-      this.in.seek(start + length - 8 - (pageStart.length * 8));
-      this.in.readLongArray(pageStart);
+      read(channel, base + start + length - 8 - (pageStart.length * 8), pageStart.length * 8)
+          .asLongBuffer().get(pageStart);
+      for (int ii = 0; ii < pages; ii++)
+        pageStart[ii] += base;
     }
 
     private synchronized void open() {
       try {
-        if (in != null) return;
+        if (channel != null) return;
 
-        if (indexFile == null) {
-          throw new IOException(Messages.IndexReader_Error_IndexIsEmbedded.pattern);
-        }
-
-        in = new SimpleBufferedRandomAccessInputStream(
-            new RandomAccessFile(this.indexFile, "r"));//$NON-NLS-1$
+        channel = new SharedChannel(indexFile);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
@@ -90,46 +120,62 @@ public abstract class IndexReader {
     public synchronized void close() {
       unload();
 
-      if (in != null) {
+      // without a file, the channel belongs to a container
+      if (channel != null && indexFile != null) {
         try {
-          in.close();
+          channel.close();
         } catch (IOException ignore) {
           // $JL-EXC$
         } finally {
-          in = null;
+          channel = null;
         }
       }
     }
 
-    @Override protected ArrayIntCompressed getPage(int page) {
-      SoftReference<ArrayIntCompressed> ref = pages.get(page);
-      ArrayIntCompressed array = ref == null ? null : ref.get();
-      if (array == null) {
-        synchronized (LOCK) {
-          ref = pages.get(page);
-          array = ref == null ? null : ref.get();
+    public void setPageCache(PageCache cache) {
+      unload();
+      this.cacheSlots = cache != null ? cache.register(pageStart.length) : null;
+      this.cache = cache;
+    }
 
-          if (array == null) {
-            try {
-              byte[] buffer = null;
+    @Override public synchronized void unload() {
+      super.unload();
+      if (cache != null) cache.invalidate(cacheSlots);
+    }
 
-              this.in.seek(pageStart[page]);
+    private ArrayIntCompressed cachedPage(int page, boolean record) {
+      if (cache != null) {
+        return (ArrayIntCompressed) (record ? cache.get(cacheSlots, page)
+            : cache.peek(cacheSlots, page));
+      }
 
-              buffer = new byte[(int) (pageStart[page + 1] - pageStart[page])];
-              if (this.in.read(buffer) != buffer.length) throw new IOException();
+      SoftReference<ArrayIntCompressed> ref = pages.get(page);
+      return ref == null ? null : ref.get();
+    }
+
+    @Override protected ArrayIntCompressed getPage(final int page) {
+      ArrayIntCompressed array = cachedPage(page, true);
+      if (array != null) return array;
 
-              array = new ArrayIntCompressed(buffer);
+      return loadPage(loading, page, new Callable<ArrayIntCompressed>() {
+        public ArrayIntCompressed call() throws IOException {
+          // another thread may have finished loading in the meantime
+          ArrayIntCompressed array = cachedPage(page, false);
+          if (array == null) {
+            byte[] buffer = readPage(channel, pageStart, page);
+            array = new ArrayIntCompressed(buffer);
 
+            if (cache != null) {
+              cache.put(cacheSlots, page, array, buffer.length);
+            } else {
               synchronized (pages) {
                 pages.put(page, new SoftReference<ArrayIntCompressed>(array));
               }
-            } catch (IOException e) {
-              throw new RuntimeException(e);
             }
           }
+          return array;
         }
-      }
-      return array;
+      });
     }
 
     public void delete() {
@@ -139,9 +185,10 @@ public abstract class IndexReader {
     }
   }
 
-  /* package */static class IntIndex1NReader implements IIndexReader.IOne2ManyIndex {
+  /* package */static class IntIndex1NReader
+      implements IIndexReader.IOne2ManyIndex, PageCache.Client {
     File indexFile;
-    SimpleBufferedRandomAccessInputStream in;
+    SharedChannel channel;
     IntIndexReader header;
     IntIndexReader body;
 
@@ -152,27 +199,35 @@ public abstract class IndexReader {
         open();
 
         long indexLength = indexFile.length();
-        in.seek(indexLength - 8);
-        long divider = in.readLong();
+        long divider = read(channel, indexLength - 8, 8).getLong();
 
-        this.header = new IntIndexReader(in, divider, indexLength - divider - 8);
-        this.body = new IntIndexReader(in, 0, divider);
-
-        this.body.LOCK = this.header.LOCK;
+        this.header = new IntIndexReader(channel, divider, indexLength - divider - 8);
+        this.body = new IntIndexReader(channel, 0, divider);
       } catch (RuntimeException e) {
         close();
         throw e;
       }
     }
 
+    /**
+     * Reads the index stored in a section of an {@link IndexContainer}.
+     */
+    public IntIndex1NReader(IndexContainer.Section section) throws IOException {
+      this.channel = section.channel;
+
+      long divider = read(channel, section.start + section.length - 8, 8).getLong();
+
+      this.header = new IntIndexReader(channel, section.start, divider,
+          section.length - divider - 8);
+      this.body = new IntIndexReader(channel, section.start, 0, divider);
+    }
+
     public IntIndex1NReader(File indexFile, IIndexReader.IOne2OneIndex header,
         IIndexReader.IOne2OneIndex body) {
       this.indexFile = indexFile;
       this.header = ((IntIndexReader) header);
       this.body = ((IntIndexReader) body);
 
-      this.body.LOCK = this.header.LOCK;
-
       open();
     }
 
@@ -181,19 +236,27 @@ public abstract class IndexReader {
 
       int length = body.get(p);
 
-      return body.getNext(p + 1, length);
+      return IndexWriter.EntryCoder.decode(index, body.getNext(p + 1, length));
+    }
+
+    public int[] getAll(int[] index, int offset, int length, int[] offsets, int[] targets) {
+      return IndexReader.getAll(header, body, false, index, offset, length, offsets, targets);
+    }
+
+    public void setPageCache(PageCache cache) {
+      header.setPageCache(cache);
+      body.setPageCache(cache);
     }
 
     protected synchronized void open() {
       try {
-        if (in == null) {
+        if (channel == null) {
 
-          in = new SimpleBufferedRandomAccessInputStream(
-              new RandomAccessFile(this.indexFile, "r"));//$NON-NLS-1$
+          channel = new SharedChannel(this.indexFile);
 
-          if (this.header != null) this.header.in = in;
+          if (this.header != null) this.header.channel = channel;
 
-          if (this.body != null) this.body.in = in;
+          if (this.body != null) this.body.channel = channel;
         }
       } catch (IOException e) {
         throw new RuntimeException(e);
@@ -201,18 +264,19 @@ public abstract class IndexReader {
     }
 
     public synchronized void close() {
-      header.unload();
-      body.unload();
+      if (header != null) header.unload();
+      if (body != null) body.unload();
 
-      if (in != null) {
+      // without a file, the channel belongs to a container
+      if (channel != null && indexFile != null) {
         try {
-          in.close();
+          channel.close();
         } catch (IOException ignore) {
           // $JL-EXC$
         } finally {
-          in = null;
-          if (this.header != null) this.header.in = null;
-          if (this.body != null) this.body.in = null;
+          channel = null;
+          if (this.header != null) this.header.channel = null;
+          if (this.body != null) this.body.channel = null;
         }
       }
     }
@@ -246,7 +310,12 @@ public abstract class IndexReader {
       super(indexFile, header, body);
     }
 
+    public IntIndex1NSortedReader(IndexContainer.Section section) throws IOException {
+      super(section);
+    }
+
     public int[] get(int index) {
+      int owner = index;
       int p[] = null;
 
       if (index + 1 < header.size()) {
@@ -263,7 +332,11 @@ public abstract class IndexReader {
         p[1] = body.size() + 1;
       }
 
-      return body.getNext(p[0] - 1, p[1] - p[0]);
+      return IndexWriter.EntryCoder.decode(owner, body.getNext(p[0] - 1, p[1] - p[0]));
+    }
+
+    public int[] getAll(int[] index, int offset, int length, int[] offsets, int[] targets) {
+      return IndexReader.getAll(header, body, true, index, offset, length, offsets, targets);
     }
   }
 
@@ -278,25 +351,31 @@ public abstract class IndexReader {
       super(indexFile, header, body);
     }
 
+    public InboundReader(IndexContainer.Section section) throws IOException {
+      super(section);
+    }
+
     public int[] getObjectsOf(Serializable key) throws SnapshotException, IOException {
       if (key == null) return new int[0];
 
       int[] pos = (int[]) key;
 
-      synchronized (this) {
-        return body.getNext(pos[0], pos[1]);
-      }
+      return IndexWriter.EntryCoder.decode(pos[2], body.getNext(pos[0], pos[1]));
     }
   }
 
   public static class LongIndexReader extends IndexWriter.LongIndex
-      implements IIndexReader.IOne2LongIndex {
-    Object LOCK = new Object();
-
+      implements IIndexReader.IOne2LongIndex, PageCache.Client {
     File indexFile;
-    SimpleBufferedRandomAccessInputStream in;
+    SharedChannel channel;
     long[] pageStart;
 
+    PageCache cache;
+    PageCache.Slots cacheSlots;
+
+    ConcurrentMap<Integer, FutureTask<ArrayLongCompressed>> loading =
+        new ConcurrentHashMap<Integer, FutureTask<ArrayLongCompressed>>();
+
     public LongIndexReader(File indexFile, HashMapIntObject<Object> pages, int size, int pageSize,
         long[] pageStart) throws IOException {
       this.size = size;
@@ -310,20 +389,33 @@ public abstract class IndexReader {
     }
 
     public LongIndexReader(File indexFile) throws IOException {
-      this(new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(indexFile, "r")), 0,
-          indexFile.length());//$NON-NLS-1$
+      this(new SharedChannel(indexFile), 0, indexFile.length());
       this.indexFile = indexFile;
 
       open();
     }
 
-    protected LongIndexReader(SimpleBufferedRandomAccessInputStream in, long start, long length)
-        throws IOException {
-      this.in = in;
-      this.in.seek(start + length - 8);
+    protected LongIndexReader(SharedChannel channel, long start, long length) throws IOException {
+      this(channel, 0, start, length);
+    }
 
-      int pageSize = this.in.readInt();
-      int size = this.in.readInt();
+    /**
+     * Reads the index stored in a section of an {@link IndexContainer}.
+     */
+    public LongIndexReader(IndexContainer.Section section) throws IOException {
+      this(section.channel, section.start, 0, section.length);
+    }
+
+    /**
+     * @param base position of the index file within the channel, the
+     * positions stored in the file are relative to it
+     */
+    LongIndexReader(SharedChannel channel, long base, long start, long length) throws IOException {
+      this.channel = channel;
+
+      ByteBuffer trailer = read(channel, base + start + length - 8, 8);
+      int pageSize = trailer.getInt();
+      int size = trailer.getInt();
 
       init(size, pageSize);
 
@@ -331,64 +423,83 @@ public abstract class IndexReader {
 
       pageStart = new long[pages];
 
-      this.in.seek(start + length - 8 - (pageStart.length * 8));
-      this.in.readLongArray(pageStart);
+      read(channel, base + start + length - 8 - (pageStart.length * 8), pageStart.length * 8)
+          .asLongBuffer().get(pageStart);
+      for (int ii = 0; ii < pages; ii++)
+        pageStart[ii] += base;
     }
 
     private synchronized void open() throws IOException {
-      if (in != null) return;
+      if (channel != null) return;
 
-      if (indexFile == null) {
-        throw new IOException(Messages.IndexReader_Error_IndexIsEmbedded.pattern);
-      }
-
-      in = new SimpleBufferedRandomAccessInputStream(
-          new RandomAccessFile(this.indexFile, "r"));//$NON-NLS-1$
+      channel = new SharedChannel(indexFile);
     }
 
     public synchronized void close() {
       unload();
 
-      if (in != null) {
+      // without a file, the channel belongs to a container
+      if (channel != null && indexFile != null) {
         try {
-          in.close();
+          channel.close();
         } catch (IOException ignore) {
           // $JL-EXC$
         } finally {
-          in = null;
+          channel = null;
         }
       }
     }
 
-    @SuppressWarnings("unchecked") @Override protected ArrayLongCompressed getPage(int page) {
-      SoftReference<ArrayLongCompressed> ref = (SoftReference<ArrayLongCompressed>) pages.get(page);
-      ArrayLongCompressed array = ref == null ? null : ref.get();
-      if (array == null) {
-        synchronized (LOCK) {
-          ref = (SoftReference<ArrayLongCompressed>) pages.get(page);
-          array = ref == null ? null : ref.get();
+    public void setPageCache(PageCache cache) {
+      unload();
+      this.cacheSlots = cache != null ? cache.register(pageStart.length) : null;
+      this.cache = cache;
+    }
 
-          if (array == null) {
-            try {
-              byte[] buffer = null;
+    @Override public synchronized void unload() {
+      super.unload();
+      if (cache != null) cache.invalidate(cacheSlots);
+    }
 
-              this.in.seek(pageStart[page]);
+    @SuppressWarnings("unchecked") private ArrayLongCompressed cachedPage(int page,
+        boolean record) {
+      if (cache != null) {
+        return (ArrayLongCompressed) (record ? cache.get(cacheSlots, page)
+            : cache.peek(cacheSlots, page));
+      }
 
-              buffer = new byte[(int) (pageStart[page + 1] - pageStart[page])];
-              if (this.in.read(buffer) != buffer.length) throw new IOException();
+      // the pages are kept in a hash map which may be rehashed by a put
+      HashMapIntObject<Object> pages = this.pages;
+      SoftReference<ArrayLongCompressed> ref;
+      synchronized (pages) {
+        ref = (SoftReference<ArrayLongCompressed>) pages.get(page);
+      }
+      return ref == null ? null : ref.get();
+    }
 
-              array = new ArrayLongCompressed(buffer);
+    @Override protected ArrayLongCompressed getPage(final int page) {
+      ArrayLongCompressed array = cachedPage(page, true);
+      if (array != null) return array;
 
+      return loadPage(loading, page, new Callable<ArrayLongCompressed>() {
+        public ArrayLongCompressed call() throws IOException {
+          // another thread may have finished loading in the meantime
+          ArrayLongCompressed array = cachedPage(page, false);
+          if (array == null) {
+            byte[] buffer = readPage(channel, pageStart, page);
+            array = new ArrayLongCompressed(buffer);
+
+            if (cache != null) {
+              cache.put(cacheSlots, page, array, buffer.length);
+            } else {
               synchronized (pages) {
                 pages.put(page, new SoftReference<ArrayLongCompressed>(array));
               }
-            } catch (IOException e) {
-              throw new RuntimeException(e);
             }
           }
+          return array;
         }
-      }
-      return array;
+      });
     }
 
     public void delete() {
@@ -398,9 +509,9 @@ public abstract class IndexReader {
     }
   }
 
-  public static class LongIndex1NReader implements IIndexReader {
+  public static class LongIndex1NReader implements IIndexReader, PageCache.Client {
     File indexFile;
-    SimpleBufferedRandomAccessInputStream in;
+    SharedChannel channel;
     IntIndexReader header;
     LongIndexReader body;
 
@@ -410,13 +521,10 @@ public abstract class IndexReader {
       open();
 
       long indexLength = indexFile.length();
-      in.seek(indexLength - 8);
-      long divider = in.readLong();
+      long divider = read(channel, indexLength - 8, 8).getLong();
 
-      this.header = new IntIndexReader(in, divider, indexLength - divider - 8);
-      this.body = new LongIndexReader(in, 0, divider);
-
-      this.body.LOCK = this.header.LOCK;
+      this.header = new IntIndexReader(channel, divider, indexLength - divider - 8);
+      this.body = new LongIndexReader(channel, 0, divider);
     }
 
     public long[] get(int index) {
@@ -429,16 +537,20 @@ public abstract class IndexReader {
       return body.getNext(p, length);
     }
 
+    public void setPageCache(PageCache cache) {
+      header.setPageCache(cache);
+      body.setPageCache(cache);
+    }
+
     protected synchronized void open() {
       try {
-        if (in == null) {
+        if (channel == null) {
 
-          in = new SimpleBufferedRandomAccessInputStream(
-              new RandomAccessFile(this.indexFile, "r"));//$NON-NLS-1$
+          channel = new SharedChannel(this.indexFile);
 
-          if (this.header != null) this.header.in = in;
+          if (this.header != null) this.header.channel = channel;
 
-          if (this.body != null) this.body.in = in;
+          if (this.body != null) this.body.channel = channel;
         }
       } catch (IOException e) {
         throw new RuntimeException(e);
@@ -448,13 +560,13 @@ public abstract class IndexReader {
     public synchronized void close() {
       unload();
 
-      if (in != null) {
+      if (channel != null) {
         try {
-          in.close();
+          channel.close();
         } catch (IOException ignore) {
           // $JL-EXC$
         } finally {
-          in = this.header.in = this.body.in = null;
+          channel = this.header.channel = this.body.channel = null;
         }
       }
     }
@@ -474,4 +586,233 @@ public abstract class IndexReader {
       if (indexFile != null) indexFile.delete();
     }
   }
+
+  // //////////////////////////////////////////////////////////////
+  // bulk reads of 1:N indices
+  // //////////////////////////////////////////////////////////////
+
+  /* entries closer than this are read with one bulk read */
+  private static final int MAX_GAP = 16;
+  /* but a bulk read is split once it spans that many values */
+  private static final int MAX_RUN = 64 * 1024;
+
+  /**
+   * Implements {@link IIndexReader.IOne2ManyIndex#getAll} for both families of
+   * readers. The requested indices are sorted, hence the entries are usually
+   * located in the order of the body and runs of nearby entries are decoded
+   * with one {@link IIndexReader.IOne2OneIndex#getNext(int, int, int[], int)}.
+   *
+   * @param sorted true if the header stores the start of each entry (plus 1,
+   * 0 for empty entries), false if it points to the length of the entry
+   */
+  static int[] getAll(IIndexReader.IOne2OneIndex header, IIndexReader.IOne2OneIndex body,
+      boolean sorted, int[] index, int offset, int length, int[] offsets, int[] targets) {
+    int[] keys = new int[length];
+    int[] order = new int[length];
+    for (int ii = 0; ii < length; ii++) {
+      keys[ii] = index[offset + ii];
+      order[ii] = ii;
+    }
+    if (length > 1) ArrayUtils.sort(keys, order, 0, length);
+
+    // locate the entries in the body
+    int[] from = new int[length];
+    int[] to = new int[length];
+    offsets[0] = 0;
+
+    for (int ii = 0; ii < length; ii++) {
+      int key = keys[ii];
+      if (sorted) {
+        int p = header.get(key);
+        if (p != 0) {
+          int next = 0;
+          for (int jj = key + 1; next < p && jj < header.size(); jj++)
+            next = header.get(jj);
+          if (next < p) next = body.size() + 1;
+
+          from[ii] = p - 1;
+          to[ii] = next - 1;
+        }
+      } else {
+        int p = header.get(key);
+        from[ii] = p + 1;
+        to[ii] = p + 1 + body.get(p);
+      }
+      offsets[order[ii] + 1] = to[ii] - from[ii];
+    }
+
+    for (int ii = 0; ii < length; ii++)
+      offsets[ii + 1] += offsets[ii];
+
+    if (targets == null || targets.length < offsets[length]) targets = new int[offsets[length]];
+
+    // read runs of nearby entries at once
+    int[] run = null;
+    for (int ii = 0; ii < length; ) {
+      if (from[ii] == to[ii]) {
+        ii++;
+        continue;
+      }
+
+      int runFrom = from[ii];
+      int runTo = to[ii];
+      int last = ii + 1;
+      for (; last < length; last++) {
+        if (from[last] == to[last]) continue;
+        if (from[last] < runFrom || from[last] - runTo > MAX_GAP
+            || Math.max(runTo, to[last]) - runFrom > MAX_RUN) break;
+        runTo = Math.max(runTo, to[last]);
+      }
+
+      if (run == null || run.length < runTo - runFrom) run = new int[runTo - runFrom];
+      body.getNext(runFrom, runTo - runFrom, run, 0);
+
+      for (; ii < last; ii++) {
+        int entryLength = to[ii] - from[ii];
+        if (entryLength == 0) continue;
+
+        int entryOffset = offsets[order[ii]];
+        System.arraycopy(run, from[ii] - runFrom, targets, entryOffset, entryLength);
+        IndexWriter.EntryCoder.decode(keys[ii], targets, entryOffset, entryLength);
+      }
+    }
+
+    return targets;
+  }
+
+  // //////////////////////////////////////////////////////////////
+  // page loading
+  // //////////////////////////////////////////////////////////////
+
+  /**
+   * The file channel of an index file, shared by all its readers. A thread
+   * interrupted while reading closes a file channel for every thread, so the
+   * channel is reopened then and the read repeated; the interrupt is kept
+   * for the caller to handle.
+   */
+  public static class SharedChannel {
+    private final File file;
+    private FileChannel channel;
+
+    public SharedChannel(File file) throws IOException {
+      this.file = file;
+      this.channel = openChannel(file);
+    }
+
+    void readFully(long position, ByteBuffer buffer) throws IOException {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          FileChannel current = get();
+          try {
+            IndexReader.readFully(current, position, buffer);
+            return;
+          } catch (ClosedChannelException e) {
+            interrupted |= reopen(current);
+          }
+        }
+      } finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+    }
+
+    MappedByteBuffer map(long position, long size) throws IOException {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          FileChannel current = get();
+          try {
+            return current.map(FileChannel.MapMode.READ_ONLY, position, size);
+          } catch (ClosedChannelException e) {
+            interrupted |= reopen(current);
+          }
+        }
+      } finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+    }
+
+    private synchronized FileChannel get() throws ClosedChannelException {
+      if (channel == null) throw new ClosedChannelException();
+      return channel;
+    }
+
+    /**
+     * Replaces the channel closed by an interrupt, unless it was closed by
+     * {@link #close()} or is already replaced. The interrupt status of the
+     * current thread is cleared, otherwise the next read would fail again.
+     *
+     * @return true if the current thread was interrupted
+     */
+    private synchronized boolean reopen(FileChannel closed) throws IOException {
+      boolean interrupted = Thread.interrupted();
+      if (channel == closed) channel = openChannel(file);
+      return interrupted;
+    }
+
+    public synchronized void close() throws IOException {
+      FileChannel current = channel;
+      channel = null;
+      if (current != null) current.close();
+    }
+  }
+
+  static FileChannel openChannel(File indexFile) throws IOException {
+    if (indexFile == null) {
+      throw new IOException(Messages.IndexReader_Error_IndexIsEmbedded.pattern);
+    }
+    return new RandomAccessFile(indexFile, "r").getChannel();//$NON-NLS-1$
+  }
+
+  static ByteBuffer read(SharedChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    channel.readFully(position, buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  static byte[] readPage(SharedChannel channel, long[] pageStart, int page) throws IOException {
+    byte[] buffer = new byte[(int) (pageStart[page + 1] - pageStart[page])];
+    channel.readFully(pageStart[page], ByteBuffer.wrap(buffer));
+    return buffer;
+  }
+
+  private static void readFully(FileChannel channel, long position, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+    }
+  }
+
+  /**
+   * Runs the loader unless another thread is already loading the same page,
+   * in which case its result is awaited.
+   */
+  static <T> T loadPage(ConcurrentMap<Integer, FutureTask<T>> loading, int page,
+      Callable<T> loader) {
+    Integer key = Integer.valueOf(page);
+
+    FutureTask<T> task = loading.get(key);
+    if (task == null) {
+      FutureTask<T> newTask = new FutureTask<T>(loader);
+      task = loading.putIfAbsent(key, newTask);
+      if (task == null) {
+        task = newTask;
+        try {
+          newTask.run();
+        } finally {
+          loading.remove(key, newTask);
+        }
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
 }
@@ -20,8 +20,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayIntCompressed;
 import org.eclipse.mat.collect.ArrayLong;
@@ -35,6 +42,7 @@ import org.eclipse.mat.collect.IteratorLong;
 import org.eclipse.mat.collect.SetInt;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2LongIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2OneIndex;
+import org.eclipse.mat.parser.internal.util.ExecutorUtil;
 import org.eclipse.mat.parser.io.BitInputStream;
 import org.eclipse.mat.parser.io.BitOutputStream;
 import org.eclipse.mat.util.IProgressListener;
@@ -51,27 +59,241 @@ public abstract class IndexWriter {
   // integer based indices
   // //////////////////////////////////////////////////////////////
 
+  /**
+   * The addresses of all objects, sorted once all are added. The addresses are
+   * kept in blocks of fixed size, so that adding never copies more than the
+   * first block. Sorting sorts the blocks in parallel, then merges them
+   * pairwise, recycling the blocks of the merged runs.
+   */
   public static class Identifier implements IIndexReader.IOne2LongIndex {
-    long[] identifiers;
+    private static final int MIN_SIZE_FOR_BUCKETS = 1024;
+
+    private static final int BLOCK_SHIFT = 20;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    long[][] blocks;
     int size;
 
+    // lookup table for the sorted identifiers: the addresses between
+    // lowerBound and upperBound are split into buckets of 2^shift bytes,
+    // buckets[b] holds the index of the first identifier of bucket b
+    int[] buckets;
+    long lowerBound;
+    long upperBound;
+    int shift;
+
     public void add(long id) {
-      if (identifiers == null) {
-        identifiers = new long[10000];
+      buckets = null;
+
+      if (blocks == null) {
+        blocks = new long[][] { new long[10000] };
         size = 0;
       }
 
-      if (size + 1 > identifiers.length) {
-        int newCapacity = (identifiers.length * 3) / 2 + 1;
-        if (newCapacity < size + 1) newCapacity = size + 1;
-        identifiers = copyOf(identifiers, newCapacity);
+      int block = size >>> BLOCK_SHIFT;
+      if (block == blocks.length) {
+        blocks = Arrays.copyOf(blocks, block << 1);
+      }
+      if (blocks[block] == null) {
+        blocks[block] = new long[BLOCK_SIZE];
+      } else if ((size & BLOCK_MASK) == blocks[block].length) {
+        // only the first block grows
+        int newCapacity = (blocks[block].length * 3) / 2 + 1;
+        blocks[block] = copyOf(blocks[block], Math.min(newCapacity, BLOCK_SIZE));
+      }
+
+      blocks[block][size++ & BLOCK_MASK] = id;
+    }
+
+    public void sort() throws IOException {
+      if (size > BLOCK_SIZE) {
+        parallelSort();
+      } else if (size > 0) {
+        Arrays.sort(blocks[0], 0, size);
+      }
+      createBuckets();
+    }
+
+    /**
+     * Sorts the blocks in parallel, then merges pairs of sorted runs of
+     * blocks, the pairs of one round in parallel, until one run is left. A
+     * merge writes into blocks taken from a pool and returns each block of
+     * its input to the pool as soon as it is consumed, so the addresses are
+     * not copied as a whole: a merge needs at most two blocks beyond the ones
+     * its input frees.
+     */
+    private void parallelSort() throws IOException {
+      int count = ((size - 1) >>> BLOCK_SHIFT) + 1;
+      ExecutorService executor = ExecutorUtil.getSharedPool();
+      List<Future<Run>> tasks = new ArrayList<Future<Run>>(count);
+
+      // sort the blocks, all of them have the full size
+      for (int b = 0; b < count; b++) {
+        final Run run = new Run(new long[][] { blocks[b] },
+            Math.min(size - (b << BLOCK_SHIFT), BLOCK_SIZE));
+        tasks.add(executor.submit(new Callable<Run>() {
+          public Run call() {
+            Arrays.sort(run.blocks[0], 0, run.length);
+            return run;
+          }
+        }));
+      }
+      List<Run> runs = waitFor(tasks);
+      blocks = null;
+
+      final BlockPool pool = new BlockPool();
+      while (runs.size() > 1) {
+        tasks.clear();
+        for (int r = 0; r + 1 < runs.size(); r += 2) {
+          final Run a = runs.get(r);
+          final Run b = runs.get(r + 1);
+          tasks.add(executor.submit(new Callable<Run>() {
+            public Run call() {
+              return merge(a, b, pool);
+            }
+          }));
+        }
+        Run odd = runs.size() % 2 == 1 ? runs.get(runs.size() - 1) : null;
+
+        runs = waitFor(tasks);
+        if (odd != null) runs.add(odd);
       }
 
-      identifiers[size++] = id;
+      blocks = runs.get(0).blocks;
     }
 
-    public void sort() {
-      Arrays.sort(identifiers, 0, size);
+    /**
+     * Sorted values stored in blocks, all of them full except the last one.
+     */
+    private static final class Run {
+      final long[][] blocks;
+      final int length;
+
+      Run(long[][] blocks, int length) {
+        this.blocks = blocks;
+        this.length = length;
+      }
+    }
+
+    /**
+     * The blocks freed by the merges, for the output of the merges.
+     */
+    private static final class BlockPool {
+      private final List<long[]> free = new ArrayList<long[]>();
+
+      synchronized long[] take() {
+        return free.isEmpty() ? new long[BLOCK_SIZE] : free.remove(free.size() - 1);
+      }
+
+      synchronized void give(long[] block) {
+        free.add(block);
+      }
+    }
+
+    private static Run merge(Run a, Run b, BlockPool pool) {
+      int length = a.length + b.length;
+      long[][] target = new long[((length - 1) >>> BLOCK_SHIFT) + 1][];
+
+      // the current block of each input and the position within it
+      int ia = 0, ib = 0;
+      long[] blockA = a.blocks[0];
+      long[] blockB = b.blocks[0];
+      long[] out = null;
+      for (int position = 0; position < length; position++) {
+        if ((position & BLOCK_MASK) == 0) {
+          out = pool.take();
+          target[position >>> BLOCK_SHIFT] = out;
+        }
+
+        if (ib == b.length || (ia < a.length && blockA[ia & BLOCK_MASK] <= blockB[ib & BLOCK_MASK])) {
+          out[position & BLOCK_MASK] = blockA[ia & BLOCK_MASK];
+          ia++;
+          if ((ia & BLOCK_MASK) == 0 || ia == a.length) {
+            // the block is consumed
+            a.blocks[(ia - 1) >>> BLOCK_SHIFT] = null;
+            pool.give(blockA);
+            if (ia < a.length) blockA = a.blocks[ia >>> BLOCK_SHIFT];
+          }
+        } else {
+          out[position & BLOCK_MASK] = blockB[ib & BLOCK_MASK];
+          ib++;
+          if ((ib & BLOCK_MASK) == 0 || ib == b.length) {
+            b.blocks[(ib - 1) >>> BLOCK_SHIFT] = null;
+            pool.give(blockB);
+            if (ib < b.length) blockB = b.blocks[ib >>> BLOCK_SHIFT];
+          }
+        }
+      }
+      return new Run(target, length);
+    }
+
+    /**
+     * @return the results of the tasks; after a failure the tasks not started
+     * yet are cancelled
+     */
+    private static <V> List<V> waitFor(List<Future<V>> tasks) throws IOException {
+      List<V> results = new ArrayList<V>(tasks.size());
+      try {
+        for (Future<V> task : tasks)
+          results.add(task.get());
+        return results;
+      } catch (InterruptedException e) {
+        for (Future<V> task : tasks)
+          task.cancel(false);
+        Thread.currentThread().interrupt();
+        IOException ioe = new IOException(e.getMessage());
+        ioe.initCause(e);
+        throw ioe;
+      } catch (ExecutionException e) {
+        for (Future<V> task : tasks)
+          task.cancel(false);
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        IOException ioe = new IOException(cause.getMessage());
+        ioe.initCause(cause);
+        throw ioe;
+      }
+    }
+
+    /*
+     * Heap addresses are spread fairly evenly, hence a bucket narrows the
+     * binary search to a handful of entries. The extreme values (e.g. the
+     * dummy address of the system class loader or fake classes) are left out
+     * of the bucket range.
+     */
+    private void createBuckets() {
+      buckets = null;
+      if (size < MIN_SIZE_FOR_BUCKETS) return;
+
+      int outliers = size / 1024;
+      int lowerIndex = outliers;
+      int upperIndex = size - 1 - outliers;
+      lowerBound = value(lowerIndex);
+      upperBound = value(upperIndex);
+
+      // about 4 identifiers per bucket
+      int maxBuckets = Integer.highestOneBit(size) >> 2;
+      long range = upperBound - lowerBound;
+      shift = 0;
+      while ((range >>> shift) >= maxBuckets)
+        shift++;
+
+      int bucketCount = (int) (range >>> shift) + 1;
+      int[] answer = new int[bucketCount + 1];
+      int index = lowerIndex;
+      for (int b = 0; b <= bucketCount; b++) {
+        long bucketStart = lowerBound + ((long) b << shift);
+        while (index <= upperIndex && value(index) < bucketStart)
+          index++;
+        answer[b] = index;
+      }
+      buckets = answer;
+    }
+
+    private long value(int index) {
+      return blocks[index >>> BLOCK_SHIFT][index & BLOCK_MASK];
     }
 
     public int size() {
@@ -81,15 +303,51 @@ public abstract class IndexWriter {
     public long get(int index) {
       if (index < 0 || index >= size) throw new IndexOutOfBoundsException();
 
-      return identifiers[index];
+      return value(index);
     }
 
     public int reverse(long val) {
-      int a, c;
-      for (a = 0, c = size; a < c; ) {
+      if (buckets != null && val >= lowerBound && val <= upperBound) {
+        int bucket = (int) ((val - lowerBound) >>> shift);
+        return reverse(val, buckets[bucket], buckets[bucket + 1]);
+      }
+      return reverse(val, 0, size);
+    }
+
+    /**
+     * Resolves many addresses at once. For sorted input, the search for an
+     * address starts where the search for its predecessor ended.
+     */
+    public void reverse(long[] in, int[] out) {
+      reverse(in, in.length, out);
+    }
+
+    public void reverse(long[] in, int length, int[] out) {
+      int low = 0;
+      long last = Long.MIN_VALUE;
+      for (int ii = 0; ii < length; ii++) {
+        long val = in[ii];
+        if (val < last) low = 0;
+
+        int answer;
+        if (buckets != null && val >= lowerBound && val <= upperBound) {
+          int bucket = (int) ((val - lowerBound) >>> shift);
+          answer = reverse(val, Math.max(low, buckets[bucket]), buckets[bucket + 1]);
+        } else {
+          answer = reverse(val, low, size);
+        }
+
+        out[ii] = answer;
+        low = answer >= 0 ? answer : -1 - answer;
+        last = val;
+      }
+    }
+
+    private int reverse(long val, int a, int c) {
+      while (a < c) {
         // Avoid overflow problems by using unsigned divide by 2
         int b = (a + c) >>> 1;
-        long probeVal = get(b);
+        long probeVal = value(b);
         if (val < probeVal) {
           c = b;
         } else if (probeVal < val) {
@@ -112,7 +370,7 @@ public abstract class IndexWriter {
         }
 
         public long next() {
-          return identifiers[index++];
+          return value(index++);
         }
       };
     }
@@ -120,7 +378,7 @@ public abstract class IndexWriter {
     public long[] getNext(int index, int length) {
       long answer[] = new long[length];
       for (int ii = 0; ii < length; ii++)
-        answer[ii] = identifiers[index + ii];
+        answer[ii] = value(index + ii);
       return answer;
     }
 
@@ -128,7 +386,7 @@ public abstract class IndexWriter {
     }
 
     public void delete() {
-      identifiers = null;
+      blocks = null;
     }
 
     public void unload() throws IOException {
@@ -217,19 +475,20 @@ public abstract class IndexWriter {
 
     public int[] getNext(int index, int length) {
       int answer[] = new int[length];
+      getNext(index, length, answer, 0);
+      return answer;
+    }
+
+    public void getNext(int index, int length, int[] dest, int destOffset) {
       int page = index / pageSize;
       int pageIndex = index % pageSize;
 
-      ArrayIntCompressed array = getPage(page);
-      for (int ii = 0; ii < length; ii++) {
-        answer[ii] = array.get(pageIndex++);
-        if (pageIndex >= pageSize) {
-          array = getPage(++page);
-          pageIndex = 0;
-        }
+      for (int ii = 0; ii < length; ) {
+        int chunk = Math.min(length - ii, pageSize - pageIndex);
+        getPage(page++).get(pageIndex, dest, destOffset + ii, chunk);
+        ii += chunk;
+        pageIndex = 0;
       }
-
-      return answer;
     }
 
     @SuppressWarnings("null") public int[] getAll(int index[]) {
@@ -327,6 +586,20 @@ public abstract class IndexWriter {
     ArrayLong pageStart;
     int[] page;
     int left;
+    boolean variableLength;
+
+    public IntIndexStreamer() {
+      this(false);
+    }
+
+    /**
+     * @param variableLength store each int with as few bytes as it needs
+     * instead of the bits the largest int of the page needs, which suits
+     * mostly small ints
+     */
+    public IntIndexStreamer(boolean variableLength) {
+      this.variableLength = variableLength;
+    }
 
     public IIndexReader.IOne2OneIndex writeTo(File indexFile, IteratorInt iterator)
         throws IOException {
@@ -440,7 +713,9 @@ public abstract class IndexWriter {
     }
 
     private void addPage() throws IOException {
-      ArrayIntCompressed array = new ArrayIntCompressed(page, 0, page.length - left);
+      ArrayIntCompressed array =
+          variableLength ? ArrayIntCompressed.variableLength(page, 0, page.length - left)
+              : new ArrayIntCompressed(page, 0, page.length - left);
 
       byte[] buffer = array.toByteArray();
       out.write(buffer);
@@ -457,6 +732,71 @@ public abstract class IndexWriter {
     }
   }
 
+  /**
+   * Turns the values of a 1:N entry into small numbers for the variable-length
+   * pages of the {@link IntIndexStreamer}: each value is replaced by its
+   * distance to either the previous value of the entry or to the owner of the
+   * entry, whichever is closer. The lowest bit tells which one. The values must
+   * not be negative.
+   */
+  static final class EntryCoder {
+    private static final int MASK = 0x7fffffff;
+
+    int owner;
+    int previous;
+
+    void reset(int owner) {
+      this.owner = owner;
+      this.previous = 0;
+    }
+
+    int encode(int value) {
+      int fromPrevious = distance(value, previous);
+      int fromOwner = distance(value, owner);
+      previous = value;
+
+      if (Math.abs(fromOwner) < Math.abs(fromPrevious)) {
+        return (((fromOwner << 1) ^ (fromOwner >> 31)) << 1) | 1;
+      } else {
+        return ((fromPrevious << 1) ^ (fromPrevious >> 31)) << 1;
+      }
+    }
+
+    int decode(int code) {
+      int zigzag = code >>> 1;
+      int distance = (zigzag >>> 1) ^ -(zigzag & 1);
+      previous = (((code & 1) != 0 ? owner : previous) + distance) & MASK;
+      return previous;
+    }
+
+    /* the shorter way between two values in a ring of 2^31 numbers */
+    private static int distance(int value, int base) {
+      return ((value - base) << 1) >> 1;
+    }
+
+    static void encode(int owner, int[] values, int offset, int length, int[] codes) {
+      EntryCoder coder = new EntryCoder();
+      coder.reset(owner);
+      for (int ii = 0; ii < length; ii++)
+        codes[ii] = coder.encode(values[offset + ii]);
+    }
+
+    /**
+     * Decodes the (beginning of the) entry in place.
+     */
+    static int[] decode(int owner, int[] codes) {
+      decode(owner, codes, 0, codes.length);
+      return codes;
+    }
+
+    static void decode(int owner, int[] codes, int offset, int length) {
+      EntryCoder coder = new EntryCoder();
+      coder.reset(owner);
+      for (int ii = offset; ii < offset + length; ii++)
+        codes[ii] = coder.decode(codes[ii]);
+    }
+  }
+
   public static class IntArray1NWriter {
     int[] header;
     File indexFile;
@@ -464,44 +804,45 @@ public abstract class IndexWriter {
     DataOutputStream out;
     IntIndexStreamer body;
 
+    // scratch buffers for resolving references
+    ReferenceResolver resolver = new ReferenceResolver();
+    int[] objectIds = new int[1024];
+    int[] codes = new int[1024];
+
     public IntArray1NWriter(int size, File indexFile) throws IOException {
       this.header = new int[size];
       this.indexFile = indexFile;
 
       this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
-      this.body = new IntIndexStreamer();
+      this.body = new IntIndexStreamer(true);
       this.body.openStream(this.out, 0);
     }
 
-    public void log(Identifier identifer, int index, ArrayLong references) throws IOException {
-      // remove duplicates and convert to identifiers
-      // keep pseudo reference as first one
-
-      long pseudo = references.firstElement();
-
-      references.sort();
-
-      int[] objectIds = new int[references.size()];
-      int length = 1;
-
-      long current = 0, last = references.firstElement() - 1;
-      for (int ii = 0; ii < objectIds.length; ii++) {
-        current = references.get(ii);
-        if (last != current) {
-          int objectId = identifer.reverse(current);
-
-          if (objectId >= 0) {
-            int jj = (current == pseudo) ? 0 : length++;
-            objectIds[jj] = objectId;
-          }
-        }
+    /**
+     * References to the marked objects are dropped when logging addresses.
+     */
+    public void setExcludedObjects(BitField excluded) {
+      resolver.excluded = excluded;
+    }
 
-        last = current;
+    public void log(Identifier identifer, int index, ArrayLong references) throws IOException {
+      if (objectIds.length < references.size()) {
+        objectIds = new int[Math.max(objectIds.length << 1, references.size())];
       }
-
+      int length = resolver.resolve(identifer, references, objectIds, 0);
       this.set(index, objectIds, 0, length);
     }
 
+    /**
+     * Copies the entries collected by a (thread local) buffer.
+     */
+    public void log(IntArray1NBuffer buffer) throws IOException {
+      for (int ii = 0; ii < buffer.size; ii++) {
+        int offset = buffer.offsets[ii];
+        this.set(buffer.indices[ii], buffer.values, offset, buffer.offsets[ii + 1] - offset);
+      }
+    }
+
     /**
      * must not contain duplicates!
      */
@@ -513,12 +854,29 @@ public abstract class IndexWriter {
       this.set(index, values, 0, values.length);
     }
 
+    /**
+     * must not contain duplicates!
+     */
+    public void log(int index, int[] values, int offset, int length) throws IOException {
+      this.set(index, values, offset, length);
+    }
+
     protected void set(int index, int[] values, int offset, int length) throws IOException {
       header[index] = body.size();
 
       body.add(length);
 
-      body.addAll(values, offset, length);
+      body.addAll(encode(index, values, offset, length), 0, length);
+    }
+
+    /**
+     * @return the values in the scratch buffer, encoded by the
+     * {@link EntryCoder}
+     */
+    protected int[] encode(int index, int[] values, int offset, int length) {
+      if (codes.length < length) codes = new int[Math.max(codes.length << 1, length)];
+      EntryCoder.encode(index, values, offset, length, codes);
+      return codes;
     }
 
     public IIndexReader.IOne2ManyIndex flush() throws IOException {
@@ -560,6 +918,100 @@ public abstract class IndexWriter {
     }
   }
 
+  /**
+   * Converts the references of one object into object ids: removes
+   * duplicates, resolves the addresses as one sorted batch and keeps the
+   * pseudo reference (the class) as first one. References to excluded
+   * objects are dropped. Holds scratch buffers, hence one instance per thread.
+   */
+  static class ReferenceResolver {
+    long[] addresses = new long[1024];
+    int[] ids = new int[1024];
+    BitField excluded;
+
+    int resolve(Identifier identifer, ArrayLong references, int[] objectIds, int offset) {
+      long pseudo = references.firstElement();
+
+      references.sort();
+
+      int size = references.size();
+      if (addresses.length < size) {
+        addresses = new long[Math.max(addresses.length << 1, size)];
+        ids = new int[addresses.length];
+      }
+
+      int unique = 0;
+      long last = references.firstElement() - 1;
+      for (int ii = 0; ii < size; ii++) {
+        long current = references.get(ii);
+        if (last != current) addresses[unique++] = current;
+        last = current;
+      }
+
+      identifer.reverse(addresses, unique, ids);
+
+      int length = 1;
+      for (int ii = 0; ii < unique; ii++) {
+        int objectId = ids[ii];
+        if (objectId >= 0) {
+          if (addresses[ii] == pseudo) {
+            objectIds[offset] = objectId;
+          } else if (excluded == null || !excluded.get(objectId)) {
+            objectIds[offset + length++] = objectId;
+          }
+        }
+      }
+
+      return length;
+    }
+  }
+
+  /**
+   * Collects 1:N entries on a worker thread. The references are resolved to
+   * object ids when logged, so that merging into an {@link IntArray1NWriter}
+   * is a mere copy.
+   */
+  public static class IntArray1NBuffer {
+    ReferenceResolver resolver = new ReferenceResolver();
+    int size;
+    int[] indices = new int[1024];
+    int[] offsets = new int[1025];
+    int[] values = new int[16 * 1024];
+
+    public void setExcludedObjects(BitField excluded) {
+      resolver.excluded = excluded;
+    }
+
+    public void log(Identifier identifer, int index, ArrayLong references) {
+      if (size + 1 == indices.length) {
+        indices = Arrays.copyOf(indices, indices.length << 1);
+        offsets = Arrays.copyOf(offsets, offsets.length << 1);
+      }
+
+      int offset = offsets[size];
+      if (offset + references.size() > values.length) {
+        values = Arrays.copyOf(values, Math.max(values.length << 1, offset + references.size()));
+      }
+
+      int length = resolver.resolve(identifer, references, values, offset);
+
+      indices[size] = index;
+      offsets[++size] = offset + length;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int getIndex(int ii) {
+      return indices[ii];
+    }
+
+    public void clear() {
+      size = 0;
+    }
+  }
+
   public static class IntArray1NSortedWriter extends IntArray1NWriter {
     public IntArray1NSortedWriter(int size, File indexFile) throws IOException {
       super(size, indexFile);
@@ -568,7 +1020,7 @@ public abstract class IndexWriter {
     protected void set(int index, int[] values, int offset, int length) throws IOException {
       header[index] = body.size() + 1;
 
-      body.addAll(values, offset, length);
+      body.addAll(encode(index, values, offset, length), 0, length);
     }
 
     protected IIndexReader.IOne2ManyIndex createReader(IIndexReader.IOne2OneIndex headerIndex,
@@ -578,6 +1030,9 @@ public abstract class IndexWriter {
   }
 
   public static class InboundWriter {
+    /* initial capacity of the in-memory buffers of a segment */
+    private static final int MIN_CAPACITY = 1024;
+
     int size;
     File indexFile;
 
@@ -586,10 +1041,31 @@ public abstract class IndexWriter {
     BitOutputStream[] segments;
     int[] segmentSizes;
 
+    // edges are collected in memory until the budget is exhausted, then
+    // all segments are written to the log files
+    long memoryBudget;
+    long memoryUsed;
+    int[][] objIndices;
+    int[][] refIndices;
+
+    EntryCoder coder = new EntryCoder();
+
     /**
+     * Collects the edges in memory as long as they fit into a quarter of the
+     * currently available heap.
+     *
      * @throws IOException
      */
     public InboundWriter(int size, File indexFile) throws IOException {
+      this(size, indexFile, availableMemory() / 4);
+    }
+
+    /**
+     * @param memoryBudget number of bytes the edges may occupy in memory
+     * before they are written to temporary log files
+     * @throws IOException
+     */
+    public InboundWriter(int size, File indexFile, long memoryBudget) throws IOException {
       this.size = size;
       this.indexFile = indexFile;
 
@@ -602,21 +1078,90 @@ public abstract class IndexWriter {
       this.pageSize = (size / segments) + 1;
       this.segments = new BitOutputStream[segments];
       this.segmentSizes = new int[segments];
+
+      this.memoryBudget = memoryBudget;
+      this.objIndices = new int[segments][];
+      this.refIndices = new int[segments][];
+    }
+
+    private static long availableMemory() {
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
     }
 
     public void log(int objectIndex, int refIndex, boolean isPseudo) throws IOException {
       int segment = objectIndex / pageSize;
+
+      if (objIndices != null) {
+        int count = segmentSizes[segment];
+        int[] objIndex = objIndices[segment];
+        if (objIndex == null || count == objIndex.length) {
+          int length = objIndex == null ? 0 : objIndex.length;
+          int capacity = Math.max(MIN_CAPACITY, length + (length >> 1));
+          memoryUsed += (capacity - length) * 8L;
+
+          if (memoryUsed > memoryBudget) {
+            spill();
+          } else {
+            objIndices[segment] = objIndex = copyOf(objIndex, capacity);
+            refIndices[segment] = copyOf(refIndices[segment], capacity);
+          }
+        }
+
+        if (objIndices != null) {
+          objIndex[count] = objectIndex;
+          refIndices[segment][count] = isPseudo ? -1 - refIndex : refIndex; // 0 is a valid!
+          segmentSizes[segment]++;
+          return;
+        }
+      }
+
+      write(segment, objectIndex, refIndex, isPseudo);
+      segmentSizes[segment]++;
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+      return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private void write(int segment, int objectIndex, int refIndex, boolean isPseudo)
+        throws IOException {
       if (segments[segment] == null) {
-        File segmentFile =
-            new File(this.indexFile.getAbsolutePath() + segment + ".log");//$NON-NLS-1$
-        segments[segment] = new BitOutputStream(new FileOutputStream(segmentFile));
+        segments[segment] = new BitOutputStream(new FileOutputStream(getSegmentFile(segment)));
       }
 
       segments[segment].writeBit(isPseudo ? 1 : 0);
       segments[segment].writeInt(objectIndex, bitLength);
       segments[segment].writeInt(refIndex, bitLength);
+    }
 
-      segmentSizes[segment]++;
+    /**
+     * The budget is exhausted: move the edges collected so far to the log
+     * files and write all further edges directly.
+     */
+    private void spill() throws IOException {
+      int[][] objIndices = this.objIndices;
+      int[][] refIndices = this.refIndices;
+      this.objIndices = null;
+      this.refIndices = null;
+
+      for (int segment = 0; segment < segments.length; segment++) {
+        int[] objIndex = objIndices[segment];
+        int[] refIndex = refIndices[segment];
+        objIndices[segment] = null;
+        refIndices[segment] = null;
+
+        for (int ii = 0; ii < segmentSizes[segment]; ii++) {
+          boolean isPseudo = refIndex[ii] < 0;
+          write(segment, objIndex[ii], isPseudo ? -1 - refIndex[ii] : refIndex[ii], isPseudo);
+        }
+      }
+
+      memoryUsed = 0;
+    }
+
+    private File getSegmentFile(int segment) {
+      return new File(this.indexFile.getAbsolutePath() + segment + ".log");//$NON-NLS-1$
     }
 
     public IIndexReader.IOne2ManyObjectsIndex flush(IProgressListener monitor, KeyWriter keyWriter)
@@ -628,45 +1173,33 @@ public abstract class IndexWriter {
       DataOutputStream index = new DataOutputStream(
           new BufferedOutputStream(new FileOutputStream(this.indexFile), 1024 * 256));
 
-      BitInputStream segmentIn = null;
+      // segments are decoded and sorted in parallel, but appended in order.
+      // Only a few segments are prepared ahead to limit the memory usage.
+      int numberOfThreads =
+          Math.min(Runtime.getRuntime().availableProcessors(), segments.length);
+      ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+      List<Future<int[][]>> prepared = new ArrayList<Future<int[][]>>(segments.length);
 
       try {
-        IntIndexStreamer body = new IntIndexStreamer();
+        IntIndexStreamer body = new IntIndexStreamer(true);
         body.openStream(index, 0);
 
+        int submitted = 0;
         for (int segment = 0; segment < segments.length; segment++) {
-          if (monitor.isCanceled()) throw new IProgressListener.OperationCanceledException();
-
-          File segmentFile =
-              new File(this.indexFile.getAbsolutePath() + segment + ".log");//$NON-NLS-1$
-          if (!segmentFile.exists()) continue;
-
-          // read & sort payload
-          segmentIn = new BitInputStream(new FileInputStream(segmentFile));
-
-          int objIndex[] = new int[segmentSizes[segment]];
-          int refIndex[] = new int[segmentSizes[segment]];
-
-          for (int ii = 0; ii < segmentSizes[segment]; ii++) {
-
-            boolean isPseudo = segmentIn.readBit() == 1;
-
-            objIndex[ii] = segmentIn.readInt(bitLength);
-            refIndex[ii] = segmentIn.readInt(bitLength);
-
-            if (isPseudo) refIndex[ii] = -1 - refIndex[ii]; // 0 is a valid!
+          for (; submitted < segments.length && submitted <= segment + numberOfThreads;
+              submitted++) {
+            prepared.add(executor.submit(prepareSegment(monitor, submitted)));
           }
 
-          segmentIn.close();
-          segmentIn = null;
+          int[][] payload = getPayload(prepared.get(segment));
+          prepared.set(segment, null);
 
           if (monitor.isCanceled()) throw new IProgressListener.OperationCanceledException();
 
-          // delete segment log
-          segmentFile.delete();
-          segmentFile = null;
-
-          processSegment(monitor, keyWriter, header, body, objIndex, refIndex);
+          if (payload != null) {
+            processSegment(monitor, keyWriter, header, body, payload[0], payload[1],
+                segmentSizes[segment]);
+          }
         }
 
         // write header
@@ -684,41 +1217,126 @@ public abstract class IndexWriter {
         // return index reader
         return new IndexReader.InboundReader(this.indexFile, headerIndex, body.getReader(null));
       } finally {
+        // after a failure the segments not started are dropped, the running
+        // ones read the segment files and must not be interrupted
+        for (Future<int[][]> future : prepared)
+          if (future != null) future.cancel(false);
+        ExecutorUtil.shutdownAndWait(executor);
+
         try {
           if (index != null) index.close();
         } catch (IOException ignore) {
         }
 
+        if (monitor.isCanceled()) cancel();
+      }
+    }
+
+    private static int[][] getPayload(Future<int[][]> future) throws IOException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        IOException ioe = new IOException(e.getMessage());
+        ioe.initCause(e);
+        throw ioe;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        IOException ioe = new IOException(cause.getMessage());
+        ioe.initCause(cause);
+        throw ioe;
+      }
+    }
+
+    /**
+     * Returns the edges of the segment sorted by object and then by
+     * reference, read back from the log file unless they are still in memory.
+     */
+    private Callable<int[][]> prepareSegment(final IProgressListener monitor, final int segment) {
+      final int length = segmentSizes[segment];
+      final int[] inMemoryObjIndex = objIndices != null ? objIndices[segment] : null;
+      final int[] inMemoryRefIndex = objIndices != null ? refIndices[segment] : null;
+      if (objIndices != null) {
+        objIndices[segment] = null;
+        refIndices[segment] = null;
+      }
+
+      return new Callable<int[][]>() {
+        public int[][] call() throws IOException {
+          if (length == 0) return null;
+
+          int[] objIndex = inMemoryObjIndex;
+          int[] refIndex = inMemoryRefIndex;
+
+          if (objIndex == null) {
+            objIndex = new int[length];
+            refIndex = new int[length];
+            readSegment(segment, objIndex, refIndex);
+          }
+
+          if (monitor.isCanceled()) throw new IProgressListener.OperationCanceledException();
+
+          // sort by objIndex, then the references of each object
+          ArrayUtils.sort(objIndex, refIndex, 0, length);
+
+          int start = 0;
+          for (int ii = 1; ii <= length; ii++) {
+            if (ii == length || objIndex[ii] != objIndex[start]) {
+              Arrays.sort(refIndex, start, ii);
+              start = ii;
+            }
+          }
+
+          return new int[][] { objIndex, refIndex };
+        }
+      };
+    }
+
+    private void readSegment(int segment, int[] objIndex, int[] refIndex) throws IOException {
+      File segmentFile = getSegmentFile(segment);
+
+      BitInputStream segmentIn = new BitInputStream(new FileInputStream(segmentFile));
+      try {
+        for (int ii = 0; ii < objIndex.length; ii++) {
+
+          boolean isPseudo = segmentIn.readBit() == 1;
+
+          objIndex[ii] = segmentIn.readInt(bitLength);
+          refIndex[ii] = segmentIn.readInt(bitLength);
+
+          if (isPseudo) refIndex[ii] = -1 - refIndex[ii]; // 0 is a valid!
+        }
+      } finally {
         try {
-          if (segmentIn != null) segmentIn.close();
+          segmentIn.close();
         } catch (IOException ignore) {
         }
-
-        if (monitor.isCanceled()) cancel();
       }
+
+      // delete segment log
+      segmentFile.delete();
     }
 
     private void processSegment(IProgressListener monitor, KeyWriter keyWriter, int[] header,
-        IntIndexStreamer body, int[] objIndex, int[] refIndex) throws IOException {
-      // sort (only by objIndex though)
-      ArrayUtils.sort(objIndex, refIndex);
-
+        IntIndexStreamer body, int[] objIndex, int[] refIndex, int length) throws IOException {
       // write index body
       int start = 0;
       int previous = -1;
 
-      for (int ii = 0; ii <= objIndex.length; ii++) {
+      for (int ii = 0; ii <= length; ii++) {
         if (ii == 0) {
           start = ii;
           previous = objIndex[ii];
-        } else if (ii == objIndex.length || previous != objIndex[ii]) {
+        } else if (ii == length || previous != objIndex[ii]) {
           if (monitor.isCanceled()) throw new IProgressListener.OperationCanceledException();
 
           header[previous] = body.size() + 1;
 
           processObject(keyWriter, header, body, previous, refIndex, start, ii);
 
-          if (ii < objIndex.length) {
+          if (ii < length) {
             previous = objIndex[ii];
             start = ii;
           }
@@ -728,9 +1346,9 @@ public abstract class IndexWriter {
 
     private void processObject(KeyWriter keyWriter, int[] header, IntIndexStreamer body,
         int objectId, int[] refIndex, int fromIndex, int toIndex) throws IOException {
-      Arrays.sort(refIndex, fromIndex, toIndex);
-
+      // refIndex is already sorted within [fromIndex, toIndex)
       int endPseudo = fromIndex;
+      coder.reset(objectId);
 
       if ((toIndex - fromIndex) > 100000) {
         BitField duplicates = new BitField(size);
@@ -745,7 +1363,7 @@ public abstract class IndexWriter {
           refIndex[jj] = -refIndex[jj] - 1;
 
           if (!duplicates.get(refIndex[jj])) {
-            body.add(refIndex[jj]);
+            body.add(coder.encode(refIndex[jj]));
             duplicates.set(refIndex[jj]);
           }
         }
@@ -754,7 +1372,7 @@ public abstract class IndexWriter {
         {
           if ((jj == fromIndex || refIndex[jj - 1] != refIndex[jj]) && !duplicates.get(
               refIndex[jj])) {
-            body.add(refIndex[jj]);
+            body.add(coder.encode(refIndex[jj]));
           }
         }
       } else {
@@ -769,24 +1387,28 @@ public abstract class IndexWriter {
           endPseudo++;
           refIndex[jj] = -refIndex[jj] - 1;
 
-          if (duplicates.add(refIndex[jj])) body.add(refIndex[jj]);
+          if (duplicates.add(refIndex[jj])) body.add(coder.encode(refIndex[jj]));
         }
 
         for (; jj < toIndex; jj++) // other references
         {
           if ((jj == fromIndex || refIndex[jj - 1] != refIndex[jj]) && !duplicates.contains(
               refIndex[jj])) {
-            body.add(refIndex[jj]);
+            body.add(coder.encode(refIndex[jj]));
           }
         }
       }
 
       if (endPseudo > fromIndex) {
-        keyWriter.storeKey(objectId, new int[] { header[objectId] - 1, endPseudo - fromIndex });
+        keyWriter.storeKey(objectId,
+            new int[] { header[objectId] - 1, endPseudo - fromIndex, objectId });
       }
     }
 
     public synchronized void cancel() {
+      objIndices = null;
+      refIndices = null;
+
       try {
         close();
 
@@ -0,0 +1,408 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayIntCompressed;
+import org.eclipse.mat.collect.ArrayLongCompressed;
+import org.eclipse.mat.parser.index.IndexReader.SharedChannel;
+
+/**
+ * Alternative to the {@link IndexReader} family which memory-maps the index
+ * files. The compressed pages are decoded directly from the mapped buffers,
+ * hence lookups need neither a lock nor a copy on the Java heap and the
+ * operating system decides which parts of the file stay resident.
+ * <p>
+ * The file format is the one written by the {@link IndexWriter}.
+ */
+public abstract class MappedIndexReader {
+  /* a page never spans two mappings, a mapping is at most this large */
+  private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+  /**
+   * The pages of one int or long index, stored in the given range of the
+   * file.
+   */
+  static class MappedPages {
+    int pageSize;
+    int size;
+
+    ByteBuffer[] mappings;
+    int[] pageMapping;
+    int[] pageOffset;
+
+    MappedPages(SharedChannel channel, long start, long length) throws IOException {
+      this(channel, 0, start, length);
+    }
+
+    /**
+     * @param base position of the index file within the channel, the
+     * positions stored in the file are relative to it
+     */
+    MappedPages(SharedChannel channel, long base, long start, long length) throws IOException {
+      ByteBuffer trailer = IndexReader.read(channel, base + start + length - 8, 8);
+      pageSize = trailer.getInt();
+      size = trailer.getInt();
+
+      int pages = (size / pageSize) + (size % pageSize > 0 ? 2 : 1);
+      long[] pageStart = new long[pages];
+      IndexReader.read(channel, base + start + length - 8 - (pages * 8), pages * 8)
+          .asLongBuffer().get(pageStart);
+      for (int ii = 0; ii < pages; ii++)
+        pageStart[ii] += base;
+
+      // the last entry marks the end of the last page
+      pageMapping = new int[pages - 1];
+      pageOffset = new int[pages - 1];
+
+      int count = 0;
+      ByteBuffer[] buffers = new ByteBuffer[pages];
+      for (int page = 0; page < pages - 1; ) {
+        long mappingStart = pageStart[page];
+        int last = page;
+        while (last + 1 < pages - 1 && pageStart[last + 2] - mappingStart <= MAX_MAPPING_SIZE)
+          last++;
+
+        buffers[count] = channel.map(mappingStart, pageStart[last + 1] - mappingStart);
+
+        for (; page <= last; page++) {
+          pageMapping[page] = count;
+          pageOffset[page] = (int) (pageStart[page] - mappingStart);
+        }
+        count++;
+      }
+
+      mappings = new ByteBuffer[count];
+      System.arraycopy(buffers, 0, mappings, 0, count);
+    }
+
+    int getInt(int index) {
+      int page = index / pageSize;
+      return ArrayIntCompressed.get(mappings[pageMapping[page]], pageOffset[page],
+          index % pageSize);
+    }
+
+    long getLong(int index) {
+      int page = index / pageSize;
+      return ArrayLongCompressed.get(mappings[pageMapping[page]], pageOffset[page],
+          index % pageSize);
+    }
+
+    int[] getNextInts(int index, int length) {
+      int answer[] = new int[length];
+      getNextInts(index, length, answer, 0);
+      return answer;
+    }
+
+    void getNextInts(int index, int length, int[] dest, int destOffset) {
+      int page = index / pageSize;
+      int pageIndex = index % pageSize;
+
+      for (int ii = 0; ii < length; ) {
+        int chunk = Math.min(length - ii, pageSize - pageIndex);
+        ArrayIntCompressed.get(mappings[pageMapping[page]], pageOffset[page], pageIndex, dest,
+            destOffset + ii, chunk);
+        page++;
+        ii += chunk;
+        pageIndex = 0;
+      }
+    }
+
+    long[] getNextLongs(int index, int length) {
+      long answer[] = new long[length];
+      int page = index / pageSize;
+      int pageIndex = index % pageSize;
+
+      for (int ii = 0; ii < length; ii++) {
+        answer[ii] = ArrayLongCompressed.get(mappings[pageMapping[page]], pageOffset[page],
+            pageIndex++);
+        if (pageIndex >= pageSize) {
+          page++;
+          pageIndex = 0;
+        }
+      }
+
+      return answer;
+    }
+  }
+
+  static void closeChannel(SharedChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignore) {
+      // $JL-EXC$
+    }
+  }
+
+  // //////////////////////////////////////////////////////////////
+  // 1:1 indices
+  // //////////////////////////////////////////////////////////////
+
+  public static class IntIndexReader implements IIndexReader.IOne2OneIndex {
+    File indexFile;
+    MappedPages pages;
+
+    public IntIndexReader(File indexFile) throws IOException {
+      this.indexFile = indexFile;
+
+      SharedChannel channel = new SharedChannel(indexFile);
+      try {
+        this.pages = new MappedPages(channel, 0, indexFile.length());
+      } finally {
+        closeChannel(channel);
+      }
+    }
+
+    /**
+     * Maps the index stored in a section of an {@link IndexContainer}.
+     */
+    public IntIndexReader(IndexContainer.Section section) throws IOException {
+      this.pages = new MappedPages(section.channel, section.start, 0, section.length);
+    }
+
+    IntIndexReader(MappedPages pages) {
+      this.pages = pages;
+    }
+
+    public int get(int index) {
+      return pages.getInt(index);
+    }
+
+    public int[] getAll(int[] index) {
+      int[] answer = new int[index.length];
+      for (int ii = 0; ii < answer.length; ii++)
+        answer[ii] = pages.getInt(index[ii]);
+      return answer;
+    }
+
+    public int[] getNext(int index, int length) {
+      return pages.getNextInts(index, length);
+    }
+
+    public void getNext(int index, int length, int[] dest, int destOffset) {
+      pages.getNextInts(index, length, dest, destOffset);
+    }
+
+    public int size() {
+      return pages.size;
+    }
+
+    public void unload() {
+      // residency is up to the operating system
+    }
+
+    public void close() {
+      // mappings are released once the reader is garbage collected
+    }
+
+    public void delete() {
+      close();
+
+      if (indexFile != null) indexFile.delete();
+    }
+  }
+
+  public static class LongIndexReader implements IIndexReader.IOne2LongIndex {
+    File indexFile;
+    MappedPages pages;
+
+    public LongIndexReader(File indexFile) throws IOException {
+      this.indexFile = indexFile;
+
+      SharedChannel channel = new SharedChannel(indexFile);
+      try {
+        this.pages = new MappedPages(channel, 0, indexFile.length());
+      } finally {
+        closeChannel(channel);
+      }
+    }
+
+    /**
+     * Maps the index stored in a section of an {@link IndexContainer}.
+     */
+    public LongIndexReader(IndexContainer.Section section) throws IOException {
+      this.pages = new MappedPages(section.channel, section.start, 0, section.length);
+    }
+
+    public long get(int index) {
+      return pages.getLong(index);
+    }
+
+    public long[] getNext(int index, int length) {
+      return pages.getNextLongs(index, length);
+    }
+
+    public int reverse(long value) {
+      int low = 0;
+      int high = pages.size - 1;
+
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long midVal = pages.getLong(mid);
+
+        if (midVal < value) {
+          low = mid + 1;
+        } else if (midVal > value) {
+          high = mid - 1;
+        } else {
+          return mid; // key found
+        }
+      }
+      return -(low + 1); // key not found.
+    }
+
+    public int size() {
+      return pages.size;
+    }
+
+    public void unload() {
+      // residency is up to the operating system
+    }
+
+    public void close() {
+      // mappings are released once the reader is garbage collected
+    }
+
+    public void delete() {
+      close();
+
+      if (indexFile != null) indexFile.delete();
+    }
+  }
+
+  // //////////////////////////////////////////////////////////////
+  // 1:N indices
+  // //////////////////////////////////////////////////////////////
+
+  public static class IntIndex1NReader implements IIndexReader.IOne2ManyIndex {
+    File indexFile;
+    IntIndexReader header;
+    IntIndexReader body;
+
+    public IntIndex1NReader(File indexFile) throws IOException {
+      this.indexFile = indexFile;
+
+      SharedChannel channel = new SharedChannel(indexFile);
+      try {
+        long indexLength = indexFile.length();
+        long divider = IndexReader.read(channel, indexLength - 8, 8).getLong();
+
+        this.header =
+            new IntIndexReader(new MappedPages(channel, divider, indexLength - divider - 8));
+        this.body = new IntIndexReader(new MappedPages(channel, 0, divider));
+      } finally {
+        closeChannel(channel);
+      }
+    }
+
+    /**
+     * Maps the index stored in a section of an {@link IndexContainer}.
+     */
+    public IntIndex1NReader(IndexContainer.Section section) throws IOException {
+      SharedChannel channel = section.channel;
+      long divider = IndexReader.read(channel, section.start + section.length - 8, 8).getLong();
+
+      this.header = new IntIndexReader(new MappedPages(channel, section.start, divider,
+          section.length - divider - 8));
+      this.body = new IntIndexReader(new MappedPages(channel, section.start, 0, divider));
+    }
+
+    public int[] get(int index) {
+      int p = header.get(index);
+
+      int length = body.get(p);
+
+      return IndexWriter.EntryCoder.decode(index, body.getNext(p + 1, length));
+    }
+
+    public int[] getAll(int[] index, int offset, int length, int[] offsets, int[] targets) {
+      return IndexReader.getAll(header, body, false, index, offset, length, offsets, targets);
+    }
+
+    public int size() {
+      return header.size();
+    }
+
+    public void unload() {
+      // residency is up to the operating system
+    }
+
+    public void close() {
+      // mappings are released once the reader is garbage collected
+    }
+
+    public void delete() {
+      close();
+
+      if (indexFile != null) indexFile.delete();
+    }
+  }
+
+  public static class IntIndex1NSortedReader extends IntIndex1NReader {
+    public IntIndex1NSortedReader(File indexFile) throws IOException {
+      super(indexFile);
+    }
+
+    public IntIndex1NSortedReader(IndexContainer.Section section) throws IOException {
+      super(section);
+    }
+
+    public int[] get(int index) {
+      int owner = index;
+      int p[] = null;
+
+      if (index + 1 < header.size()) {
+        p = header.getNext(index++, 2);
+        if (p[0] == 0) return new int[0];
+
+        for (index++; p[1] < p[0] && index < header.size(); index++)
+          p[1] = header.get(index);
+
+        if (p[1] < p[0]) p[1] = body.size() + 1;
+      } else {
+        p = new int[] { header.get(index), 0 };
+        if (p[0] == 0) return new int[0];
+        p[1] = body.size() + 1;
+      }
+
+      return IndexWriter.EntryCoder.decode(owner, body.getNext(p[0] - 1, p[1] - p[0]));
+    }
+
+    public int[] getAll(int[] index, int offset, int length, int[] offsets, int[] targets) {
+      return IndexReader.getAll(header, body, true, index, offset, length, offsets, targets);
+    }
+  }
+
+  public static class InboundReader extends IntIndex1NSortedReader
+      implements IIndexReader.IOne2ManyObjectsIndex {
+    public InboundReader(File indexFile) throws IOException {
+      super(indexFile);
+    }
+
+    public InboundReader(IndexContainer.Section section) throws IOException {
+      super(section);
+    }
+
+    public int[] getObjectsOf(Serializable key) throws SnapshotException, IOException {
+      if (key == null) return new int[0];
+
+      int[] pos = (int[]) key;
+
+      return IndexWriter.EntryCoder.decode(pos[2], body.getNext(pos[0], pos[1]));
+    }
+  }
+}
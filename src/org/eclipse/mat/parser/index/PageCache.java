@@ -0,0 +1,322 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache for the decoded pages of all index readers of one snapshot, limited
+ * by the number of bytes of the cached pages instead of leaving the eviction
+ * to the garbage collector.
+ * <p>
+ * Lookups do not lock: every reader finds its cached pages in its own
+ * {@link Slots}. Only adding a page takes the lock of the cache. If the budget
+ * is exhausted, the least recently used pages are the candidates for
+ * eviction, but the new page only replaces them if it was requested more
+ * often recently (TinyLFU admission). Hence a single scan over a large index
+ * does not flush the pages which are used over and over again.
+ * <p>
+ * The pages are kept in a list from the least to the most recently used one.
+ * As lookups do not lock, they only flag the page as used, and the list is
+ * reordered when victims are selected: a flagged page at the old end gets a
+ * second chance at the recent end instead (CLOCK). So the eviction takes
+ * constant time per page, and so does dropping the pages of a reader.
+ */
+public class PageCache {
+  /** implemented by the readers which can keep their pages in the cache */
+  interface Client {
+    void setPageCache(PageCache cache);
+  }
+
+  /**
+   * The cached pages of one reader.
+   */
+  static final class Slots {
+    final int id;
+    final AtomicReferenceArray<Entry> entries;
+
+    Slots(int id, int numberOfPages) {
+      this.id = id;
+      this.entries = new AtomicReferenceArray<Entry>(numberOfPages);
+    }
+  }
+
+  private static final class Entry {
+    final Slots owner;
+    final int page;
+    final Object value;
+    final int bytes;
+    /* set by lookups without the lock, racy updates are fine */
+    boolean referenced;
+
+    /* the neighbors in the list of resident pages */
+    Entry previous;
+    Entry next;
+
+    Entry(Slots owner, int page, Object value, int bytes) {
+      this.owner = owner;
+      this.page = page;
+      this.value = value;
+      this.bytes = bytes;
+    }
+  }
+
+  /* hits are counted in striped cells to keep the lookups cheap */
+  private static final int STRIPES = 16;
+  private static final int CELL_PADDING = 8;
+
+  private final long budget;
+  private long size;
+  /* sentinel of the circular list of resident pages, least recently used first */
+  private final Entry resident = new Entry(null, -1, null, 0);
+  private final FrequencySketch sketch = new FrequencySketch();
+  private final AtomicInteger nextClientId = new AtomicInteger();
+
+  private final AtomicLongArray hits = new AtomicLongArray(STRIPES * CELL_PADDING);
+  private final AtomicLong misses = new AtomicLong();
+  private long evictions;
+  private long rejections;
+  private long decodedBytes;
+
+  /**
+   * @param budget maximum number of bytes of all cached pages
+   */
+  public PageCache(long budget) {
+    this.budget = budget;
+    resident.previous = resident.next = resident;
+  }
+
+  /* package */Slots register(int numberOfPages) {
+    return new Slots(nextClientId.incrementAndGet(), numberOfPages);
+  }
+
+  /**
+   * Returns the cached page or null.
+   */
+  /* package */Object get(Slots slots, int page) {
+    sketch.increment(key(slots, page));
+
+    Entry entry = slots.entries.get(page);
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    entry.referenced = true;
+    hits.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * CELL_PADDING);
+    return entry.value;
+  }
+
+  /**
+   * Returns the cached page or null, without counting the access.
+   */
+  /* package */Object peek(Slots slots, int page) {
+    Entry entry = slots.entries.get(page);
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * Offers a freshly decoded page. It is only kept if there is room or if it
+   * is used more frequently than the pages it would replace.
+   */
+  /* package */synchronized void put(Slots slots, int page, Object value, int bytes) {
+    decodedBytes += bytes;
+
+    if (slots.entries.get(page) != null) return;
+
+    if (bytes > budget) {
+      rejections++;
+      return;
+    }
+
+    List<Entry> victims = Collections.emptyList();
+    if (size + bytes > budget) {
+      victims = selectVictims(size + bytes - budget);
+
+      int frequency = sketch.frequency(key(slots, page));
+      for (Entry victim : victims) {
+        if (sketch.frequency(key(victim.owner, victim.page)) >= frequency) {
+          rejections++;
+          return;
+        }
+      }
+
+      for (Entry victim : victims) {
+        remove(victim);
+        evictions++;
+      }
+    }
+
+    Entry entry = new Entry(slots, page, value, bytes);
+    append(entry);
+    size += bytes;
+    slots.entries.set(page, entry);
+  }
+
+  /**
+   * Drops all pages of the given reader, e.g. when it is unloaded.
+   */
+  /* package */synchronized void invalidate(Slots slots) {
+    for (int page = 0; page < slots.entries.length(); page++) {
+      Entry entry = slots.entries.get(page);
+      if (entry != null) remove(entry);
+    }
+  }
+
+  /**
+   * @return the least recently used pages which free the given number of
+   * bytes, they are still resident
+   */
+  private List<Entry> selectVictims(long bytesNeeded) {
+    List<Entry> victims = new ArrayList<Entry>();
+    long freed = 0;
+    for (Entry entry = resident.next; freed < bytesNeeded && entry != resident; ) {
+      Entry next = entry.next;
+      if (entry.referenced) {
+        // used since it was queued: it is visited again at the recent end
+        entry.referenced = false;
+        unlink(entry);
+        append(entry);
+        if (next == resident) next = entry;
+      } else {
+        victims.add(entry);
+        freed += entry.bytes;
+      }
+      entry = next;
+    }
+    return victims;
+  }
+
+  private void remove(Entry entry) {
+    unlink(entry);
+    size -= entry.bytes;
+    entry.owner.entries.compareAndSet(entry.page, entry, null);
+  }
+
+  private void append(Entry entry) {
+    entry.previous = resident.previous;
+    entry.next = resident;
+    resident.previous.next = entry;
+    resident.previous = entry;
+  }
+
+  private void unlink(Entry entry) {
+    entry.previous.next = entry.next;
+    entry.next.previous = entry.previous;
+    entry.previous = entry.next = null;
+  }
+
+  private static long key(Slots slots, int page) {
+    return ((long) slots.id << 32) | (page & 0xffffffffL);
+  }
+
+  // //////////////////////////////////////////////////////////////
+  // statistics
+  // //////////////////////////////////////////////////////////////
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return number of bytes of the currently cached pages
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getHits() {
+    long answer = 0;
+    for (int ii = 0; ii < STRIPES; ii++)
+      answer += hits.get(ii * CELL_PADDING);
+    return answer;
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return number of decoded pages which were not admitted to the cache
+   */
+  public synchronized long getRejections() {
+    return rejections;
+  }
+
+  /**
+   * @return number of bytes read and decoded because of cache misses
+   */
+  public synchronized long getDecodedBytes() {
+    return decodedBytes;
+  }
+
+  @Override public String toString() {
+    return "PageCache [budget=" + budget + ", size=" + getSize() //$NON-NLS-1$ //$NON-NLS-2$
+        + ", hits=" + getHits() + ", misses=" + getMisses() //$NON-NLS-1$ //$NON-NLS-2$
+        + ", evictions=" + getEvictions() //$NON-NLS-1$
+        + ", rejections=" + getRejections() //$NON-NLS-1$
+        + ", decodedBytes=" + getDecodedBytes() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Count-min sketch of 4 bit counters approximating how often the pages were
+   * requested recently. All counters are halved after a fixed number of
+   * increments, so the popularity of a page fades if it is not used anymore.
+   * Concurrent increments may get lost, which only blurs the estimate.
+   */
+  private static final class FrequencySketch {
+    private static final int WIDTH = 4096;
+    private static final int DEPTH = 4;
+    private static final int SAMPLE_SIZE = 10 * WIDTH;
+
+    private final byte[][] table = new byte[DEPTH][WIDTH];
+    private int additions;
+
+    void increment(long key) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      for (int ii = 0; ii < DEPTH; ii++) {
+        int index = index(hash, ii);
+        if (table[ii][index] < 15) table[ii][index]++;
+      }
+
+      if (++additions >= SAMPLE_SIZE) {
+        additions = 0;
+        for (byte[] row : table)
+          for (int jj = 0; jj < row.length; jj++)
+            row[jj] >>= 1;
+      }
+    }
+
+    int frequency(long key) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      int frequency = Integer.MAX_VALUE;
+      for (int ii = 0; ii < DEPTH; ii++)
+        frequency = Math.min(frequency, table[ii][index(hash, ii)]);
+      return frequency;
+    }
+
+    private static int index(long hash, int row) {
+      return (int) (hash >>> (row * 12 + 16)) & (WIDTH - 1);
+    }
+  }
+}
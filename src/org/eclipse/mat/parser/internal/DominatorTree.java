@@ -14,8 +14,15 @@ package org.eclipse.mat.parser.internal;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayUtils;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.IteratorInt;
@@ -24,7 +31,11 @@ import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.index.IndexManager;
 import org.eclipse.mat.parser.index.IndexManager.Index;
 import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.parser.internal.snapshot.ObjectMarker;
+import org.eclipse.mat.parser.internal.util.ExecutorUtil;
 import org.eclipse.mat.parser.internal.util.IntStack;
+import org.eclipse.mat.snapshot.ExcludedReferencesDescriptor;
+import org.eclipse.mat.snapshot.ScopedDominatorTree;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.SimpleMonitor;
 
@@ -32,7 +43,320 @@ public class DominatorTree {
 
   public static void calculate(SnapshotImpl snapshot, IProgressListener listener)
       throws SnapshotException, IOException {
-    new Calculator(snapshot, listener).compute();
+    calculate(snapshot, false, listener);
+  }
+
+  /**
+   * @param parallel compute the dominators with the Semi-NCA algorithm on
+   * all processors instead of Lengauer-Tarjan on one, the indices written
+   * are the same
+   */
+  public static void calculate(SnapshotImpl snapshot, boolean parallel,
+      IProgressListener listener) throws SnapshotException, IOException {
+    Calculator calculator = new Calculator(snapshot, listener);
+    calculator.parallel = parallel;
+    calculator.compute();
+  }
+
+  /**
+   * Calculates the dominator tree of the objects reachable from the given
+   * ones, which are referenced by an artificial root. The excluded
+   * references are not followed. The tree is kept in memory, the indices of
+   * the snapshot are not changed.
+   */
+  public static ScopedDominatorTree calculate(SnapshotImpl snapshot, int[] objectIds,
+      ExcludedReferencesDescriptor[] excludedReferences, IProgressListener listener)
+      throws SnapshotException {
+    return new ScopedCalculator(snapshot, excludedReferences, listener).compute(objectIds);
+  }
+
+  /**
+   * Calculates the dominator tree of the objects in one heap partition
+   * (Android dumps), as if the objects of the other heaps were GC roots: the
+   * start objects are the GC roots in the heap and the objects of the heap
+   * referenced from other heaps, only references within the heap are
+   * followed.
+   */
+  public static ScopedDominatorTree calculate(SnapshotImpl snapshot, int heapId,
+      IProgressListener listener) throws SnapshotException {
+    IIndexReader.IOne2OneIndex o2heap = snapshot.getIndexManager().o2heap();
+    int numberOfObjects = o2heap.size();
+    BitField scope = new BitField(numberOfObjects);
+    for (int objectId = 0; objectId < numberOfObjects; objectId++)
+      if (o2heap.get(objectId) == heapId) scope.set(objectId);
+
+    ArrayInt entries = new ArrayInt();
+    for (int root : snapshot.getGCRoots())
+      if (scope.get(root)) entries.add(root);
+
+    // the references from the other heaps into this one
+    IIndexReader.IOne2ManyIndex outbound = snapshot.getIndexManager().outbound();
+    int[] batch = new int[ScopedCalculator.BATCH_SIZE];
+    int[] batchOffsets = new int[ScopedCalculator.BATCH_SIZE + 1];
+    int[] children = null;
+    for (int objectId = 0; objectId < numberOfObjects; ) {
+      int length = 0;
+      for (; objectId < numberOfObjects && length < batch.length; objectId++)
+        if (!scope.get(objectId)) batch[length++] = objectId;
+      if (length == 0) continue;
+      children = outbound.getAll(batch, 0, length, batchOffsets, children);
+
+      for (int ii = 0; ii < batchOffsets[length]; ii++)
+        if (scope.get(children[ii])) entries.add(children[ii]);
+
+      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+    }
+
+    ScopedCalculator calculator = new ScopedCalculator(snapshot, null, listener);
+    calculator.scope = scope;
+    return calculator.compute(entries.toArray());
+  }
+
+  /**
+   * Semi-NCA on the subgraph reachable from the start objects, which fits
+   * into memory: vertex 0 is the artificial root, vertex k + 1 the k-th
+   * object reached.
+   */
+  static class ScopedCalculator {
+    /* the references of that many objects are read at once */
+    private static final int BATCH_SIZE = 1024;
+
+    SnapshotImpl snapshot;
+    ExcludedReferencesDescriptor[] excludedReferences;
+    BitField excludedObjects;
+    // the objects which may be reached, null for all
+    BitField scope;
+    IProgressListener listener;
+
+    // the objects reached, and the references between them as a CSR
+    // matrix: the successors of vertex k + 1 are the objects
+    // targets[offsets[k]] to targets[offsets[k + 1] - 1]
+    int[] ids;
+    int[] offsets;
+    int[] targets;
+
+    ScopedCalculator(SnapshotImpl snapshot, ExcludedReferencesDescriptor[] excludedReferences,
+        IProgressListener listener) {
+      this.snapshot = snapshot;
+      this.listener = listener;
+
+      if (excludedReferences != null && excludedReferences.length > 0) {
+        this.excludedReferences = excludedReferences;
+        excludedObjects = new BitField(snapshot.getSnapshotInfo().getNumberOfObjects());
+        for (ExcludedReferencesDescriptor set : excludedReferences) {
+          for (int k : set.getObjectIds()) {
+            excludedObjects.set(k);
+          }
+        }
+      }
+    }
+
+    ScopedDominatorTree compute(int[] objectIds) throws SnapshotException {
+      listener.beginTask(Messages.DominatorTree_DominatorTreeCalculation, 3);
+
+      int roots = mark(objectIds);
+      checkCanceled();
+      listener.worked(1);
+
+      int n = ids.length;
+
+      // the successors by vertex
+      int[] sortedIds = ids.clone();
+      int[] vertexOf = new int[n];
+      for (int k = 0; k < n; k++)
+        vertexOf[k] = k + 1;
+      ArrayUtils.sort(sortedIds, vertexOf);
+      for (int ii = 0; ii < targets.length; ii++)
+        targets[ii] = vertexOf[Arrays.binarySearch(sortedIds, targets[ii])];
+
+      // depth first search: preorder number by vertex, vertex and parent by
+      // preorder number
+      int[] pre = new int[n + 1];
+      int[] vertex = new int[n + 1];
+      int[] parent = new int[n + 1];
+      Arrays.fill(pre, -1);
+      int count = 0;
+
+      int[] stack = new int[1024];
+      int[] position = new int[1024];
+      int size = 0;
+      pre[0] = count++;
+      stack[size] = 0;
+      position[size] = 0;
+      size++;
+      while (size > 0) {
+        int v = stack[size - 1];
+        int p = position[size - 1];
+        int end = v == 0 ? roots : offsets[v];
+        if (p < end) {
+          position[size - 1] = p + 1;
+          int w = v == 0 ? p + 1 : targets[p];
+          if (pre[w] < 0) {
+            pre[w] = count;
+            vertex[count] = w;
+            parent[count] = pre[v];
+            count++;
+
+            if (size == stack.length) {
+              stack = Calculator.grow(stack, size << 1);
+              position = Calculator.grow(position, size << 1);
+            }
+            stack[size] = w;
+            position[size] = offsets[w - 1];
+            size++;
+          }
+        } else {
+          size--;
+        }
+      }
+
+      // the predecessors by preorder number
+      int[] predecessorOffsets = new int[n + 2];
+      for (int k = 0; k < roots; k++)
+        predecessorOffsets[pre[k + 1] + 1]++;
+      for (int ii = 0; ii < targets.length; ii++)
+        predecessorOffsets[pre[targets[ii]] + 1]++;
+      for (int i = 0; i <= n; i++)
+        predecessorOffsets[i + 1] += predecessorOffsets[i];
+      int[] predecessors = new int[roots + targets.length];
+      int[] next = predecessorOffsets.clone();
+      for (int k = 0; k < roots; k++)
+        predecessors[next[pre[k + 1]]++] = 0;
+      for (int k = 0; k < n; k++) {
+        for (int ii = offsets[k]; ii < offsets[k + 1]; ii++)
+          predecessors[next[pre[targets[ii]]]++] = pre[k + 1];
+      }
+      targets = null;
+
+      // semidominators in reverse preorder, see
+      // Calculator.computeDominatorsParallel()
+      int[] semi = new int[n + 1];
+      int[] label = new int[n + 1];
+      int[] anchestor = parent.clone();
+      for (int i = n; i >= 1; i--) {
+        int s = i;
+        for (int p = predecessorOffsets[i]; p < predecessorOffsets[i + 1]; p++) {
+          int v = predecessors[p];
+          if (v <= i) {
+            if (v < s) s = v;
+            continue;
+          }
+
+          size = 0;
+          for (int u = v; anchestor[u] > i; u = anchestor[u]) {
+            if (size == stack.length) stack = Calculator.grow(stack, size << 1);
+            stack[size++] = u;
+          }
+          while (size > 0) {
+            int u = stack[--size];
+            int a = anchestor[u];
+            if (label[a] < label[u]) label[u] = label[a];
+            anchestor[u] = anchestor[a];
+          }
+
+          if (label[v] < s) s = label[v];
+        }
+        semi[i] = s;
+        label[i] = s;
+      }
+      predecessors = null;
+
+      // the nearest common ancestor of parent and semidominator
+      int[] dom = label;
+      dom[0] = 0;
+      for (int i = 1; i <= n; i++) {
+        int x = parent[i];
+        while (x > semi[i])
+          x = dom[x];
+        dom[i] = x;
+      }
+      checkCanceled();
+      listener.worked(1);
+
+      // the retained sizes, the dominator is visited before
+      long[] retained = new long[n + 1];
+      for (int i = n; i >= 1; i--) {
+        retained[i] += snapshot.getHeapSize(ids[vertex[i] - 1]);
+        retained[dom[i]] += retained[i];
+      }
+
+      int[] dominators = new int[n];
+      long[] retainedSizes = new long[n];
+      for (int ii = 0; ii < n; ii++) {
+        int i = pre[vertexOf[ii]];
+        dominators[ii] = dom[i] == 0 ? -1 : ids[vertex[dom[i]] - 1];
+        retainedSizes[ii] = retained[i];
+      }
+      listener.done();
+
+      return new ScopedDominatorTree(sortedIds, dominators, retainedSizes);
+    }
+
+    /**
+     * Collects the objects reachable from the start objects, breadth first,
+     * and the references between them.
+     *
+     * @return the number of distinct start objects, the first ones reached
+     */
+    private int mark(int[] objectIds) throws SnapshotException {
+      IIndexReader.IOne2ManyIndex outbound = snapshot.getIndexManager().outbound();
+      BitField reached = new BitField(snapshot.getSnapshotInfo().getNumberOfObjects());
+
+      ArrayInt reachedIds = new ArrayInt();
+      for (int objectId : objectIds) {
+        if (!reached.get(objectId)) {
+          reached.set(objectId);
+          reachedIds.add(objectId);
+        }
+      }
+      int roots = reachedIds.size();
+
+      ArrayInt successorOffsets = new ArrayInt();
+      ArrayInt successors = new ArrayInt();
+      successorOffsets.add(0);
+
+      int[] batch = new int[BATCH_SIZE];
+      int[] batchOffsets = new int[BATCH_SIZE + 1];
+      int[] children = null;
+
+      for (int processed = 0; processed < reachedIds.size(); ) {
+        int length = Math.min(reachedIds.size() - processed, BATCH_SIZE);
+        for (int jj = 0; jj < length; jj++)
+          batch[jj] = reachedIds.get(processed + jj);
+        children = outbound.getAll(batch, 0, length, batchOffsets, children);
+
+        for (int jj = 0; jj < length; jj++) {
+          int current = batch[jj];
+          for (int ii = batchOffsets[jj]; ii < batchOffsets[jj + 1]; ii++) {
+            int child = children[ii];
+            if (scope != null && !scope.get(child)) continue;
+            if (excludedObjects != null && ObjectMarker.refersOnlyThroughExcluded(current, child,
+                excludedReferences, excludedObjects, snapshot)) {
+              continue;
+            }
+
+            successors.add(child);
+            if (!reached.get(child)) {
+              reached.set(child);
+              reachedIds.add(child);
+            }
+          }
+          successorOffsets.add(successors.size());
+        }
+
+        processed += length;
+        checkCanceled();
+      }
+
+      ids = reachedIds.toArray();
+      offsets = successorOffsets.toArray();
+      targets = successors.toArray();
+      return roots;
+    }
+
+    private void checkCanceled() {
+      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+    }
   }
 
   static class Calculator {
@@ -44,6 +368,8 @@ public class DominatorTree {
     int[] gcRootsArray;
     private BitField gcRootsSet;
 
+    boolean parallel;
+
     int[] bucket;
     private int r, n;
     private int[] dom;
@@ -108,6 +434,57 @@ public class DominatorTree {
       IProgressListener progressListener = this.monitor.nextMonitor();
       progressListener.beginTask(Messages.DominatorTree_ComputingDominators.pattern, n / 1000);
 
+      if (parallel) {
+        computeDominatorsParallel(progressListener);
+      } else {
+        computeDominators(progressListener);
+      }
+      dom[r] = 0;
+
+      progressListener.done();
+
+      parent = anchestor = vertex = label = semi = bucket = null;
+      snapshot.getIndexManager().inbound().unload();
+
+      if (progressListener0.isCanceled()) throw new IProgressListener.OperationCanceledException();
+
+      // pre-condition for index writing:
+      // retainedSetIdx is still sorted by object id
+      snapshot.getIndexManager()
+          .setReader(IndexManager.Index.DOMINATOR, new IndexWriter.IntIndexStreamer().writeTo(
+              IndexManager.Index.DOMINATOR.getFile(snapshot.getSnapshotInfo().getPrefix()),
+              new IteratorInt() {
+                int nextIndex = 2;
+
+                public boolean hasNext() {
+                  return nextIndex < dom.length;
+                }
+
+                public int next() {
+                  return dom[nextIndex++];
+                }
+              }));
+
+      int[] objectIds = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
+      for (int i = 0; i < objectIds.length; i++)
+        objectIds[i] = i - 2;
+
+      objectIds[0] = -2;
+      objectIds[1] = ROOT_VALUE;
+      progressListener0.worked(1);
+
+      ArrayUtils.sort(dom, objectIds, 2, dom.length - 2);
+      progressListener0.worked(1);
+
+      FlatDominatorTree tree = new FlatDominatorTree(snapshot, dom, objectIds, ROOT_VALUE);
+
+      if (progressListener0.isCanceled()) throw new IProgressListener.OperationCanceledException();
+
+      writeIndexFiles(tree);
+      progressListener0.done();
+    }
+
+    private void computeDominators(IProgressListener progressListener) {
       for (int i = n; i >= 2; i--) {
         int w = vertex[i];
         for (int v : getPredecessors(w)) {
@@ -151,81 +528,238 @@ public class DominatorTree {
           dom[w] = dom[dom[w]];
         }
       }
-      dom[r] = 0;
+    }
 
-      progressListener.done();
+    /* the predecessors of that many vertices are read by one task */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Semi-NCA: the semidominators are computed in reverse preorder as by
+     * Lengauer-Tarjan, then the immediate dominator of each vertex (in
+     * preorder) is the nearest common ancestor of its parent and its
+     * semidominator in the dominator tree built so far.
+     * <p>
+     * A predecessor visited before w is a candidate for the semidominator of
+     * w as it is, only the ones visited after w need the path compression.
+     * Reading the predecessors and sorting them out is done by a thread pool,
+     * blocks of vertices ahead of the sequential part.
+     */
+    private void computeDominatorsParallel(IProgressListener progressListener)
+        throws IOException {
+      // from here on the vertices are identified by their preorder number:
+      // bucket holds the parent, anchestor the parent in the compressed
+      // forest, parent the semidominator and label the minimal
+      // semidominator on the compressed path
+      for (int i = 1; i <= n; i++) {
+        anchestor[i] = semi[parent[vertex[i]]];
+        bucket[i] = anchestor[i];
+      }
 
-      parent = anchestor = vertex = label = semi = bucket = null;
-      snapshot.getIndexManager().inbound().unload();
+      int numberOfThreads = Runtime.getRuntime().availableProcessors();
+      ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+      // the blocks are submitted in the order they are needed
+      LinkedList<Future<Predecessors>> pending = new LinkedList<Future<Predecessors>>();
+      try {
+        int next = n + 1;
+        int[] stack = new int[1024];
+
+        while (next > 2 || !pending.isEmpty()) {
+          while (next > 2 && pending.size() < 2 * numberOfThreads) {
+            int first = Math.max(2, next - BLOCK_SIZE);
+            pending.add(executor.submit(new Predecessors(first, next)));
+            next = first;
+          }
 
-      if (progressListener0.isCanceled()) throw new IProgressListener.OperationCanceledException();
+          Predecessors block = getResult(pending.removeFirst());
+          for (int i = block.end - 1; i >= block.start; i--) {
+            int s = block.earlier[i - block.start];
+            for (int p = block.offsets[i - block.start]; p < block.offsets[i - block.start + 1];
+                p++) {
+              int v = block.later[p];
+
+              // compress the path from v up to the last processed vertex
+              int size = 0;
+              for (int u = v; anchestor[u] > i; u = anchestor[u]) {
+                if (size == stack.length) stack = grow(stack, size << 1);
+                stack[size++] = u;
+              }
+              while (size > 0) {
+                int u = stack[--size];
+                int a = anchestor[u];
+                if (label[a] < label[u]) label[u] = label[a];
+                anchestor[u] = anchestor[a];
+              }
 
-      // pre-condition for index writing:
-      // retainedSetIdx is still sorted by object id
-      snapshot.getIndexManager()
-          .setReader(IndexManager.Index.DOMINATOR, new IndexWriter.IntIndexStreamer().writeTo(
-              IndexManager.Index.DOMINATOR.getFile(snapshot.getSnapshotInfo().getPrefix()),
-              new IteratorInt() {
-                int nextIndex = 2;
+              if (label[v] < s) s = label[v];
+            }
+            parent[i] = s;
+            label[i] = s;
 
-                public boolean hasNext() {
-                  return nextIndex < dom.length;
-                }
+            if (i % 1000 == 0) {
+              if (progressListener.isCanceled()) {
+                throw new IProgressListener.OperationCanceledException();
+              }
+              progressListener.worked(1);
+            }
+          }
+        }
+      } finally {
+        // after a failure the blocks not started are dropped, the running
+        // ones read the inbound index and must not be interrupted
+        for (Future<Predecessors> future : pending)
+          future.cancel(false);
+        ExecutorUtil.shutdownAndWait(executor);
+      }
 
-                public int next() {
-                  return dom[nextIndex++];
-                }
-              }));
+      // the nearest common ancestor of parent and semidominator
+      dom[1] = 0;
+      for (int i = 2; i <= n; i++) {
+        int x = bucket[i];
+        while (x > parent[i])
+          x = dom[x];
+        dom[i] = x;
+      }
 
-      int[] objectIds = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
-      for (int i = 0; i < objectIds.length; i++)
-        objectIds[i] = i - 2;
+      // back to the vertices
+      System.arraycopy(dom, 0, label, 0, n + 1);
+      Arrays.fill(dom, 0);
+      for (int i = 2; i <= n; i++)
+        dom[vertex[i]] = vertex[label[i]];
+    }
 
-      objectIds[0] = -2;
-      objectIds[1] = ROOT_VALUE;
-      progressListener0.worked(1);
+    /**
+     * The predecessors of the vertices with the preorder numbers start to end
+     * (exclusive): per vertex the smallest preorder number of a predecessor
+     * visited before it, and the predecessors visited after it.
+     */
+    private class Predecessors implements Callable<Predecessors> {
+      final int start;
+      final int end;
+
+      int[] earlier;
+      int[] offsets;
+      int[] later;
+
+      Predecessors(int start, int end) {
+        this.start = start;
+        this.end = end;
+      }
 
-      ArrayUtils.sort(dom, objectIds, 2, dom.length - 2);
-      progressListener0.worked(1);
+      public Predecessors call() {
+        int length = end - start;
+        int[] ids = new int[length];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+          int id = vertex[i] - 2;
+          if (!gcRootsSet.get(id)) ids[count++] = id;
+        }
 
-      FlatDominatorTree tree = new FlatDominatorTree(snapshot, dom, objectIds, ROOT_VALUE);
+        int[] index = new int[count + 1];
+        later = inboundIndex.getAll(ids, 0, count, index, null);
 
-      if (progressListener0.isCanceled()) throw new IProgressListener.OperationCanceledException();
+        earlier = new int[length];
+        offsets = new int[length + 1];
+        int entry = 0;
+        int size = 0;
+        for (int i = start; i < end; i++) {
+          int min = i;
+          if (gcRootsSet.get(vertex[i] - 2)) {
+            // for the GC roots only the artificial root counts
+            min = semi[r];
+          } else {
+            for (int p = index[entry]; p < index[entry + 1]; p++) {
+              int v = semi[later[p] + 2];
+              if (v == 0) continue;
+
+              if (v < min) {
+                min = v;
+              } else if (v > i) {
+                later[size++] = v;
+              }
+            }
+            entry++;
+          }
+          earlier[i - start] = min;
+          offsets[i - start + 1] = size;
+        }
 
-      writeIndexFiles(tree);
-      progressListener0.done();
+        return this;
+      }
+    }
+
+    private static <V> V getResult(Future<V> future) throws IOException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        IOException ioe = new IOException(e.getMessage());
+        ioe.initCause(e);
+        throw ioe;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        IOException ioe = new IOException(cause.getMessage());
+        ioe.initCause(cause);
+        throw ioe;
+      }
     }
 
+    /* the successors of that many unvisited vertices are fetched at once */
+    private static final int PREFETCH_SIZE = 1024;
+
     private void dfs(int root) throws UnsupportedOperationException {
       IProgressListener progressListener = this.monitor.nextMonitor();
       progressListener.beginTask(Messages.DominatorTree_DepthFirstSearch,
           snapshot.getSnapshotInfo().getNumberOfObjects() >> 16);
 
+      // The successors are not read one vertex at a time: when a vertex starts
+      // (or continues) with its successors, the successor lists of its next
+      // unvisited successors are fetched with one bulk read. They are kept
+      // in the arena, which is used as a stack in parallel to the tree
+      // stacks. The region of a vertex holds
+      //   [positions of the fetched successors][offsets][successor lists]
+      // and its successors are a range within the region of its parent.
+      // The visiting order is exactly the one of a plain depth first search.
+      int[] arena = new int[Math.max(gcRootsArray.length * 2, 64 * 1024)];
+      System.arraycopy(gcRootsArray, 0, arena, 0, gcRootsArray.length);
+      int arenaSize = gcRootsArray.length;
+
+      int[] fetchIds = new int[PREFETCH_SIZE];
+      int[] fetchOffsets = new int[PREFETCH_SIZE + 1];
+      int[] fetchTargets = null;
+
       // a stack for each parameter - stack code is inlined for
       // performance
-      // currentElementStack - for v, successorsStack - for the successors
-      // array,
-      // currentSuccessorStack - for the index in the array
+      // currentElementStack - for v, currentSuccessorStack - for the
+      // position of the next successor in the arena, successorsEndStack -
+      // for the end of the successors, regionStack - for the start of the
+      // region, fetchedEndStack - for the position up to which the
+      // successors are fetched, fetchCountStack - for the number of
+      // fetched successors, fetchCursorStack - for the next fetched successor
       int capacity = 2048; // capacity for the arrays
       int size = 0; // one size for all arrays
       int[] currentElementStack = new int[capacity];
       int[] currentSuccessorStack = new int[capacity];
-      Object[] successorsStack = new Object[capacity];
-
-      int v = root;
-      int[] successors = gcRootsArray;
-      int currentSuccessor = 0;
+      int[] successorsEndStack = new int[capacity];
+      int[] regionStack = new int[capacity];
+      int[] fetchedEndStack = new int[capacity];
+      int[] fetchCountStack = new int[capacity];
+      int[] fetchCursorStack = new int[capacity];
 
       // push the initial values
       currentElementStack[size] = root;
-      successorsStack[size] = successors;
-      currentSuccessorStack[size] = currentSuccessor;
+      currentSuccessorStack[size] = 0;
+      successorsEndStack[size] = gcRootsArray.length;
+      regionStack[size] = arenaSize;
+      fetchedEndStack[size] = 0;
       size++;
 
       while (size > 0) {
-        v = currentElementStack[size - 1];
-        successors = (int[]) successorsStack[size - 1];
-        currentSuccessor = currentSuccessorStack[size - 1];
+        int v = currentElementStack[size - 1];
+        int currentSuccessor = currentSuccessorStack[size - 1];
+        int successorsEnd = successorsEndStack[size - 1];
+        int region = regionStack[size - 1];
 
         if (semi[v] == 0) {
           n = n + 1;
@@ -235,42 +769,76 @@ public class DominatorTree {
           anchestor[v] = 0;
         }
 
-        if (currentSuccessor < successors.length) {
-          int w = successors[currentSuccessor++] + 2;
-          currentSuccessorStack[size - 1] = currentSuccessor; // update
+        if (currentSuccessor < successorsEnd) {
+          if (currentSuccessor >= fetchedEndStack[size - 1]) {
+            // fetch the successors of the next unvisited successors,
+            // replacing the previously fetched ones
+            int count = 0;
+            int position = currentSuccessor;
+            for (; position < successorsEnd && count < PREFETCH_SIZE; position++) {
+              if (semi[arena[position] + 2] == 0) fetchIds[count++] = arena[position];
+            }
+
+            fetchTargets = outboundIndex.getAll(fetchIds, 0, count, fetchOffsets, fetchTargets);
+
+            int required = region + 2 * count + 1 + fetchOffsets[count];
+            if (required > arena.length) {
+              int[] newArena = new int[Math.max(required, arena.length << 1)];
+              System.arraycopy(arena, 0, newArena, 0, region);
+              arena = newArena;
+            }
+
+            int fetched = 0;
+            for (int ii = currentSuccessor; ii < position; ii++) {
+              if (semi[arena[ii] + 2] == 0) arena[region + fetched++] = ii;
+            }
+            System.arraycopy(fetchOffsets, 0, arena, region + count, count + 1);
+            System.arraycopy(fetchTargets, 0, arena, region + 2 * count + 1,
+                fetchOffsets[count]);
+            arenaSize = required;
+
+            fetchedEndStack[size - 1] = position;
+            fetchCountStack[size - 1] = count;
+            fetchCursorStack[size - 1] = 0;
+          }
+
+          int w = arena[currentSuccessor] + 2;
+          currentSuccessorStack[size - 1] = currentSuccessor + 1; // update
           // the top
           // value
 
           // push the next unvisited successor
           if (semi[w] == 0) {
             parent[w] = v;
-            successors = outboundIndex.get(w - 2); // get the
-            // successors of w
+
+            // its successors were fetched, find them in the region
+            int cursor = fetchCursorStack[size - 1];
+            while (arena[region + cursor] < currentSuccessor) cursor++;
+            fetchCursorStack[size - 1] = cursor + 1;
+
+            int count = fetchCountStack[size - 1];
+            int successorsStart = region + 2 * count + 1;
+            int from = successorsStart + arena[region + count + cursor];
+            int to = successorsStart + arena[region + count + cursor + 1];
 
                         /* start push() */
             // is expanding needed?
             if (size == capacity) {
               int newCapacity = capacity << 1;
-              // resize currentElementStack
-              int[] newArr = new int[newCapacity];
-              System.arraycopy(currentElementStack, 0, newArr, 0, capacity);
-              currentElementStack = newArr;
-
-              // resize currentSuccessorStack
-              newArr = new int[newCapacity];
-              System.arraycopy(currentSuccessorStack, 0, newArr, 0, capacity);
-              currentSuccessorStack = newArr;
-
-              // resize successorsStack
-              Object[] newSuccessorsArr = new Object[newCapacity];
-              System.arraycopy(successorsStack, 0, newSuccessorsArr, 0, capacity);
-              successorsStack = newSuccessorsArr;
-
+              currentElementStack = grow(currentElementStack, newCapacity);
+              currentSuccessorStack = grow(currentSuccessorStack, newCapacity);
+              successorsEndStack = grow(successorsEndStack, newCapacity);
+              regionStack = grow(regionStack, newCapacity);
+              fetchedEndStack = grow(fetchedEndStack, newCapacity);
+              fetchCountStack = grow(fetchCountStack, newCapacity);
+              fetchCursorStack = grow(fetchCursorStack, newCapacity);
               capacity = newCapacity;
             }
             currentElementStack[size] = w;
-            successorsStack[size] = successors;
-            currentSuccessorStack[size] = 0;
+            currentSuccessorStack[size] = from;
+            successorsEndStack[size] = to;
+            regionStack[size] = arenaSize;
+            fetchedEndStack[size] = from;
             size++;
                         /* end push() */
 
@@ -285,12 +853,19 @@ public class DominatorTree {
         } else {
           // this one acts as a pop() for all tree stacks
           size--;
+          arenaSize = region;
         }
       }
 
       progressListener.done();
     }
 
+    static int[] grow(int[] array, int newCapacity) {
+      int[] newArr = new int[newCapacity];
+      System.arraycopy(array, 0, newArr, 0, array.length);
+      return newArr;
+    }
+
     // gets retained set idx and returns the real indexes
     private int[] getPredecessors(int v) {
       v -= 2;
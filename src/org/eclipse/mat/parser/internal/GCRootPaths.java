@@ -0,0 +1,96 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.internal;
+
+import java.io.IOException;
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.hprof.Messages;
+import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.index.IndexManager;
+import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.util.IProgressListener;
+
+/**
+ * Writes the indices of the shortest paths from the GC roots: a breadth
+ * first search from all GC roots stores the object it reached each object
+ * from first (GC_PARENT) and the number of references from the nearest GC
+ * root (GC_DISTANCE). The search visits the roots and references in the same
+ * order as MultiplePathsFromGCRootsComputerImpl, so the paths are the same.
+ */
+public class GCRootPaths {
+  /* the references of that many objects are read at once */
+  private static final int BATCH_SIZE = 1024;
+
+  public static void calculate(SnapshotImpl snapshot, IProgressListener listener)
+      throws SnapshotException, IOException {
+    IndexManager indexManager = snapshot.getIndexManager();
+    IIndexReader.IOne2ManyIndex outbound = indexManager.outbound();
+    int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+
+    // the parent + 2 and the distance + 1 of each object, 0 if unreachable,
+    // as in the dominator index the parent of a GC root is 1
+    int[] parent = new int[numberOfObjects];
+    int[] distance = new int[numberOfObjects];
+
+    // the objects in the order they are reached
+    int[] fifo = new int[numberOfObjects];
+    int size = 0;
+    for (int root : snapshot.getGCRoots()) {
+      if (parent[root] == 0) {
+        parent[root] = 1;
+        distance[root] = 1;
+        fifo[size++] = root;
+      }
+    }
+
+    listener.beginTask(Messages.GCRootPaths_CalculatingShortestPaths,
+        numberOfObjects / BATCH_SIZE + 2);
+
+    int[] batch = new int[BATCH_SIZE];
+    int[] batchOffsets = new int[BATCH_SIZE + 1];
+    int[] children = null;
+    for (int processed = 0; processed < size; ) {
+      int length = Math.min(size - processed, BATCH_SIZE);
+      System.arraycopy(fifo, processed, batch, 0, length);
+      children = outbound.getAll(batch, 0, length, batchOffsets, children);
+
+      for (int jj = 0; jj < length; jj++) {
+        int objectId = batch[jj];
+        for (int ii = batchOffsets[jj]; ii < batchOffsets[jj + 1]; ii++) {
+          int child = children[ii];
+          if (parent[child] == 0) {
+            parent[child] = objectId + 2;
+            distance[child] = distance[objectId] + 1;
+            fifo[size++] = child;
+          }
+        }
+      }
+
+      processed += length;
+      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+      listener.worked(1);
+    }
+    fifo = null;
+
+    String prefix = snapshot.getSnapshotInfo().getPrefix();
+    indexManager.setReader(IndexManager.Index.GC_PARENT, new IndexWriter.IntIndexStreamer()
+        .writeTo(IndexManager.Index.GC_PARENT.getFile(prefix), parent));
+    parent = null;
+
+    // mostly small numbers
+    indexManager.setReader(IndexManager.Index.GC_DISTANCE, new IndexWriter.IntIndexStreamer(true)
+        .writeTo(IndexManager.Index.GC_DISTANCE.getFile(prefix), distance));
+
+    listener.done();
+  }
+}
@@ -19,6 +19,15 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.mat.collect.AtomicBitField;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.collect.IteratorInt;
@@ -30,6 +39,7 @@ import org.eclipse.mat.parser.index.IndexManager;
 import org.eclipse.mat.parser.index.IndexManager.Index;
 import org.eclipse.mat.parser.index.IndexWriter;
 import org.eclipse.mat.parser.internal.snapshot.ObjectMarker;
+import org.eclipse.mat.parser.internal.util.ExecutorUtil;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.XGCRootInfo;
 import org.eclipse.mat.util.IProgressListener;
@@ -50,7 +60,7 @@ import org.eclipse.mat.util.SilentProgressListener;
       final int oldNoOfObjects = idx.identifiers.size();
 
       // determine reachable objects
-      boolean[] reachable = new boolean[oldNoOfObjects];
+      AtomicBitField reachable = new AtomicBitField(oldNoOfObjects);
       int newNoOfObjects = 0;
       int[] newRoots = idx.gcRoots.getAllKeys();
 
@@ -68,16 +78,12 @@ import org.eclipse.mat.util.SilentProgressListener;
           new ObjectMarker(newRoots, reachable, preOutbound, new SilentProgressListener(listener));
       if (numProcessors > 1) {
         try {
-          marker.markMultiThreaded(numProcessors);
+          newNoOfObjects = marker.markMultiThreaded(numProcessors);
         } catch (InterruptedException e) {
           IOException ioe = new IOException(e.getMessage());
           ioe.initCause(e);
           throw ioe;
         }
-
-        // find the number of new objects. It's not returned by marker
-        for (boolean b : reachable)
-          if (b) newNoOfObjects++;
       } else {
         try {
           newNoOfObjects = marker.markSingleThreaded();
@@ -119,7 +125,7 @@ import org.eclipse.mat.util.SilentProgressListener;
       final IOne2OneIndex preA2size = idx.array2size;
 
       for (int ii = 0, jj = 0; ii < oldNoOfObjects; ii++) {
-        if (reachable[ii]) {
+        if (reachable.get(ii)) {
           map[ii] = jj;
           id2a[jj++] = identifiers.get(ii);
         } else {
@@ -189,140 +195,191 @@ import org.eclipse.mat.util.SilentProgressListener;
       listener.worked(1); // 5
 
       // //////////////////////////////////////////////////////////////
-      // identifiers
-      // //////////////////////////////////////////////////////////////
-
-      File indexFile = Index.IDENTIFIER.getFile(idx.snapshotInfo.getPrefix());
-      listener.subTask(
-          MessageUtil.format(Messages.GarbageCleaner_Writing, indexFile.getAbsolutePath()));
-      idxManager.setReader(Index.IDENTIFIER,
-          new IndexWriter.LongIndexStreamer().writeTo(indexFile, id2a));
-
-      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
-      listener.worked(1); // 6
-
-      // //////////////////////////////////////////////////////////////
-      // object 2 class Id
+      // identifiers, object 2 class id, array size, inbound, outbound
       // //////////////////////////////////////////////////////////////
 
-      indexFile = Index.O2CLASS.getFile(idx.snapshotInfo.getPrefix());
-      listener.subTask(
-          MessageUtil.format(Messages.GarbageCleaner_Writing, indexFile.getAbsolutePath()));
-      idxManager.setReader(Index.O2CLASS,
-          new IndexWriter.IntIndexStreamer().writeTo(indexFile, new NewObjectIntIterator() {
-            @Override int doGetNextInt(int index) {
-              return map[idx.object2classId.get(nextIndex)];
-              // return
-              // map[object2classId.get(nextIndex)];
-            }
+      // The new indices only read the preliminary index and the map, hence
+      // they are written concurrently. The references are remapped once (on
+      // this thread) and passed on to both the outbound and inbound writer.
+      final String prefix = idx.snapshotInfo.getPrefix();
+      final IOne2OneIndex preObject2classId = object2classId;
+      final BitField arrayObjects = new BitField(newNoOfObjects);
 
-            @Override int[] getMap() {
-              return map;
+      final IndexWriter.IntArray1NSortedWriter w_out =
+          new IndexWriter.IntArray1NSortedWriter(newNoOfObjects,
+              IndexManager.Index.OUTBOUND.getFile(prefix));
+      final IndexWriter.InboundWriter w_in =
+          new IndexWriter.InboundWriter(newNoOfObjects, IndexManager.Index.INBOUND.getFile(prefix));
+      final ChunkQueue outQueue = new ChunkQueue();
+      final ChunkQueue inQueue = new ChunkQueue();
+
+      // the writers of the references are waited for by this thread, hence
+      // they are submitted first and need a thread each
+      ExecutorService executor =
+          Executors.newFixedThreadPool(Math.max(2, Math.min(numProcessors, 5)));
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      boolean done = false;
+      try {
+        Future<Void> outboundLogged = executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            try {
+              for (Chunk chunk; (chunk = outQueue.take()) != ChunkQueue.END; ) {
+                for (int ii = 0; ii < chunk.size; ii++) {
+                  int offset = chunk.offsets[ii];
+                  w_out.log(chunk.objects[ii], chunk.references, offset,
+                      chunk.offsets[ii + 1] - offset);
+                }
+              }
+              return null;
+            } finally {
+              outQueue.close();
             }
-          }));
-
-      object2classId.close();
-      object2classId.delete();
-      object2classId = null;
-
-      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
-      listener.worked(1); // 7
-
-      // //////////////////////////////////////////////////////////////
-      // array size
-      // //////////////////////////////////////////////////////////////
-
-      indexFile = Index.A2SIZE.getFile(idx.snapshotInfo.getPrefix());
-      listener.subTask(MessageUtil.format(Messages.GarbageCleaner_Writing, new Object[] {
-          indexFile.getAbsolutePath()
-      }));
-      final BitField arrayObjects = new BitField(newNoOfObjects);
-      // arrayObjects
-      idxManager.setReader(Index.A2SIZE,
-          new IndexWriter.IntIndexStreamer().writeTo(indexFile, new NewObjectIntIterator() {
-            IOne2OneIndex a2size = preA2size;
-            int newIndex = 0;
-
-            @Override int doGetNextInt(int index) {
-              int size = a2size.get(nextIndex);
-              if (size > 0) arrayObjects.set(newIndex);
-              newIndex++;
-              return size;
+          }
+        });
+        tasks.add(outboundLogged);
+
+        Future<Void> inboundLogged = executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            try {
+              for (Chunk chunk; (chunk = inQueue.take()) != ChunkQueue.END; ) {
+                for (int ii = 0; ii < chunk.size; ii++) {
+                  int k = chunk.objects[ii];
+                  int offset = chunk.offsets[ii];
+                  for (int jj = offset; jj < chunk.offsets[ii + 1]; jj++)
+                    w_in.log(chunk.references[jj], k, jj == offset);
+                }
+              }
+              return null;
+            } finally {
+              inQueue.close();
             }
+          }
+        });
+        tasks.add(inboundLogged);
 
-            @Override int[] getMap() {
-              return map;
-            }
-          }));
+        Future<IOne2LongIndex> identifierIndex = executor.submit(new Callable<IOne2LongIndex>() {
+          public IOne2LongIndex call() throws IOException {
+            return new IndexWriter.LongIndexStreamer().writeTo(Index.IDENTIFIER.getFile(prefix),
+                id2a);
+          }
+        });
+        tasks.add(identifierIndex);
+
+        Future<IOne2OneIndex> classIndex = executor.submit(new Callable<IOne2OneIndex>() {
+          public IOne2OneIndex call() throws IOException {
+            IOne2OneIndex index = new IndexWriter.IntIndexStreamer().writeTo(
+                Index.O2CLASS.getFile(prefix), new NewObjectIntIterator() {
+                  @Override int doGetNextInt(int index) {
+                    return map[preObject2classId.get(nextIndex)];
+                  }
+
+                  @Override int[] getMap() {
+                    return map;
+                  }
+                });
+
+            preObject2classId.close();
+            preObject2classId.delete();
+            return index;
+          }
+        });
+        tasks.add(classIndex);
+
+        Future<IOne2OneIndex> sizeIndex = executor.submit(new Callable<IOne2OneIndex>() {
+          public IOne2OneIndex call() throws IOException {
+            IOne2OneIndex index = new IndexWriter.IntIndexStreamer().writeTo(
+                Index.A2SIZE.getFile(prefix), new NewObjectIntIterator() {
+                  IOne2OneIndex a2size = preA2size;
+                  int newIndex = 0;
+
+                  @Override int doGetNextInt(int index) {
+                    int size = a2size.get(nextIndex);
+                    if (size > 0) arrayObjects.set(newIndex);
+                    newIndex++;
+                    return size;
+                  }
+
+                  @Override int[] getMap() {
+                    return map;
+                  }
+                });
+
+            preA2size.close();
+            preA2size.delete();
+            return index;
+          }
+        });
+        tasks.add(sizeIndex);
 
-      preA2size.close();
-      preA2size.delete();
+        listener.subTask(Messages.GarbageCleaner_ReIndexingOutboundIndex.pattern);
 
-      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
-      listener.worked(1); // 9
+        boolean complete;
+        try {
+          complete = remapReferences(preOutbound, map, outQueue, inQueue, listener);
+        } catch (InterruptedException e) {
+          IOException ioe = new IOException(e.getMessage());
+          ioe.initCause(e);
+          throw ioe;
+        }
 
-      // //////////////////////////////////////////////////////////////
-      // inbound, outbound
-      // //////////////////////////////////////////////////////////////
+        getResult(outboundLogged);
+        getResult(inboundLogged);
 
-      listener.subTask(Messages.GarbageCleaner_ReIndexingOutboundIndex.pattern);
+        preOutbound.close();
+        preOutbound.delete();
+        preOutbound = null;
 
-      IndexWriter.IntArray1NSortedWriter w_out =
-          new IndexWriter.IntArray1NSortedWriter(newNoOfObjects,
-              IndexManager.Index.OUTBOUND.getFile(idx.snapshotInfo.getPrefix()));
-      IndexWriter.InboundWriter w_in = new IndexWriter.InboundWriter(newNoOfObjects,
-          IndexManager.Index.INBOUND.getFile(idx.snapshotInfo.getPrefix()));
+        if (!complete) throw new IProgressListener.OperationCanceledException();
+        listener.worked(1); // 6
 
-      for (int ii = 0; ii < oldNoOfObjects; ii++) {
-        int k = map[ii];
-        if (k < 0) continue;
+        idxManager.setReader(Index.IDENTIFIER, getResult(identifierIndex));
+        listener.worked(1); // 7
+        idxManager.setReader(Index.O2CLASS, getResult(classIndex));
+        object2classId = null;
+        listener.worked(1); // 8
+        idxManager.setReader(Index.A2SIZE, getResult(sizeIndex));
+        listener.worked(1); // 9
 
-        int[] a = preOutbound.get(ii);
-        int[] tl = new int[a.length];
-        for (int jj = 0; jj < a.length; jj++) {
-          int t = map[a[jj]];
+        if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
 
-					/* No check if the referenced objects are alive */
-          /* The garbage can't be reached from a live object */
-          // removed if (t >= 0) ...
-          tl[jj] = t;
-          w_in.log(t, k, jj == 0);
+        // the outbound index is flushed while the inbound segments are sorted
+        Future<IOne2ManyIndex> outboundIndex = executor.submit(new Callable<IOne2ManyIndex>() {
+          public IOne2ManyIndex call() throws IOException {
+            return w_out.flush();
+          }
+        });
+        tasks.add(outboundIndex);
+
+        listener.subTask(MessageUtil.format(Messages.GarbageCleaner_Writing,
+            w_in.getIndexFile().getAbsolutePath()));
+
+        idxManager.setReader(Index.INBOUND,
+            w_in.flush(listener, new KeyWriterImpl(classesByNewId)));
+        listener.worked(1); // 10
+
+        idxManager.setReader(Index.OUTBOUND, getResult(outboundIndex));
+        if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+        listener.worked(1); // 11
+        done = true;
+      } finally {
+        if (!done) {
+          // the writers of the references may wait for chunks which never
+          // come, the remaining tasks are not needed anymore
+          outQueue.close();
+          inQueue.close();
+          for (Future<?> task : tasks)
+            task.cancel(false);
         }
 
-        w_out.log(k, tl);
-      }
-
-      preOutbound.close();
-      preOutbound.delete();
-      preOutbound = null;
-
-      if (listener.isCanceled()) {
-        w_in.cancel();
-        w_out.cancel();
-        throw new IProgressListener.OperationCanceledException();
-      }
-      listener.worked(1); // 10
-
-      listener.subTask(MessageUtil.format(Messages.GarbageCleaner_Writing,
-          w_in.getIndexFile().getAbsolutePath()));
+        // the tasks read the indices, an interrupt would close them
+        ExecutorUtil.shutdownAndWait(executor);
 
-      idxManager.setReader(Index.INBOUND, w_in.flush(listener, new KeyWriterImpl(classesByNewId)));
-      w_in = null;
-      if (listener.isCanceled()) {
-        w_out.cancel();
-        throw new IProgressListener.OperationCanceledException();
+        if (!done) {
+          w_in.cancel();
+          w_out.cancel();
+        }
       }
 
-      listener.worked(1); // 11
-
-      listener.subTask(MessageUtil.format(Messages.GarbageCleaner_Writing, new Object[] {
-          w_out.getIndexFile().getAbsolutePath()
-      }));
-      idxManager.setReader(Index.OUTBOUND, w_out.flush());
-      w_out = null;
-      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
-      listener.worked(1); // 12
-
       // fix roots
       HashMapIntObject<XGCRootInfo[]> roots = fix(idx.gcRoots, map);
       idx.getSnapshotInfo().setNumberOfGCRoots(roots.size());
@@ -354,6 +411,122 @@ import org.eclipse.mat.util.SilentProgressListener;
     }
   }
 
+  /**
+   * Remaps the references of the live objects, chunk by chunk, and passes
+   * each chunk on to the given queues.
+   *
+   * @return false if canceled
+   */
+  private static boolean remapReferences(IOne2ManyIndex preOutbound, int[] map,
+      ChunkQueue outQueue, ChunkQueue inQueue, IProgressListener listener)
+      throws InterruptedException {
+    int[] objects = new int[Chunk.SIZE];
+    int[] offsets = new int[Chunk.SIZE + 1];
+    int[] references = null;
+
+    try {
+      for (int ii = 0; ii < map.length; ) {
+        int length = 0;
+        for (; ii < map.length && length < Chunk.SIZE; ii++) {
+          if (map[ii] >= 0) objects[length++] = ii;
+        }
+
+        references = preOutbound.getAll(objects, 0, length, offsets, references);
+
+        Chunk chunk = new Chunk(length, offsets[length]);
+        for (int jj = 0; jj < length; jj++)
+          chunk.objects[jj] = map[objects[jj]];
+        System.arraycopy(offsets, 0, chunk.offsets, 0, length + 1);
+        for (int jj = 0; jj < offsets[length]; jj++) {
+          /* No check if the referenced objects are alive */
+          /* The garbage can't be reached from a live object */
+          chunk.references[jj] = map[references[jj]];
+        }
+
+        outQueue.put(chunk);
+        inQueue.put(chunk);
+
+        if (listener.isCanceled()) return false;
+      }
+      return true;
+    } finally {
+      outQueue.put(ChunkQueue.END);
+      inQueue.put(ChunkQueue.END);
+    }
+  }
+
+  private static <V> V getResult(Future<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      IOException ioe = new IOException(cause.getMessage());
+      ioe.initCause(cause);
+      throw ioe;
+    }
+  }
+
+  /**
+   * The remapped references of consecutive live objects, in compressed sparse
+   * row layout.
+   */
+  private static class Chunk {
+    static final int SIZE = 4096;
+
+    int size;
+    int[] objects;
+    int[] offsets;
+    int[] references;
+
+    Chunk(int size, int numberOfReferences) {
+      this.size = size;
+      this.objects = new int[size];
+      this.offsets = new int[size + 1];
+      this.references = new int[numberOfReferences];
+    }
+  }
+
+  /**
+   * Hands the chunks to one writer. Once the writer is done (or failed) the
+   * queue is closed and the producer no longer waits for it. If the producer
+   * fails, the queue is closed and the writer gets no more chunks.
+   */
+  private static class ChunkQueue {
+    static final Chunk END = new Chunk(0, 0);
+
+    /* bounds the memory used by chunks which are not written yet */
+    private static final int CAPACITY = 16;
+
+    BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(CAPACITY);
+    volatile boolean closed;
+
+    void put(Chunk chunk) throws InterruptedException {
+      while (!closed && !queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+        // wait for the writer
+      }
+    }
+
+    Chunk take() throws InterruptedException {
+      while (!closed) {
+        Chunk chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (chunk != null) return chunk;
+      }
+      return END;
+    }
+
+    void close() {
+      closed = true;
+      queue.clear();
+    }
+  }
+
   private static HashMapIntObject<XGCRootInfo[]> fix(HashMapIntObject<List<XGCRootInfo>> roots,
       final int[] map) {
     HashMapIntObject<XGCRootInfo[]> answer = new HashMapIntObject<XGCRootInfo[]>(roots.size());
@@ -501,10 +674,10 @@ import org.eclipse.mat.util.SilentProgressListener;
   // //////////////////////////////////////////////////////////////
 
   private static void markUnreachbleAsGCRoots(final PreliminaryIndexImpl idx, //
-      boolean[] reachable, //
+      AtomicBitField reachable, //
       int noReachableObjects, //
       int extraRootType, IProgressListener listener) {
-    final int noOfObjects = reachable.length;
+    final int noOfObjects = reachable.size();
     final IOne2LongIndex identifiers = idx.identifiers;
     final IOne2ManyIndex preOutbound = idx.outbound;
 
@@ -515,7 +688,7 @@ import org.eclipse.mat.util.SilentProgressListener;
     // find objects not referenced by any other object
     boolean inbounds[] = new boolean[noOfObjects];
     for (int ii = 0; ii < noOfObjects; ++ii) {
-      if (!reachable[ii]) {
+      if (!reachable.get(ii)) {
         // We only need search the unreachable objects as
         // the reachable ones will have already marked
         // its outbound refs.
@@ -529,7 +702,7 @@ import org.eclipse.mat.util.SilentProgressListener;
       // pass do everything else
       for (int ii = 0; ii < noOfObjects && noReachableObjects < noOfObjects; ++ii) {
         // Do the objects with no inbounds first
-        if (!reachable[ii] && (pass == 1 || !inbounds[ii])) {
+        if (!reachable.get(ii) && (pass == 1 || !inbounds[ii])) {
           // Identify this unreachable object as a root,
           // and see what else is now reachable
           // No need to mark it as the marker will do that
@@ -14,23 +14,35 @@ package org.eclipse.mat.parser.internal;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.hprof.HprofIndexBuilder;
 import org.eclipse.mat.hprof.Messages;
+import org.eclipse.mat.hprof.QuickHistogram;
 import org.eclipse.mat.parser.IIndexBuilder;
+import org.eclipse.mat.parser.index.PageCache;
 import org.eclipse.mat.parser.internal.util.ParserRegistry;
 import org.eclipse.mat.parser.internal.util.ParserRegistry.Parser;
 import org.eclipse.mat.parser.model.XSnapshotInfo;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.GCRootInfo;
 import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.IProgressListener.Severity;
 import org.eclipse.mat.util.MessageUtil;
 
 public class SnapshotFactory {
@@ -44,10 +56,41 @@ public class SnapshotFactory {
     }
   }
 
+  /** changed whenever the layout of the index files changes */
+  private static final String INDEX_FORMAT_VERSION = "2"; //$NON-NLS-1$
+
+  /** number of bytes at the start of the dump covered by the fingerprint */
+  private static final int FINGERPRINT_HEADER_SIZE = 64 * 1024;
+
+  /** memory-map the index files of a reopened snapshot */
+  public static final String MAPPED_INDICES = "mapped_indices"; //$NON-NLS-1$
+
+  /** byte budget of the cache for decoded index pages, e.g. 256m */
+  public static final String INDEX_CACHE_SIZE = "index_cache_size"; //$NON-NLS-1$
+
+  /** store the indices of a parsed dump in one container file */
+  public static final String INDEX_CONTAINER = "index_container"; //$NON-NLS-1$
+
+  /** compute the dominator tree on all processors */
+  public static final String PARALLEL_DOMINATOR_TREE = "parallel_dominator_tree"; //$NON-NLS-1$
+
+  /** calculate the dominator tree on first use instead of while parsing */
+  public static final String LAZY_DOMINATOR_TREE = "lazy_dominator_tree"; //$NON-NLS-1$
+
+  /** keep the shortest paths from the GC roots in an index, see GCRootPaths */
+  public static final String GC_ROOT_PATHS = "gc_root_paths"; //$NON-NLS-1$
+
+  /** options which only change how the indices are computed, stored and read, not their content */
+  private static final List<String> READER_ARGS =
+      Arrays.asList(MAPPED_INDICES, INDEX_CACHE_SIZE, INDEX_CONTAINER, PARALLEL_DOMINATOR_TREE,
+          LAZY_DOMINATOR_TREE, GC_ROOT_PATHS);
+
   private Map<File, SnapshotEntry> snapshotCache = new HashMap<File, SnapshotEntry>();
 
   public ISnapshot openSnapshot(File file, Map<String, String> args, IProgressListener listener)
       throws SnapshotException {
+    if (args == null) args = Collections.emptyMap();
+
     ISnapshot answer = null;
 
     // lookup in cache
@@ -61,13 +104,64 @@ public class SnapshotFactory {
       }
     }
 
-    String name = file.getAbsolutePath();
+    String prefix = getPrefix(file);
+
+    String cacheSize = args.get(INDEX_CACHE_SIZE);
+    long pageCacheBudget = cacheSize != null ? parseSize(cacheSize) : -1;
+
+    File indexFile = new File(prefix + "index");//$NON-NLS-1$
+    if (indexFile.exists()) {
+      // reuse the index files if they were written for this very dump
+      if (isManifestValid(file, prefix, args)) {
+        try {
+          boolean mappedIndices = Boolean.parseBoolean(args.get(MAPPED_INDICES));
+          SnapshotImpl snapshot = SnapshotImpl.readFromFile(file, prefix, mappedIndices, listener);
+
+          // the dump may have been parsed without the dominator tree
+          snapshot.setDominatorTreeOnDemand(
+              Boolean.parseBoolean(args.get(PARALLEL_DOMINATOR_TREE)));
+
+          // the same for the paths from the GC roots, which are optional
+          if (Boolean.parseBoolean(args.get(GC_ROOT_PATHS))
+              && snapshot.getIndexManager().gcRootParent() == null) {
+            snapshot.calculateGCRootPaths(listener);
+          }
+          answer = snapshot;
+        } catch (IOException ignore_and_reparse) {
+          String text = ignore_and_reparse.getMessage() != null ? ignore_and_reparse.getMessage()
+              : ignore_and_reparse.getClass().getName();
+          String message =
+              MessageUtil.format(Messages.SnapshotFactoryImpl_Error_ReparsingHeapDump, text);
+          listener.sendUserMessage(Severity.WARNING, message, ignore_and_reparse);
+        }
+      } else {
+        listener.sendUserMessage(Severity.INFO,
+            MessageUtil.format(Messages.SnapshotFactoryImpl_ReparsingHeapDumpAsIndexOutOfDate,
+                file.getPath(), indexFile.getPath()), null);
+        listener.subTask(Messages.SnapshotFactoryImpl_ReparsingHeapDumpWithOutOfDateIndex.pattern);
+      }
+    }
 
-    int p = name.lastIndexOf('.');
-    String prefix = p >= 0 ? name.substring(0, p + 1) : name + ".";//$NON-NLS-1$
+    if (answer == null) {
+      deleteIndexFiles(file);
+      answer = parse(file, prefix, args, listener);
 
-    deleteIndexFiles(file);
-    answer = parse(file, prefix, args, listener);
+      try {
+        writeManifest(file, prefix, args);
+      } catch (IOException e) {
+        listener.sendUserMessage(Severity.WARNING,
+            MessageUtil.format(Messages.SnapshotFactoryImpl_Error_WritingIndexManifest,
+                getManifestFile(prefix).getPath()), e);
+      }
+    }
+
+    if (pageCacheBudget >= 0 && answer instanceof SnapshotImpl) {
+      try {
+        ((SnapshotImpl) answer).getIndexManager().setPageCache(new PageCache(pageCacheBudget));
+      } catch (IOException e) {
+        throw new SnapshotException(e);
+      }
+    }
 
     entry = new SnapshotEntry(1, answer);
 
@@ -76,6 +170,37 @@ public class SnapshotFactory {
     return answer;
   }
 
+  /**
+   * Class histogram from a single scan of the dump; no snapshot is opened and
+   * no index files are written. The argument <code>sample_fraction</code>
+   * (default 1) selects the share of the heap dump segments to read, the
+   * result is then extrapolated and carries error bounds.
+   */
+  public QuickHistogram readQuickHistogram(File file, Map<String, String> args,
+      IProgressListener listener) throws SnapshotException {
+    if (args == null) args = Collections.emptyMap();
+
+    double sampleFraction = 1;
+    String fraction = args.get("sample_fraction"); //$NON-NLS-1$
+    if (fraction != null) {
+      try {
+        sampleFraction = Double.parseDouble(fraction);
+      } catch (NumberFormatException e) {
+        sampleFraction = Double.NaN;
+      }
+      if (!(sampleFraction > 0 && sampleFraction <= 1)) {
+        throw new SnapshotException(
+            MessageUtil.format(Messages.SnapshotFactoryImpl_Error_InvalidSampleFraction, fraction));
+      }
+    }
+
+    try {
+      return HprofIndexBuilder.readQuickHistogram(file, sampleFraction, listener);
+    } catch (IOException ioe) {
+      throw new SnapshotException(ioe);
+    }
+  }
+
   public synchronized void dispose(ISnapshot snapshot) {
 
     for (Iterator<SnapshotEntry> iter = snapshotCache.values().iterator(); iter.hasNext(); ) {
@@ -141,6 +266,11 @@ public class SnapshotFactory {
           snapshotInfo.setProperty("keep_unreachable_objects",
               GCRootInfo.Type.UNREACHABLE);//$NON-NLS-1$
         }
+        // parse-time reference filters, see ClassNameReferenceFilter
+        String[] filters = { "exclude_classes", "exclude_fields" }; //$NON-NLS-1$ //$NON-NLS-2$
+        for (String filter : filters) {
+          if (args.get(filter) != null) snapshotInfo.setProperty(filter, args.get(filter));
+        }
         PreliminaryIndexImpl idx = new PreliminaryIndexImpl(snapshotInfo);
 
         indexBuilder.fill(idx, listener);
@@ -153,7 +283,20 @@ public class SnapshotFactory {
 
         SnapshotImpl snapshot = builder.create(parser);
 
-        snapshot.calculateDominatorTree(listener);
+        boolean parallel = Boolean.parseBoolean(args.get(PARALLEL_DOMINATOR_TREE));
+        if (Boolean.parseBoolean(args.get(LAZY_DOMINATOR_TREE))) {
+          snapshot.setDominatorTreeOnDemand(parallel);
+        } else {
+          snapshot.calculateDominatorTree(parallel, listener);
+        }
+
+        if (Boolean.parseBoolean(args.get(GC_ROOT_PATHS))) {
+          snapshot.calculateGCRootPaths(listener);
+        }
+
+        if (Boolean.parseBoolean(args.get(INDEX_CONTAINER))) {
+          snapshot.getIndexManager().pack(prefix);
+        }
 
         return snapshot;
       } catch (IOException ioe) {
@@ -170,6 +313,105 @@ public class SnapshotFactory {
         MessageUtil.format(Messages.SnapshotFactoryImpl_Error_NoParserRegistered, file.getName()));
   }
 
+  // //////////////////////////////////////////////////////////////
+  // index manifest: fingerprint of the dump the index files belong to
+  // //////////////////////////////////////////////////////////////
+
+  private String getPrefix(File file) {
+    String name = file.getAbsolutePath();
+
+    int p = name.lastIndexOf('.');
+    return p >= 0 ? name.substring(0, p + 1) : name + ".";//$NON-NLS-1$
+  }
+
+  private static long parseSize(String size) throws SnapshotException {
+    String value = size.trim().toLowerCase();
+    long unit = 1;
+    if (value.endsWith("k")) { //$NON-NLS-1$
+      unit = 1L << 10;
+    } else if (value.endsWith("m")) { //$NON-NLS-1$
+      unit = 1L << 20;
+    } else if (value.endsWith("g")) { //$NON-NLS-1$
+      unit = 1L << 30;
+    }
+    if (unit > 1) value = value.substring(0, value.length() - 1);
+
+    try {
+      long answer = Long.parseLong(value);
+      if (answer >= 0) return answer * unit;
+    } catch (NumberFormatException ignore) {
+      // $JL-EXC$
+    }
+    throw new SnapshotException(
+        MessageUtil.format(Messages.SnapshotFactoryImpl_Error_InvalidCacheSize, size));
+  }
+
+  private File getManifestFile(String prefix) {
+    return new File(prefix + "manifest.index");//$NON-NLS-1$
+  }
+
+  private Properties fingerprint(File file, Map<String, String> args) throws IOException {
+    Properties fingerprint = new Properties();
+    fingerprint.setProperty("version", INDEX_FORMAT_VERSION);//$NON-NLS-1$
+    fingerprint.setProperty("length", String.valueOf(file.length()));//$NON-NLS-1$
+    fingerprint.setProperty("lastModified", String.valueOf(file.lastModified()));//$NON-NLS-1$
+
+    CRC32 crc = new CRC32();
+    byte[] header = new byte[FINGERPRINT_HEADER_SIZE];
+    InputStream in = new FileInputStream(file);
+    try {
+      int length = 0, count;
+      while (length < header.length
+          && (count = in.read(header, length, header.length - length)) > 0) {
+        length += count;
+      }
+      crc.update(header, 0, length);
+    } finally {
+      in.close();
+    }
+    fingerprint.setProperty("headerHash", Long.toHexString(crc.getValue()));//$NON-NLS-1$
+
+    // the parsing options influence the content of the indices
+    if (args != null) {
+      for (Map.Entry<String, String> entry : args.entrySet()) {
+        if (READER_ARGS.contains(entry.getKey())) continue;
+        fingerprint.setProperty("arg." + entry.getKey(), //$NON-NLS-1$
+            String.valueOf(entry.getValue()));
+      }
+    }
+
+    return fingerprint;
+  }
+
+  private boolean isManifestValid(File file, String prefix, Map<String, String> args) {
+    File manifestFile = getManifestFile(prefix);
+    if (!manifestFile.exists()) return false;
+
+    try {
+      Properties manifest = new Properties();
+      InputStream in = new FileInputStream(manifestFile);
+      try {
+        manifest.load(in);
+      } finally {
+        in.close();
+      }
+      return manifest.equals(fingerprint(file, args));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void writeManifest(File file, String prefix, Map<String, String> args)
+      throws IOException {
+    Properties manifest = fingerprint(file, args);
+    OutputStream out = new FileOutputStream(getManifestFile(prefix));
+    try {
+      manifest.store(out, null);
+    } finally {
+      out.close();
+    }
+  }
+
   private void deleteIndexFiles(File file) {
     File directory = file.getParentFile();
     if (directory == null) directory = new File("."); //$NON-NLS-1$
@@ -12,7 +12,14 @@
  */
 package org.eclipse.mat.parser.internal;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -24,10 +31,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayIntBig;
+import org.eclipse.mat.collect.AtomicBitField;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.collect.IteratorInt;
@@ -42,7 +54,9 @@ import org.eclipse.mat.parser.internal.snapshot.ObjectCache;
 import org.eclipse.mat.parser.internal.snapshot.ObjectMarker;
 import org.eclipse.mat.parser.internal.snapshot.PathsFromGCRootsTreeBuilder;
 import org.eclipse.mat.parser.internal.snapshot.RetainedSizeCache;
+import org.eclipse.mat.parser.internal.snapshot.RetainedSetsCalculator;
 import org.eclipse.mat.parser.internal.util.IntStack;
+import org.eclipse.mat.parser.internal.util.ParserRegistry;
 import org.eclipse.mat.parser.model.AbstractObjectImpl;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.ClassLoaderImpl;
@@ -56,6 +70,8 @@ import org.eclipse.mat.snapshot.IMultiplePathsFromGCRootsComputer;
 import org.eclipse.mat.snapshot.IPathsFromGCRootsComputer;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.PathsFromGCRootsTree;
+import org.eclipse.mat.snapshot.RetainedSets;
+import org.eclipse.mat.snapshot.ScopedDominatorTree;
 import org.eclipse.mat.snapshot.model.GCRootInfo;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.snapshot.model.IObject;
@@ -72,6 +88,78 @@ public final class SnapshotImpl implements ISnapshot {
   // factory methods
   // //////////////////////////////////////////////////////////////
 
+  private static final String VERSION = "MAT_01";//$NON-NLS-1$
+
+  /**
+   * Reopens a parsed heap dump.
+   *
+   * @param mappedIndices memory-map the index files instead of reading and
+   * caching their pages
+   */
+  @SuppressWarnings("unchecked") public static SnapshotImpl readFromFile(File file, String prefix,
+      boolean mappedIndices, IProgressListener listener) throws SnapshotException, IOException {
+    FileInputStream fis = null;
+
+    listener.beginTask(Messages.SnapshotImpl_ReopeningParsedHeapDumpFile.pattern, 9);
+
+    try {
+      File indexFile = new File(prefix + "index");//$NON-NLS-1$
+      fis = new FileInputStream(indexFile);
+      listener.worked(1);
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(fis));
+
+      String version = in.readUTF();
+      if (!VERSION.equals(version)) {
+        throw new IOException(
+            MessageUtil.format(Messages.SnapshotImpl_Error_UnknownVersion, version));
+      }
+
+      String objectReaderUniqueIdentifier = in.readUTF();
+      ParserRegistry.Parser parser = ParserRegistry.lookupParser(objectReaderUniqueIdentifier);
+      if (parser == null) {
+        throw new IOException(
+            Messages.SnapshotImpl_Error_ParserNotFound.pattern + objectReaderUniqueIdentifier);
+      }
+      listener.worked(1);
+      IObjectReader heapObjectReader = parser.getObjectReader();
+
+      XSnapshotInfo snapshotInfo = (XSnapshotInfo) in.readObject();
+      snapshotInfo.setPrefix(prefix);
+      snapshotInfo.setPath(file.getAbsolutePath());
+      HashMapIntObject<ClassImpl> classCache = (HashMapIntObject<ClassImpl>) in.readObject();
+
+      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+      listener.worked(3);
+
+      HashMapIntObject<XGCRootInfo[]> roots = (HashMapIntObject<XGCRootInfo[]>) in.readObject();
+      HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> rootsPerThread =
+          (HashMapIntObject<HashMapIntObject<XGCRootInfo[]>>) in.readObject();
+
+      if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+      listener.worked(3);
+
+      HashMapIntObject<String> loaderLabels = (HashMapIntObject<String>) in.readObject();
+      BitField arrayObjects = (BitField) in.readObject();
+
+      IndexManager indexManager = new IndexManager();
+      indexManager.init(prefix, mappedIndices);
+
+      SnapshotImpl answer =
+          new SnapshotImpl(snapshotInfo, heapObjectReader, classCache, roots, rootsPerThread,
+              loaderLabels, arrayObjects, indexManager);
+      listener.worked(1);
+
+      return answer;
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (ClassCastException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      if (fis != null) fis.close();
+      listener.done();
+    }
+  }
+
   public static SnapshotImpl create(XSnapshotInfo snapshotInfo, //
       IObjectReader heapObjectReader, //
       HashMapIntObject<ClassImpl> classCache, //
@@ -79,10 +167,14 @@ public final class SnapshotImpl implements ISnapshot {
       HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> rootsPerThread, //
       BitField arrayObjects, //
       IndexManager indexManager) throws IOException, SnapshotException {
+    // pick up indices written by the parser itself, e.g. the heap ids
+    indexManager.init(snapshotInfo.getPrefix());
+
     SnapshotImpl answer =
         new SnapshotImpl(snapshotInfo, heapObjectReader, classCache, roots, rootsPerThread, null,
             arrayObjects, indexManager);
     answer.calculateLoaderLabels();
+    answer.persist();
     return answer;
   }
 
@@ -105,7 +197,11 @@ public final class SnapshotImpl implements ISnapshot {
 
   // runtime data
   private IObjectReader heapObjectReader;
-  private boolean dominatorTreeCalculated;
+  private volatile boolean dominatorTreeCalculated;
+  private boolean dominatorTreeOnDemand;
+  private boolean parallelDominatorTree;
+  private FutureTask<Void> dominatorTreeTask;
+  private VoidProgressListener dominatorTreeListener;
   private Map<String, List<IClass>> classCacheByName;
   private ObjectCache<IObject> objectCache;
 
@@ -159,6 +255,27 @@ public final class SnapshotImpl implements ISnapshot {
     //            ((UnreachableObjectsHistogram)unreach).setSnapshot(this);
   }
 
+  private void persist() throws IOException {
+    File indexFile = new File(getSnapshotInfo().getPrefix() + "index");//$NON-NLS-1$
+    FileOutputStream fos = new FileOutputStream(indexFile);
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fos));
+
+      out.writeUTF(VERSION);
+      out.writeUTF((String) snapshotInfo.getProperty("$heapFormat"));//$NON-NLS-1$
+      out.writeObject(snapshotInfo);
+      out.writeObject(classCache);
+      out.writeObject(roots);
+      out.writeObject(rootsPerThread);
+      out.writeObject(loaderLabels);
+      out.writeObject(arrayObjects);
+
+      out.flush();
+    } finally {
+      fos.close();
+    }
+  }
+
   private void calculateLoaderLabels() throws SnapshotException {
     loaderLabels = new HashMapIntObject<String>();
     long usedHeapSize = 0;
@@ -335,57 +452,43 @@ public final class SnapshotImpl implements ISnapshot {
 
   public int[] getInboundRefererIds(int[] objectIds, IProgressListener progressMonitor)
       throws SnapshotException {
-    if (progressMonitor == null) progressMonitor = new VoidProgressListener();
-
-    IIndexReader.IOne2ManyIndex inbound = indexManager.inbound();
-
-    SetInt result = new SetInt();
-    progressMonitor.beginTask(Messages.SnapshotImpl_ReadingInboundReferrers,
-        objectIds.length / 100);
-
-    for (int ii = 0; ii < objectIds.length; ii++) {
-      int[] referees = inbound.get(objectIds[ii]);
-      for (int refereeId : referees)
-        result.add(refereeId);
-
-      if (ii % 100 == 0) {
-        if (progressMonitor.isCanceled()) return null;
-        progressMonitor.worked(1);
-      }
-    }
-
-    int[] endResult = result.toArray();
-    // It used to be sorted before (TreeSet<Integer>) but I don't
-    // remember if this is needed
-    // Arrays.sort(endResult);
-
-    progressMonitor.done();
-
-    return endResult;
+    return getReferences(indexManager.inbound(), objectIds,
+        Messages.SnapshotImpl_ReadingInboundReferrers, progressMonitor);
   }
 
   public int[] getOutboundReferentIds(int[] objectIds, IProgressListener progressMonitor)
       throws SnapshotException {
-    if (progressMonitor == null) progressMonitor = new VoidProgressListener();
+    return getReferences(indexManager.outbound(), objectIds,
+        Messages.SnapshotImpl_ReadingOutboundReferrers, progressMonitor);
+  }
 
-    IIndexReader.IOne2ManyIndex outbound = indexManager.outbound();
+  /* the entries of that many objects are fetched at once */
+  private static final int REFERENCES_BATCH_SIZE = 1000;
+
+  private int[] getReferences(IIndexReader.IOne2ManyIndex index, int[] objectIds, Messages task,
+      IProgressListener progressMonitor) {
+    if (progressMonitor == null) progressMonitor = new VoidProgressListener();
 
     SetInt result = new SetInt();
-    progressMonitor.beginTask(Messages.SnapshotImpl_ReadingOutboundReferrers,
-        objectIds.length / 100);
+    progressMonitor.beginTask(task, objectIds.length / 100);
 
-    for (int ii = 0; ii < objectIds.length; ii++) {
-      int[] referees = outbound.get(objectIds[ii]);
-      for (int refereeId : referees)
-        result.add(refereeId);
+    int[] offsets = new int[REFERENCES_BATCH_SIZE + 1];
+    int[] references = null;
 
-      if (ii % 100 == 0) {
-        if (progressMonitor.isCanceled()) return null;
-        progressMonitor.worked(1);
-      }
+    for (int ii = 0; ii < objectIds.length; ii += REFERENCES_BATCH_SIZE) {
+      int length = Math.min(objectIds.length - ii, REFERENCES_BATCH_SIZE);
+      references = index.getAll(objectIds, ii, length, offsets, references);
+      for (int jj = 0; jj < offsets[length]; jj++)
+        result.add(references[jj]);
+
+      if (progressMonitor.isCanceled()) return null;
+      progressMonitor.worked(length / 100);
     }
 
     int[] endResult = result.toArray();
+    // It used to be sorted before (TreeSet<Integer>) but I don't
+    // remember if this is needed
+    // Arrays.sort(endResult);
 
     progressMonitor.done();
 
@@ -422,7 +525,7 @@ public final class SnapshotImpl implements ISnapshot {
     if (progressMonitor == null) progressMonitor = new VoidProgressListener();
 
         /* a bit field to mark all reached objects */
-    boolean[] reachable = new boolean[numberOfObjects];
+    AtomicBitField reachable = new AtomicBitField(numberOfObjects);
 
         /*
          * Initially mark all the objects whose retained set is to be calculated
@@ -430,7 +533,7 @@ public final class SnapshotImpl implements ISnapshot {
          * retained from them will stay unmarked (the bits will be clear)
          */
     for (int objId : objectIds) {
-      reachable[objId] = true;
+      reachable.set(objId);
     }
 
         /*
@@ -456,13 +559,13 @@ public final class SnapshotImpl implements ISnapshot {
          * the retained set
          */
     for (int objId : objectIds) {
-      reachable[objId] = false;
+      reachable.clear(objId);
     }
 
         /* Put each unmarked bit into the retained set */
     int j = 0;
     for (int i = 0; i < numberOfObjects; i++) {
-      if (!reachable[i]) {
+      if (!reachable.get(i)) {
         retained[j++] = i;
       }
     }
@@ -488,8 +591,8 @@ public final class SnapshotImpl implements ISnapshot {
 
     if (progressMonitor == null) progressMonitor = new VoidProgressListener();
 
-        /* a boolean[] to mark all reached objects */
-    boolean[] reachable = new boolean[numberOfObjects];
+        /* a bit field to mark all reached objects */
+    AtomicBitField reachable = new AtomicBitField(numberOfObjects);
 
         /*
          * Initially mark all the objects whose retained set is to be calculated
@@ -497,19 +600,19 @@ public final class SnapshotImpl implements ISnapshot {
          * retained from them will stay unmarked (the bits will be clear)
          */
     for (int objId : objectIds) {
-      reachable[objId] = true;
+      reachable.set(objId);
     }
 
         /*
-         * Mark all the GC roots, and keep them in a stack. The worker threads
-         * are going to pop() one by one the gc roots and do the marking from
-         * them
+         * Mark from the GC roots. The worker threads of the marker split the
+         * objects still to be visited among themselves
          */
     int[] gcRoots = roots.getAllKeys();
     ObjectMarker marker =
         new ObjectMarker(gcRoots, reachable, indexManager.outbound(), progressMonitor);
+    int numReached;
     try {
-      marker.markMultiThreaded(availableProcessors);
+      numReached = marker.markMultiThreaded(availableProcessors);
     } catch (InterruptedException e) {
       throw new SnapshotException(e);
     }
@@ -519,22 +622,19 @@ public final class SnapshotImpl implements ISnapshot {
          * the retained set
          */
     for (int objId : objectIds) {
-      reachable[objId] = false;
+      reachable.clear(objId);
     }
 
-        /*
-         * build the result in an IntArray - the exact number of marked is not
-         * known
-         */
-    ArrayIntBig retained = new ArrayIntBig();
+    int[] retained = new int[numberOfObjects - numReached];
 
         /* Put each unmarked object into the retained set */
+    int j = 0;
     for (int i = 0; i < numberOfObjects; i++) {
-      if (!reachable[i]) {
-        retained.add(i);
+      if (!reachable.get(i)) {
+        retained[j++] = i;
       }
     }
-    return retained.toArray();
+    return retained;
   }
 
   public int[] getRetainedSet(int[] objectIds, IProgressListener progressMonitor)
@@ -585,10 +685,10 @@ public final class SnapshotImpl implements ISnapshot {
          * excludedReferences, until initial are reached. The non-marked objects
          * will be a common retained set from the excluded and initial objects
          */
-    boolean[] firstPass = new boolean[getSnapshotInfo().getNumberOfObjects()];
+    AtomicBitField firstPass = new AtomicBitField(getSnapshotInfo().getNumberOfObjects());
     // mark all initial
     for (int objId : objectIds) {
-      firstPass[objId] = true;
+      firstPass.set(objId);
     }
     ObjectMarker marker = new ObjectMarker(getGCRoots(), firstPass, getIndexManager().outbound,
         new VoidProgressListener());
@@ -596,15 +696,14 @@ public final class SnapshotImpl implements ISnapshot {
 
     // un-mark initial - they have to go into the retained set
     for (int objId : objectIds) {
-      firstPass[objId] = false;
+      firstPass.clear(objId);
     }
 
         /*
          * Second pass - from the non-marked objects mark the ones starting from
          * the initial set (objectIds)
          */
-    boolean[] secondPass = new boolean[firstPass.length];
-    System.arraycopy(firstPass, 0, secondPass, 0, firstPass.length);
+    AtomicBitField secondPass = new AtomicBitField(firstPass);
 
     ObjectMarker secondMarker = new ObjectMarker(objectIds, secondPass, getIndexManager().outbound,
         new VoidProgressListener());
@@ -616,13 +715,25 @@ public final class SnapshotImpl implements ISnapshot {
     int numObjects = getSnapshotInfo().getNumberOfObjects();
     ArrayIntBig retainedSet = new ArrayIntBig();
     for (int i = 0; i < numObjects; i++) {
-      if (!firstPass[i] && secondPass[i]) {
+      if (!firstPass.get(i) && secondPass.get(i)) {
         retainedSet.add(i);
       }
     }
     return retainedSet.toArray();
   }
 
+  public RetainedSets getRetainedSets(int[][] objectSets, boolean withMembers,
+      IProgressListener listener) throws SnapshotException {
+    if (!isDominatorTreeCalculated()) {
+      throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
+    }
+
+    if (listener == null) listener = new VoidProgressListener();
+
+    return new RetainedSetsCalculator(indexManager, getGCRoots(), listener).compute(objectSets,
+        withMembers);
+  }
+
   public long getMinRetainedSize(int[] objectIds, IProgressListener progressMonitor)
       throws UnsupportedOperationException, SnapshotException {
     if (objectIds.length == 1) {
@@ -649,6 +760,9 @@ public final class SnapshotImpl implements ISnapshot {
     if (objectIds.length == 1) {
       return getSingleObjectRetainedSet(objectIds[0]);
     }
+    if (!isDominatorTreeCalculated()) {
+      throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
+    }
 
     SetInt retainedSet = new SetInt(2 * objectIds.length);
     for (int i : objectIds) {
@@ -960,14 +1074,113 @@ public final class SnapshotImpl implements ISnapshot {
     return result.toArray();
   }
 
-  private boolean isDominatorTreeCalculated() {
+  public ScopedDominatorTree getDominatorTree(int[] objectIds,
+      ExcludedReferencesDescriptor[] excludedReferences, IProgressListener listener)
+      throws SnapshotException {
+    if (listener == null) listener = new VoidProgressListener();
+
+    return DominatorTree.calculate(this, objectIds, excludedReferences, listener);
+  }
+
+  public ScopedDominatorTree getDominatorTreeInHeap(String heapName, IProgressListener listener)
+      throws SnapshotException {
+    HashMapIntObject<String> heapNames = getHeapNames();
+    if (heapNames == null || indexManager.o2heap() == null) return null;
+    if (listener == null) listener = new VoidProgressListener();
+
+    int heapId = getHeapId(heapNames, heapName);
+    if (heapId < 0) return new ScopedDominatorTree(new int[0], new int[0], new long[0]);
+    return DominatorTree.calculate(this, heapId, listener);
+  }
+
+  /**
+   * If the dominator tree is calculated on demand, the first call waits for
+   * its calculation.
+   */
+  private boolean isDominatorTreeCalculated() throws SnapshotException {
+    if (!dominatorTreeCalculated && isDominatorTreeOnDemand()) {
+      try {
+        calculateDominatorTreeInBackground().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SnapshotException(e);
+      } catch (ExecutionException e) {
+        throw SnapshotException.rethrow(e.getCause());
+      }
+    }
     return dominatorTreeCalculated;
   }
 
+  private synchronized boolean isDominatorTreeOnDemand() {
+    return dominatorTreeOnDemand;
+  }
+
+  /**
+   * Calculate the dominator tree (unless it is already available) on the
+   * first call which needs it, e.g. {@link #getRetainedHeapSize(int)},
+   * instead of now.
+   *
+   * @param parallel see {@link DominatorTree#calculate(SnapshotImpl, boolean, IProgressListener)}
+   */
+  public synchronized void setDominatorTreeOnDemand(boolean parallel) {
+    this.dominatorTreeOnDemand = true;
+    this.parallelDominatorTree = parallel;
+  }
+
+  /**
+   * Starts the calculation of the dominator tree in a background thread,
+   * unless it is available or already being calculated. If the calculation
+   * fails, the next call starts it again.
+   *
+   * @return the calculation, done once the dominator tree is available
+   */
+  public synchronized Future<Void> calculateDominatorTreeInBackground() {
+    if (dominatorTreeTask == null) {
+      final boolean parallel = parallelDominatorTree;
+      final VoidProgressListener listener = new VoidProgressListener();
+      dominatorTreeListener = listener;
+      dominatorTreeTask = new FutureTask<Void>(new Callable<Void>() {
+        public Void call() throws SnapshotException {
+          boolean done = false;
+          try {
+            if (!dominatorTreeCalculated) calculateDominatorTree(parallel, listener);
+            done = true;
+          } finally {
+            // the callers waiting now get the error, the next call starts over
+            if (!done) discardDominatorTreeTask(listener);
+          }
+          return null;
+        }
+      });
+
+      if (dominatorTreeCalculated) {
+        dominatorTreeTask.run();
+      } else {
+        Thread thread = new Thread(dominatorTreeTask, "Dominator tree"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+    return dominatorTreeTask;
+  }
+
+  private synchronized void discardDominatorTreeTask(VoidProgressListener listener) {
+    // not if canceled by dispose()
+    if (dominatorTreeListener == listener && !listener.isCanceled()) {
+      dominatorTreeTask = null;
+      dominatorTreeListener = null;
+    }
+  }
+
   public void calculateDominatorTree(IProgressListener listener)
       throws SnapshotException, IProgressListener.OperationCanceledException {
+    calculateDominatorTree(false, listener);
+  }
+
+  public void calculateDominatorTree(boolean parallel, IProgressListener listener)
+      throws SnapshotException, IProgressListener.OperationCanceledException {
     try {
-      DominatorTree.calculate(this, listener);
+      DominatorTree.calculate(this, parallel, listener);
       dominatorTreeCalculated = indexManager.dominated() != null
           && indexManager.o2retained() != null
           && indexManager.dominator() != null;
@@ -976,6 +1189,19 @@ public final class SnapshotImpl implements ISnapshot {
     }
   }
 
+  /**
+   * Writes the indices of the shortest paths from the GC roots, which the
+   * path computers use if they exist.
+   */
+  public void calculateGCRootPaths(IProgressListener listener)
+      throws SnapshotException, IProgressListener.OperationCanceledException {
+    try {
+      GCRootPaths.calculate(this, listener);
+    } catch (IOException e) {
+      throw new SnapshotException(e);
+    }
+  }
+
   public int[] getImmediateDominatedIds(int objectId) throws SnapshotException {
     if (!isDominatorTreeCalculated()) {
       throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
@@ -1113,6 +1339,40 @@ public final class SnapshotImpl implements ISnapshot {
     }
   }
 
+  @SuppressWarnings("unchecked") private HashMapIntObject<String> getHeapNames() {
+    return (HashMapIntObject<String>) snapshotInfo.getProperty(XSnapshotInfo.HEAP_NAMES);
+  }
+
+  public String getHeapName(int objectId) throws SnapshotException {
+    HashMapIntObject<String> heapNames = getHeapNames();
+    IOne2OneIndex o2heap = indexManager.o2heap();
+    if (heapNames == null || o2heap == null) return null;
+
+    return heapNames.get(o2heap.get(objectId));
+  }
+
+  public int[] getObjectIdsInHeap(String heapName) throws SnapshotException {
+    HashMapIntObject<String> heapNames = getHeapNames();
+    IOne2OneIndex o2heap = indexManager.o2heap();
+    if (heapNames == null || o2heap == null) return null;
+
+    int heapId = getHeapId(heapNames, heapName);
+    if (heapId < 0) return new int[0];
+
+    ArrayIntBig objectIds = new ArrayIntBig();
+    int numberOfObjects = o2heap.size();
+    for (int objectId = 0; objectId < numberOfObjects; objectId++)
+      if (o2heap.get(objectId) == heapId) objectIds.add(objectId);
+
+    return objectIds.toArray();
+  }
+
+  private static int getHeapId(HashMapIntObject<String> heapNames, String heapName) {
+    for (int key : heapNames.getAllKeys())
+      if (heapNames.get(key).equals(heapName)) return key;
+    return -1;
+  }
+
   public long mapIdToAddress(int objectId) throws SnapshotException {
     return indexManager.o2address().get(objectId);
   }
@@ -1203,6 +1463,22 @@ public final class SnapshotImpl implements ISnapshot {
   public void dispose() {
     IOException error = null;
 
+    // the calculation of the dominator tree needs the indices
+    Future<Void> task;
+    synchronized (this) {
+      task = dominatorTreeTask;
+      if (task != null) dominatorTreeListener.setCanceled(true);
+    }
+    if (task != null) {
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException ignore) {
+        // $JL-EXC$
+      }
+    }
+
     try {
       heapObjectReader.close();
     } catch (IOException e1) {
@@ -1343,10 +1619,12 @@ public final class SnapshotImpl implements ISnapshot {
 
     int index;
     Path next;
+    int length; // the number of references to the start object
 
     public Path(int index, Path next) {
       this.index = index;
       this.next = next;
+      this.length = next != null ? next.length + 1 : 0;
     }
 
     public Path getNext() {
@@ -1379,6 +1657,20 @@ public final class SnapshotImpl implements ISnapshot {
     int objectId;
     LinkedList<Path> fifo = new LinkedList<Path>();
     BitField visited = new BitField(indexManager.o2address().size());
+
+    /*
+     * If the distances from the GC roots are stored (see GCRootPaths), the
+     * paths are queued by the least number of references a path from a GC
+     * root through them can have, i.e. their length plus the distance of
+     * their first object. Thus the paths are found by increasing length as
+     * with the FIFO, but only the objects on the shortest ones are visited.
+     * The shortest path is taken from the stored parents.
+     */
+    IIndexReader.IOne2OneIndex distances;
+    ArrayList<LinkedList<Path>> queues;
+    int currentQueue;
+    int[] firstPath;
+
     BitField excludeInstances;
     IIndexReader.IOne2ManyIndex inboundIndex; // to avoid method calls to
 
@@ -1405,12 +1697,74 @@ public final class SnapshotImpl implements ISnapshot {
 
       currentId = objectId;
 
-      visited.set(objectId);
+      distances = indexManager.gcRootDistance();
+      if (distances != null) {
+        queues = new ArrayList<LinkedList<Path>>();
+      }
+
       if (roots.get(objectId) != null) {
         // leave the fifo empty
+        visited.set(objectId);
       } else {
-        fifo.add(new Path(objectId, null));
+        addPath(new Path(objectId, null));
+      }
+    }
+
+    /**
+     * Queues the path, unless it cannot lead to a GC root.
+     */
+    private void addPath(Path path) {
+      if (queues == null) {
+        fifo.add(path);
+        visited.set(path.index);
+        return;
       }
+
+      // an object is visited when its shortest path is taken, the distances
+      // guarantee that this is the first one queued for it
+      int distance = distances.get(path.index);
+      if (distance == 0) return; // unreachable
+
+      int bound = path.length + distance - 1;
+      while (queues.size() <= bound)
+        queues.add(new LinkedList<Path>());
+      queues.get(bound).add(path);
+    }
+
+    private Path nextPath() {
+      if (queues == null) return fifo.isEmpty() ? null : fifo.removeFirst();
+
+      for (; currentQueue < queues.size(); currentQueue++) {
+        LinkedList<Path> queue = queues.get(currentQueue);
+        while (!queue.isEmpty()) {
+          Path path = queue.removeFirst();
+          if (!visited.get(path.index)) {
+            visited.set(path.index);
+            return path;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the shortest path stored in the parent index, null if there is
+     * no index or paths are excluded
+     */
+    private int[] getPathFromIndex() {
+      IIndexReader.IOne2OneIndex parents = indexManager.gcRootParent();
+      if (parents == null || excludeMap != null) return null;
+
+      int parent = parents.get(objectId);
+      if (parent == 0) return null; // unreachable
+
+      ArrayInt path = new ArrayInt();
+      path.add(objectId);
+      while (parent > 1) {
+        path.add(parent - 2);
+        parent = parents.get(parent - 2);
+      }
+      return path.toArray();
     }
 
     private void initExcludeInstances() throws SnapshotException {
@@ -1459,6 +1813,15 @@ public final class SnapshotImpl implements ISnapshot {
             return getNextShortestPath();
           } else {
             state = 3; // NORMAL
+
+            // the search skips the path taken from the index
+            firstPath = getPathFromIndex();
+            if (firstPath != null) {
+              referringThreads = null;
+              state = 2; // PROCESSING GC ROOT
+              nextState = 3; // NORMAL
+              foundPath = firstPath;
+            }
             return getNextShortestPath();
           }
         }
@@ -1499,10 +1862,10 @@ public final class SnapshotImpl implements ISnapshot {
             if (res != null) return res;
           }
 
-          // Continue with the FIFO
-          while (fifo.size() > 0) {
-            currentPath = fifo.getFirst();
-            fifo.removeFirst();
+          // Continue with the queued paths
+          Path next;
+          while ((next = nextPath()) != null) {
+            currentPath = next;
             currentId = currentPath.getIndex();
             currentReferrers = inboundIndex.get(currentId);
 
@@ -1571,7 +1934,13 @@ public final class SnapshotImpl implements ISnapshot {
       for (int i = fromIndex; i < currentReferrers.length; i++) {
         rootInfo = roots.get(currentReferrers[i]);
         if (rootInfo != null) {
-          if (excludeMap == null) {
+          if (excludeMap == null || !refersOnlyThroughExcluded(currentReferrers[i], currentId)) {
+            // the path from the index ends with the same GC root and object
+            if (firstPath != null && currentReferrers[i] == firstPath[firstPath.length - 1]
+                && currentId == firstPath[firstPath.length - 2]) {
+              continue;
+            }
+
             // save state
             lastReadReferrer = i;
             Path p = new Path(currentReferrers[i], currentPath);
@@ -1580,30 +1949,13 @@ public final class SnapshotImpl implements ISnapshot {
             nextState = 3; // NORMAL PROCESSING
             foundPath = path2Int(p);
             return getNextShortestPath();
-          } else {
-            if (!refersOnlyThroughExcluded(currentReferrers[i], currentId)) {
-              // save state
-              lastReadReferrer = i;
-              Path p = new Path(currentReferrers[i], currentPath);
-              referringThreads = null;
-              state = 2; // FOUND GC ROOT
-              nextState = 3; // NORMAL PROCESSING
-              foundPath = path2Int(p);
-              return getNextShortestPath();
-            }
           }
         }
       }
       for (int referrer : currentReferrers) {
         if (referrer >= 0 && !visited.get(referrer) && !roots.containsKey(referrer)) {
-          if (excludeMap == null) {
-            fifo.add(new Path(referrer, currentPath));
-            visited.set(referrer);
-          } else {
-            if (!refersOnlyThroughExcluded(referrer, currentId)) {
-              fifo.add(new Path(referrer, currentPath));
-              visited.set(referrer);
-            }
+          if (excludeMap == null || !refersOnlyThroughExcluded(referrer, currentId)) {
+            addPath(new Path(referrer, currentPath));
           }
         }
       }
@@ -73,12 +73,18 @@ public class MultiplePathsFromGCRootsComputerImpl implements IMultiplePathsFromG
   private void computePaths(IProgressListener progressListener) throws SnapshotException {
     ArrayList<int[]> pathsList = new ArrayList<int[]>();
 
+    // the parents stored by GCRootPaths are those of the same search, but
+    // without the excluded references
+    IIndexReader.IOne2OneIndex parentIndex = snapshot.getIndexManager().gcRootParent();
+    if (excludeMap != null) parentIndex = null;
+
     // make a breadth first search for the objects, starting from the roots
-    int[] parent = bfs(progressListener);
+    int[] parent = parentIndex == null ? bfs(progressListener) : null;
 
     // then get the shortest path per object
     for (int i = 0; i < objectIds.length; i++) {
-      int[] path = getPathFromBFS(objectIds[i], parent);
+      int[] path = parentIndex == null ? getPathFromBFS(objectIds[i], parent)
+          : getPathFromIndex(objectIds[i], parentIndex);
 
 			/*
        * if there is an exclude filter, for some objects there could be no
@@ -241,4 +247,20 @@ public class MultiplePathsFromGCRootsComputerImpl implements IMultiplePathsFromG
 
     return path.toArray();
   }
+
+  /*
+   * The same as getPathFromBFS(), with the parents stored in the index (+ 2,
+   * i.e. 1 for a GC root and 0 for an unreachable object)
+   */
+  private int[] getPathFromIndex(int objectId, IIndexReader.IOne2OneIndex parentIndex) {
+    if (parentIndex.get(objectId) == 0) return null;
+
+    ArrayInt path = new ArrayInt();
+    while (objectId != NO_PARENT) {
+      path.add(objectId);
+      objectId = parentIndex.get(objectId) - 2;
+    }
+
+    return path.toArray();
+  }
 }
@@ -12,13 +12,22 @@
  */
 package org.eclipse.mat.parser.internal.snapshot;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.AtomicBitField;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.hprof.Messages;
 import org.eclipse.mat.parser.index.IIndexReader;
-import org.eclipse.mat.parser.internal.util.IntStack;
+import org.eclipse.mat.parser.internal.util.ExecutorUtil;
 import org.eclipse.mat.snapshot.ExcludedReferencesDescriptor;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IObject;
@@ -26,12 +35,22 @@ import org.eclipse.mat.snapshot.model.NamedReference;
 import org.eclipse.mat.util.IProgressListener;
 
 public class ObjectMarker {
+  /* the references of that many objects are fetched at once */
+  private static final int BATCH_SIZE = 1024;
+
+  /* progress is reported per that many marked objects */
+  private static final int PROGRESS_SHIFT = 10;
+
   int[] roots;
-  boolean[] bits;
+  AtomicBitField bits;
   IIndexReader.IOne2ManyIndex outbound;
   IProgressListener progressListener;
 
-  public ObjectMarker(int[] roots, boolean[] bits, IIndexReader.IOne2ManyIndex outbound,
+  // state of the multi-threaded marking
+  AtomicInteger marked;
+  volatile boolean canceled;
+
+  public ObjectMarker(int[] roots, AtomicBitField bits, IIndexReader.IOne2ManyIndex outbound,
       IProgressListener progressListener) {
     this.roots = roots;
     this.bits = bits;
@@ -46,7 +65,7 @@ public class ObjectMarker {
     int rootsToProcess = 0;
 
     for (int rootId : roots) {
-      if (!bits[rootId]) {
+      if (bits.set(rootId)) {
                 /* start stack.push() */
         if (size == data.length) {
           int[] newArr = new int[data.length << 1];
@@ -56,7 +75,6 @@ public class ObjectMarker {
         data[size++] = rootId;
                 /* end stack.push() */
 
-        bits[rootId] = true;
         count++;
 
         rootsToProcess++;
@@ -65,20 +83,24 @@ public class ObjectMarker {
 
     progressListener.beginTask(Messages.ObjectMarker_CalculateRetainedSize, rootsToProcess);
 
-    int current;
+    int[] offsets = new int[BATCH_SIZE + 1];
+    int[] children = null;
 
     while (size > 0) {
-            /* start stack.pop() */
-      current = data[--size];
-
-      if (size <= rootsToProcess) {
-        rootsToProcess--;
-        progressListener.worked(1);
+            /* pop a batch and fetch the references of all its objects */
+      int length = Math.min(size, BATCH_SIZE);
+      size -= length;
+      children = outbound.getAll(data, size, length, offsets, children);
+
+      if (size < rootsToProcess) {
+        progressListener.worked(rootsToProcess - size);
+        rootsToProcess = size;
         if (progressListener.isCanceled()) throw new IProgressListener.OperationCanceledException();
       }
 
-      for (int child : outbound.get(current)) {
-        if (!bits[child]) {
+      for (int ii = 0; ii < offsets[length]; ii++) {
+        int child = children[ii];
+        if (bits.set(child)) {
           // stack.push(child);
                     /* start stack.push() */
           if (size == data.length) {
@@ -89,7 +111,6 @@ public class ObjectMarker {
           data[size++] = child;
                     /* end stack.push() */
 
-          bits[child] = true;
           count++;
         }
       }
@@ -121,7 +142,7 @@ public class ObjectMarker {
 
         /* first put all "roots" in the stack, and mark them as processed */
     for (int rootId : roots) {
-      if (!bits[rootId]) {
+      if (bits.set(rootId)) { // mark the object
                 /* start stack.push() */
         if (size == data.length) {
           int[] newArr = new int[data.length << 1];
@@ -131,7 +152,6 @@ public class ObjectMarker {
         data[size++] = rootId;
                 /* end stack.push() */
 
-        bits[rootId] = true; // mark the object
         count++;
 
         rootsToProcess++;
@@ -141,35 +161,46 @@ public class ObjectMarker {
         /* now do the real marking */
     progressListener.beginTask(Messages.ObjectMarker_CalculateRetainedSize, rootsToProcess);
 
-    int current;
+    int[] batch = new int[BATCH_SIZE];
+    int[] offsets = new int[BATCH_SIZE + 1];
+    int[] children = null;
 
     while (size > 0) // loop until there are elements in the stack
     {
-            /* do a stack.pop() */
-      current = data[--size];
-
-            /* report progress if one of the roots is processed */
-      if (size <= rootsToProcess) {
-        rootsToProcess--;
-        progressListener.worked(1);
+            /* pop a batch and fetch the references of all its objects */
+      int length = Math.min(size, BATCH_SIZE);
+      size -= length;
+      System.arraycopy(data, size, batch, 0, length);
+      children = outbound.getAll(batch, 0, length, offsets, children);
+
+            /* report progress if some of the roots are processed */
+      if (size < rootsToProcess) {
+        progressListener.worked(rootsToProcess - size);
+        rootsToProcess = size;
         if (progressListener.isCanceled()) throw new IProgressListener.OperationCanceledException();
       }
 
-      for (int child : outbound.get(current)) {
-        if (!bits[child]) // already visited?
-        {
-          if (!refersOnlyThroughExcluded(current, child, excludeSets, excludeObjectsBF, snapshot)) {
-                        /* start stack.push() */
-            if (size == data.length) {
-              int[] newArr = new int[data.length << 1];
-              System.arraycopy(data, 0, newArr, 0, data.length);
-              data = newArr;
-            }
-            data[size++] = child;
-                        /* end stack.push() */
+      for (int jj = 0; jj < length; jj++) {
+        int current = batch[jj];
 
-            bits[child] = true; // mark the object
-            count++;
+        for (int ii = offsets[jj]; ii < offsets[jj + 1]; ii++) {
+          int child = children[ii];
+          if (!bits.get(child)) // already visited?
+          {
+            if (!refersOnlyThroughExcluded(current, child, excludeSets, excludeObjectsBF,
+                snapshot)) {
+                            /* start stack.push() */
+              if (size == data.length) {
+                int[] newArr = new int[data.length << 1];
+                System.arraycopy(data, 0, newArr, 0, data.length);
+                data = newArr;
+              }
+              data[size++] = child;
+                            /* end stack.push() */
+
+              bits.set(child); // mark the object
+              count++;
+            }
           }
         }
       }
@@ -180,101 +211,129 @@ public class ObjectMarker {
     return count;
   }
 
-  public void markMultiThreaded(int numberOfThreads) throws InterruptedException {
-    IntStack rootsStack = new IntStack(roots.length);
-
+  /**
+   * Marks on a fork/join pool: each task marks depth first from the objects
+   * on its own stack and hands out half of them to a new task whenever the
+   * pool runs out of work, hence also a single root reaching most of the
+   * heap keeps all threads busy.
+   * <p>
+   * If the current thread is interrupted or a task fails, the tasks are
+   * stopped and awaited before the exception is thrown, so that none of
+   * them changes the bits afterwards. The bits are only partially marked.
+   *
+   * @return the number of objects marked
+   */
+  public int markMultiThreaded(int numberOfThreads) throws InterruptedException {
+    int size = 0;
+    int[] data = new int[Math.max(roots.length, 10 * 1024)];
     for (int rootId : roots) {
-      if (!bits[rootId]) {
-        rootsStack.push(rootId);
-        bits[rootId] = true;
-      }
+      if (bits.set(rootId)) data[size++] = rootId;
     }
 
+    marked = new AtomicInteger(size);
+    canceled = false;
+
+    // the progress listener is used by this thread only
     progressListener.beginTask(Messages.ObjectMarker_CalculateRetainedSize,
-        rootsStack.size());
-
-    // create and start as much marker threads as specified
-    DfsThread[] dfsthreads = new DfsThread[numberOfThreads];
-    Thread[] threads = new Thread[numberOfThreads];
-
-    for (int i = 0; i < numberOfThreads; i++) {
-      DfsThread dfsthread = new DfsThread(rootsStack);
-      dfsthreads[i] = dfsthread;
-      Thread thread = new Thread(dfsthread, "ObjectMarkerThread-" + (i + 1));//$NON-NLS-1$
-      thread.start();
-      threads[i] = thread;
-    }
+        bits.size() >>> PROGRESS_SHIFT);
 
-    // wait for all the threads to finish
-    for (int i = 0; i < numberOfThreads; i++) {
-      threads[i].join();
+    MarkTask task = new MarkTask(data, size);
+    ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+    try {
+      pool.execute(task);
+
+      int reported = 0;
+      while (true) {
+        try {
+          task.get(100, TimeUnit.MILLISECONDS);
+          break;
+        } catch (InterruptedException e) {
+          canceled = true;
+          throw e;
+        } catch (TimeoutException e) {
+          int work = marked.get() >>> PROGRESS_SHIFT;
+          progressListener.worked(work - reported);
+          reported = work;
+          if (progressListener.isCanceled()) canceled = true;
+        } catch (ExecutionException e) {
+          canceled = true;
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          if (cause instanceof Error) throw (Error) cause;
+          throw new RuntimeException(cause);
+        }
+      }
+    } finally {
+      // e.g. the progress listener failed
+      if (!task.isDone()) canceled = true;
+      // the canceled tasks stop early; they read the outbound index and must
+      // not be interrupted
+      ExecutorUtil.shutdownAndWait(pool);
     }
 
-    if (progressListener.isCanceled()) return;
+    if (!canceled) progressListener.done();
 
-    progressListener.done();
+    return marked.get();
   }
 
-  public class DfsThread implements Runnable {
+  private class MarkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
 
-    int size = 0;
-    int[] data = new int[10 * 1024]; // start with 10k
-    IntStack rootsStack;
+    int[] data;
+    int size;
 
-    public DfsThread(IntStack roots) {
-      this.rootsStack = roots;
+    MarkTask(int[] data, int size) {
+      this.data = data;
+      this.size = size;
     }
 
-    public void run() {
-      while (true) {
-        synchronized (rootsStack) {
-          progressListener.worked(1);
-          if (progressListener.isCanceled()) return;
-
-          if (rootsStack.size() > 0) // still some roots are not
-          // processed
-          {
-            data[0] = rootsStack.pop();
-            size = 1;
-          } else
-          // the work is done
-          {
-            break;
-          }
-        }
-
-        int current;
-
-        while (size > 0) {
-                    /* start stack.pop() */
-          current = data[--size];
-                    /* end stack.pop */
-
-          for (int child : outbound.get(current)) {
-                        /*
-                         * No synchronization here. It costs a lot of
-                         * performance It is possible that some bits are marked
-                         * more than once, but this is not a problem
-                         */
-            if (!bits[child]) {
-              bits[child] = true;
-              // stack.push(child);
-                            /* start stack.push() */
-              if (size == data.length) {
-                int[] newArr = new int[data.length << 1];
-                System.arraycopy(data, 0, newArr, 0, data.length);
-                data = newArr;
-              }
-              data[size++] = child;
-                            /* end stack.push() */
+    protected void compute() {
+      List<MarkTask> forked = new ArrayList<MarkTask>();
+      int[] offsets = new int[BATCH_SIZE + 1];
+      int[] children = null;
+
+      while (size > 0 && !canceled) {
+                /* pop a batch and fetch the references of all its objects */
+        int length = Math.min(size, BATCH_SIZE);
+        size -= length;
+        children = outbound.getAll(data, size, length, offsets, children);
+
+        int count = 0;
+        for (int ii = 0; ii < offsets[length]; ii++) {
+          int child = children[ii];
+          if (bits.set(child)) {
+                        /* start stack.push() */
+            if (size == data.length) {
+              int[] newArr = new int[data.length << 1];
+              System.arraycopy(data, 0, newArr, 0, data.length);
+              data = newArr;
             }
+            data[size++] = child;
+                        /* end stack.push() */
+            count++;
           }
-        } // end of processing one GC root
+        }
+        marked.addAndGet(count);
+
+        // hand out the bottom half of the stack, which is closer to the
+        // roots and promises more work, if there are idle threads
+        if (size >= 2 * BATCH_SIZE && getSurplusQueuedTaskCount() <= 0) {
+          int half = size >>> 1;
+          MarkTask task = new MarkTask(Arrays.copyOf(data, half), half);
+          System.arraycopy(data, half, data, 0, size - half);
+          size -= half;
+
+          task.fork();
+          forked.add(task);
+        }
       }
+
+      for (MarkTask task : forked)
+        task.join();
     }
   }
 
-  private boolean refersOnlyThroughExcluded(int referrerId, int referentId,
+  public static boolean refersOnlyThroughExcluded(int referrerId, int referentId,
       ExcludedReferencesDescriptor[] excludeSets, BitField excludeObjectsBF, ISnapshot snapshot)
       throws SnapshotException {
     if (!excludeObjectsBF.get(referrerId)) return false;
@@ -0,0 +1,289 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.internal.snapshot;
+
+import java.util.Arrays;
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
+import org.eclipse.mat.collect.AtomicBitField;
+import org.eclipse.mat.hprof.Messages;
+import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.index.IndexManager;
+import org.eclipse.mat.snapshot.RetainedSets;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.VoidProgressListener;
+
+/**
+ * Calculates the retained sets of many object sets with the help of the
+ * dominator tree, instead of marking the whole heap from the GC roots once
+ * per set.
+ * <p>
+ * Every path from the GC roots to an object retained by a set leads through
+ * the nearest common dominator D of the set, so an object in the subtree of
+ * D is retained iff it is not reached from D without passing the set, and no
+ * object outside of that subtree is retained. Also the retained set is
+ * closed under domination, so its size is the sum of the retained sizes of
+ * its topmost objects in the dominator tree.
+ * <p>
+ * The dominator tree is numbered in preorder once, so that the subtree of D
+ * is an interval of numbers, then each set is marked within the subtree of
+ * its D only. One bit field is shared by all sets and cleared after each of
+ * them. Sets which are spread over the heap have the root as D, they are
+ * marked from the GC roots on all processors.
+ */
+public class RetainedSetsCalculator {
+  /* the references of that many objects are read at once */
+  private static final int BATCH_SIZE = 1024;
+
+  int[] gcRoots;
+  IIndexReader.IOne2ManyIndex outbound;
+  IIndexReader.IOne2OneIndex dominator;
+  IIndexReader.IOne2ManyIndex dominated;
+  IIndexReader.IOne2LongIndex o2retained;
+  IProgressListener listener;
+
+  // the subtree of an object in the dominator tree are the objects with the
+  // preorder numbers pre[id] up to (excluding) end[id]
+  int[] pre;
+  int[] end;
+
+  AtomicBitField bits;
+  ArrayInt reached = new ArrayInt();
+
+  int[] batch = new int[BATCH_SIZE];
+  int[] batchOffsets = new int[BATCH_SIZE + 1];
+  int[] children;
+
+  public RetainedSetsCalculator(IndexManager indexManager, int[] gcRoots,
+      IProgressListener listener) {
+    this.gcRoots = gcRoots;
+    this.outbound = indexManager.outbound();
+    this.dominator = indexManager.dominator();
+    this.dominated = indexManager.dominated();
+    this.o2retained = indexManager.o2retained();
+    this.listener = listener;
+  }
+
+  /**
+   * @param objectSets the object sets, duplicates within a set are ignored
+   * @param withMembers also collect the objects of each retained set, not
+   * only its size
+   */
+  public RetainedSets compute(int[][] objectSets, boolean withMembers)
+      throws SnapshotException {
+    listener.beginTask(Messages.SnapshotImpl_CalculatingRetainedSets, objectSets.length + 1);
+
+    number();
+    bits = new AtomicBitField(pre.length);
+    listener.worked(1);
+
+    long[] retainedSizes = new long[objectSets.length];
+    int[][] retainedSets = withMembers ? new int[objectSets.length][] : null;
+    for (int ii = 0; ii < objectSets.length; ii++) {
+      int[] tops = getTopObjects(objectSets[ii]);
+      for (int top : tops)
+        retainedSizes[ii] += o2retained.get(top);
+      if (withMembers) retainedSets[ii] = collect(tops);
+
+      checkCanceled();
+      listener.worked(1);
+    }
+
+    listener.done();
+    return new RetainedSets(retainedSizes, retainedSets);
+  }
+
+  /**
+   * Numbers the dominator tree in preorder, depth first from the root.
+   */
+  private void number() {
+    int numberOfObjects = dominator.size();
+    pre = new int[numberOfObjects];
+    end = new int[numberOfObjects];
+
+    int count = 0;
+    int[] stack = new int[1024];
+    int[][] children = new int[1024][];
+    int[] position = new int[1024];
+    int size = 0;
+    stack[size] = -1;
+    children[size] = dominated.get(0);
+    position[size] = 0;
+    size++;
+    while (size > 0) {
+      int[] next = children[size - 1];
+      int p = position[size - 1];
+      if (p < next.length) {
+        position[size - 1] = p + 1;
+        int child = next[p];
+        pre[child] = count++;
+
+        if (size == stack.length) {
+          int newCapacity = size << 1;
+          stack = Arrays.copyOf(stack, newCapacity);
+          children = Arrays.copyOf(children, newCapacity);
+          position = Arrays.copyOf(position, newCapacity);
+        }
+        stack[size] = child;
+        children[size] = dominated.get(child + 1);
+        position[size] = 0;
+        size++;
+      } else {
+        size--;
+        if (stack[size] >= 0) end[stack[size]] = count;
+        children[size] = null;
+
+        if ((count & 0xffff) == 0) checkCanceled();
+      }
+    }
+  }
+
+  private boolean dominates(int ancestor, int objectId) {
+    return ancestor == -1 || pre[ancestor] <= pre[objectId] && pre[objectId] < end[ancestor];
+  }
+
+  /**
+   * @return the objects retained by the set whose dominator is not, i.e. the
+   * roots of the subtrees forming the retained set
+   */
+  private int[] getTopObjects(int[] objectIds) throws SnapshotException {
+    if (objectIds.length == 0) return new int[0];
+
+    // the nearest common dominator, -1 for the root
+    int top = objectIds[0];
+    for (int objectId : objectIds) {
+      while (!dominates(top, objectId))
+        top = dominator.get(top) - 2;
+    }
+
+    for (int objectId : objectIds)
+      bits.set(objectId);
+    if (top != -1 && bits.get(top)) {
+      // one of the objects dominates all others
+      for (int objectId : objectIds)
+        bits.clear(objectId);
+      return new int[] { top };
+    }
+
+    // mark from the common dominator, the given objects are not passed
+    if (top == -1) {
+      markFromGCRoots();
+    } else {
+      bits.set(top);
+      reached.add(top);
+      mark(top);
+    }
+
+    // the unmarked objects of the subtree are retained, the given objects
+    // included. The dominators of a marked object are marked up to the
+    // common dominator, so the topmost retained objects are the unmarked
+    // ones dominated directly by a marked one
+    for (int objectId : objectIds)
+      bits.clear(objectId);
+    ArrayInt tops = new ArrayInt();
+    if (top == -1 || reached.size() > pre.length >>> 4) {
+      // (nearly) the whole heap is marked, look only at the dominators of
+      // the unmarked objects
+      for (int objectId = 0; objectId < pre.length; objectId++) {
+        if (!bits.get(objectId) && dominates(top, objectId) && objectId != top) {
+          int dominatorId = dominator.get(objectId) - 2;
+          if (dominatorId == -1 || bits.get(dominatorId)) tops.add(objectId);
+        }
+      }
+    } else {
+      for (int processed = 0; processed < reached.size(); ) {
+        int length = Math.min(reached.size() - processed, BATCH_SIZE);
+        for (int jj = 0; jj < length; jj++)
+          batch[jj] = reached.get(processed + jj) + 1;
+        children = dominated.getAll(batch, 0, length, batchOffsets, children);
+
+        for (int ii = 0; ii < batchOffsets[length]; ii++) {
+          if (!bits.get(children[ii])) tops.add(children[ii]);
+        }
+
+        processed += length;
+        checkCanceled();
+      }
+    }
+
+    if (top == -1) {
+      bits = new AtomicBitField(pre.length);
+    } else {
+      for (int ii = 0; ii < reached.size(); ii++)
+        bits.clear(reached.get(ii));
+      reached.clear();
+    }
+
+    return tops.toArray();
+  }
+
+  /**
+   * Marks the whole heap like getRetainedSet(), on all processors.
+   */
+  private void markFromGCRoots() throws SnapshotException {
+    ObjectMarker marker = new ObjectMarker(gcRoots, bits, outbound, new VoidProgressListener());
+    int availableProcessors = Runtime.getRuntime().availableProcessors();
+    if (availableProcessors > 1) {
+      try {
+        marker.markMultiThreaded(availableProcessors);
+      } catch (InterruptedException e) {
+        throw new SnapshotException(e);
+      }
+    } else {
+      marker.markSingleThreaded();
+    }
+  }
+
+  /**
+   * Marks breadth first from the objects reached so far, within the subtree
+   * of the given dominator.
+   */
+  private void mark(int top) {
+    for (int processed = 0; processed < reached.size(); ) {
+      int length = Math.min(reached.size() - processed, BATCH_SIZE);
+      for (int jj = 0; jj < length; jj++)
+        batch[jj] = reached.get(processed + jj);
+      children = outbound.getAll(batch, 0, length, batchOffsets, children);
+
+      for (int ii = 0; ii < batchOffsets[length]; ii++) {
+        int child = children[ii];
+        if (!bits.get(child) && dominates(top, child)) {
+          bits.set(child);
+          reached.add(child);
+        }
+      }
+
+      processed += length;
+      checkCanceled();
+    }
+  }
+
+  /**
+   * @return the sorted objects in the subtrees of the given ones
+   */
+  private int[] collect(int[] tops) {
+    ArrayInt result = new ArrayInt();
+    for (int top : tops)
+      result.add(top);
+    for (int ii = 0; ii < result.size(); ii++)
+      result.addAll(dominated.get(result.get(ii) + 1));
+
+    int[] objectIds = result.toArray();
+    Arrays.sort(objectIds);
+    return objectIds;
+  }
+
+  private void checkCanceled() {
+    if (listener.isCanceled()) throw new IProgressListener.OperationCanceledException();
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.internal.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public final class ExecutorUtil {
+  private static ExecutorService sharedPool;
+
+  /**
+   * Returns a pool with one daemon thread per processor for short, CPU bound
+   * tasks. It is never shut down. Its tasks must not wait for other tasks of
+   * the pool, as all threads could end up waiting.
+   */
+  public static synchronized ExecutorService getSharedPool() {
+    if (sharedPool == null) {
+      sharedPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+          new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable task) {
+              Thread thread = new Thread(task, "MAT worker " + (++count)); //$NON-NLS-1$
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return sharedPool;
+  }
+
+  /**
+   * Shuts the executor down and waits until its tasks are finished, also if
+   * the current thread is interrupted meanwhile; the interrupt is restored
+   * afterwards. The tasks are not interrupted, as they may read an index
+   * whose file channel an interrupt would close.
+   */
+  public static void shutdownAndWait(ExecutorService executor) {
+    executor.shutdown();
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (executor.awaitTermination(1, TimeUnit.SECONDS)) break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private ExecutorUtil() {
+  }
+}
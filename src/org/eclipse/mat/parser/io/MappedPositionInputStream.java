@@ -0,0 +1,197 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.parser.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Position aware input stream which reads the file through a sliding window
+ * of memory mapped regions instead of a small heap buffer. Primitive reads are
+ * served directly from the mapped buffer (big endian, as required by HPROF)
+ * and skipping only moves the position.
+ */
+public class MappedPositionInputStream extends PositionInputStream {
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long length;
+  private final int windowSize;
+
+  private MappedByteBuffer buffer;
+  private long bufferStart;
+  private int bufferLimit;
+  private long position;
+
+  public MappedPositionInputStream(File file) throws IOException {
+    this(new FileInputStream(file), DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedPositionInputStream(File file, int windowSize) throws IOException {
+    this(new FileInputStream(file), windowSize);
+  }
+
+  private MappedPositionInputStream(FileInputStream in, int windowSize) throws IOException {
+    super(in);
+    this.channel = in.getChannel();
+    this.length = channel.size();
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Make sure the next n bytes starting at the current position are mapped.
+   * The window is re-mapped starting at the current position if needed.
+   */
+  private int ensure(int n) throws IOException {
+    long offset = position - bufferStart;
+    if (buffer == null || offset < 0 || offset + n > bufferLimit) {
+      if (position + n > length) throw new EOFException();
+
+      bufferStart = position;
+      bufferLimit = (int) Math.min(Math.max(windowSize, n), length - position);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, bufferStart, bufferLimit);
+      offset = 0;
+    }
+    return (int) offset;
+  }
+
+  public int read() throws IOException {
+    if (position >= length) return -1;
+    int offset = ensure(1);
+    int b = buffer.get(offset) & 0xff;
+    position++;
+    return b;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (position >= length) return -1;
+
+    int copied = 0;
+    while (copied < len && position < length) {
+      int chunk = (int) Math.min(len - copied, Math.min(windowSize, length - position));
+      int offset = ensure(chunk);
+      buffer.position(offset);
+      buffer.get(b, off + copied, chunk);
+      position += chunk;
+      copied += chunk;
+    }
+    return copied;
+  }
+
+  public long skip(long n) throws IOException {
+    long skipped = Math.max(0, Math.min(n, length - position));
+    position += skipped;
+    return skipped;
+  }
+
+  public int skipBytes(int n) throws IOException {
+    return (int) skip(n);
+  }
+
+  public int skipBytes(long n) throws IOException {
+    return (int) skip(n);
+  }
+
+  public int available() throws IOException {
+    return (int) Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    if (position + len > length) throw new EOFException();
+    read(b, off, len);
+  }
+
+  public long position() {
+    return position;
+  }
+
+  public void seek(long pos) throws IOException {
+    this.position = pos;
+  }
+
+  public void close() throws IOException {
+    buffer = null;
+    super.close();
+  }
+
+  // //////////////////////////////////////////////////////////////
+  // DataInput implementations
+  // //////////////////////////////////////////////////////////////
+
+  public int readUnsignedByte() throws IOException {
+    int offset = ensure(1);
+    int b = buffer.get(offset) & 0xff;
+    position++;
+    return b;
+  }
+
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  public byte readByte() throws IOException {
+    int offset = ensure(1);
+    byte b = buffer.get(offset);
+    position++;
+    return b;
+  }
+
+  public char readChar() throws IOException {
+    int offset = ensure(2);
+    char c = buffer.getChar(offset);
+    position += 2;
+    return c;
+  }
+
+  public short readShort() throws IOException {
+    int offset = ensure(2);
+    short s = buffer.getShort(offset);
+    position += 2;
+    return s;
+  }
+
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  public int readInt() throws IOException {
+    int offset = ensure(4);
+    int i = buffer.getInt(offset);
+    position += 4;
+    return i;
+  }
+
+  public long readLong() throws IOException {
+    int offset = ensure(8);
+    long l = buffer.getLong(offset);
+    position += 8;
+    return l;
+  }
+
+  public int readIntArray(int[] a) throws IOException {
+    for (int ii = 0; ii < a.length; ii++)
+      a[ii] = readInt();
+    return a.length;
+  }
+
+  public int readLongArray(long[] a) throws IOException {
+    for (int ii = 0; ii < a.length; ii++)
+      a[ii] = readLong();
+    return a.length;
+  }
+}
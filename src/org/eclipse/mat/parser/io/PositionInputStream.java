@@ -58,7 +58,7 @@ public class PositionInputStream extends FilterInputStream implements DataInput
     throw new UnsupportedOperationException(Messages.PositionInputStream_reset.pattern);
   }
 
-  public final int skipBytes(int n) throws IOException {
+  public int skipBytes(int n) throws IOException {
     int total = 0;
     int cur = 0;
 
@@ -69,7 +69,7 @@ public class PositionInputStream extends FilterInputStream implements DataInput
     return total;
   }
 
-  public final int skipBytes(long n) throws IOException {
+  public int skipBytes(long n) throws IOException {
     int total = 0;
     int cur = 0;
 
@@ -80,11 +80,11 @@ public class PositionInputStream extends FilterInputStream implements DataInput
     return total;
   }
 
-  public final void readFully(byte b[]) throws IOException {
+  public void readFully(byte b[]) throws IOException {
     readFully(b, 0, b.length);
   }
 
-  public final void readFully(byte b[], int off, int len) throws IOException {
+  public void readFully(byte b[], int off, int len) throws IOException {
     int n = 0;
     while (n < len) {
       int count = read(b, off + n, len - n);
@@ -113,19 +113,19 @@ public class PositionInputStream extends FilterInputStream implements DataInput
   // DataInput implementations
   // //////////////////////////////////////////////////////////////
 
-  public final int readUnsignedByte() throws IOException {
+  public int readUnsignedByte() throws IOException {
     int ch = in.read();
     if (ch < 0) throw new EOFException();
     position++;
     return ch;
   }
 
-  public final int readInt() throws IOException {
+  public int readInt() throws IOException {
     readFully(readBuffer, 0, 4);
     return readInt(readBuffer, 0);
   }
 
-  public final long readLong() throws IOException {
+  public long readLong() throws IOException {
     readFully(readBuffer, 0, 8);
     return readLong(readBuffer, 0);
   }
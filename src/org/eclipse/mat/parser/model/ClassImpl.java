@@ -57,6 +57,10 @@ public class ClassImpl extends AbstractObjectImpl implements IClass, Comparable<
 
   private Serializable cacheEntry;
 
+  // parsing only: layout of the instance field data in the heap dump
+  private transient int[] referenceOffsets;
+  private transient int instanceFieldsSize;
+
   public ClassImpl(long address, String name, long superId, long loaderId, Field[] staticFields,
       FieldDescriptor[] fields) {
     super(-1, address, null);
@@ -198,6 +202,27 @@ public class ClassImpl extends AbstractObjectImpl implements IClass, Comparable<
     instanceSize = size;
   }
 
+  /**
+   * Byte offsets of the object references within the instance field data of
+   * this class (including all super classes) as written to the heap dump.
+   */
+  public int[] getReferenceOffsets() {
+    return referenceOffsets;
+  }
+
+  /**
+   * Number of bytes of instance field data (including all super classes) as
+   * written to the heap dump.
+   */
+  public int getInstanceFieldsSize() {
+    return instanceFieldsSize;
+  }
+
+  public void setReferenceLayout(int[] referenceOffsets, int instanceFieldsSize) {
+    this.referenceOffsets = referenceOffsets;
+    this.instanceFieldsSize = instanceFieldsSize;
+  }
+
   public String getName() {
     return name;
   }
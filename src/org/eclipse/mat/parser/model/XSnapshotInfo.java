@@ -18,6 +18,9 @@ import org.eclipse.mat.snapshot.SnapshotInfo;
 public final class XSnapshotInfo extends SnapshotInfo {
   private static final long serialVersionUID = 3L;
 
+  /** property holding the heap names by heap id, see IndexManager#o2heap() */
+  public static final String HEAP_NAMES = "$heapNames"; //$NON-NLS-1$
+
   public XSnapshotInfo() {
     super(null, null, null, 0, null, 0, 0, 0, 0, 0);
   }
@@ -311,6 +311,30 @@ public interface ISnapshot {
   public int[] getRetainedSet(int[] objectIds, ExcludedReferencesDescriptor[] excludedReferences,
       IProgressListener progressMonitor) throws SnapshotException;
 
+  /**
+   * Calculate the retained sets of many object sets at once, e.g. of all
+   * suspected components. Each set is treated like the objects passed to
+   * getRetainedSet(), so the result of a set includes the set itself and
+   * everything which would be garbage collected if the set would be gone.
+   * <p>
+   * Performance: the dominator tree is numbered once for all sets, then
+   * each set is marked only within the subtree of its nearest common
+   * dominator, which is much faster than one getRetainedSet() per set unless
+   * the sets are spread over the whole heap.
+   *
+   * @param objectSets the object sets, the objects of one set need not be
+   * distinct
+   * @param withMembers collect the objects of each retained set, otherwise
+   * only their sizes are calculated
+   * @param listener progress listener informing about the current state of
+   * execution
+   * @return RetainedSets the retained sizes and sets by position of the
+   * object set
+   * @throws SnapshotException if the dominator tree is not available
+   */
+  public RetainedSets getRetainedSets(int[][] objectSets, boolean withMembers,
+      IProgressListener listener) throws SnapshotException;
+
   /**
    * Calculate the minimum retained set of objects for the given objects
    * (including the given objects).
@@ -423,6 +447,47 @@ public interface ISnapshot {
   public int[] getTopAncestorsInDominatorTree(int[] objectIds, IProgressListener listener)
       throws SnapshotException;
 
+  /**
+   * Calculate the dominator tree of the objects reachable from the given
+   * objects only, e.g. to get the retained sizes within one component. The
+   * given objects are referenced by an artificial root.
+   * <p>
+   * Performance: depends on the number of objects reachable from the given
+   * ones, neither the dominator tree of the snapshot nor the GC roots are
+   * used.
+   *
+   * @param objectIds the objects to start from
+   * @param excludedReferences references which are not followed, may be null
+   * @param listener progress listener informing about the current state of
+   * execution
+   * @return ScopedDominatorTree the dominator tree, kept in memory
+   * @throws SnapshotException
+   */
+  public ScopedDominatorTree getDominatorTree(int[] objectIds,
+      ExcludedReferencesDescriptor[] excludedReferences, IProgressListener listener)
+      throws SnapshotException;
+
+  /**
+   * Calculate the dominator tree within one heap (Android dumps: app,
+   * zygote, image, ...). The objects of the other heaps are treated like GC
+   * roots: the GC roots in the heap and the objects of the heap referenced
+   * from other heaps are referenced by the artificial root, and only the
+   * references between objects of the heap are followed. So the retained
+   * sizes are those within the heap.
+   * <p>
+   * Performance: Slow - reads the heap id and the outbound references of
+   * every object.
+   *
+   * @param heapName name of the heap
+   * @param listener progress listener informing about the current state of
+   * execution
+   * @return ScopedDominatorTree the dominator tree, kept in memory (empty if
+   * there is no such heap), or null if the heap dump has no heap partitions
+   * @throws SnapshotException
+   */
+  public ScopedDominatorTree getDominatorTreeInHeap(String heapName, IProgressListener listener)
+      throws SnapshotException;
+
   /**
    * Get object abstracting the real Java Object from the heap dump identified
    * by the given id.
@@ -464,6 +529,34 @@ public interface ISnapshot {
    */
   public IClass getClassOf(int objectId) throws SnapshotException;
 
+  /**
+   * Get the name of the heap (Android dumps: app, zygote, image, ...) the
+   * object was allocated in.
+   * <p>
+   * Performance: Relatively fast - single index operation.
+   *
+   * @param objectId id of object you want the heap name for
+   * @return heap name or null if the heap dump has no heap partitions
+   * @throws SnapshotException
+   */
+  public String getHeapName(int objectId) throws SnapshotException;
+
+  /**
+   * Get all objects allocated in the given heap (Android dumps: app, zygote,
+   * image, ...).
+   * <p>
+   * Performance: Slow - reads the heap id of every object.
+   * <p>
+   * The ids are no scope for getDominatorTree(), every one of them would be
+   * a start object; use getDominatorTreeInHeap() instead.
+   *
+   * @param heapName name of the heap
+   * @return object ids (empty if there is no such heap) or null if the heap
+   * dump has no heap partitions
+   * @throws SnapshotException
+   */
+  public int[] getObjectIdsInHeap(String heapName) throws SnapshotException;
+
   /**
    * Get heap size for the given object.
    * <p>
@@ -0,0 +1,61 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.snapshot;
+
+/**
+ * This class holds the retained sets of several object sets, calculated
+ * together (see ISnapshot.getRetainedSets()). The sets are addressed by
+ * their position in the array passed to the snapshot.
+ *
+ * @noinstantiate
+ */
+public final class RetainedSets {
+  private long[] retainedSizes;
+  private int[][] retainedSets;
+
+  /**
+   * @param retainedSizes per object set the size it retains
+   * @param retainedSets per object set the sorted ids of the objects it
+   * retains, or null if they were not requested
+   */
+  public RetainedSets(long[] retainedSizes, int[][] retainedSets) {
+    this.retainedSizes = retainedSizes;
+    this.retainedSets = retainedSets;
+  }
+
+  /**
+   * @return the number of object sets
+   */
+  public int size() {
+    return retainedSizes.length;
+  }
+
+  /**
+   * Get the size of the objects which would be garbage collected if the
+   * given object set would be gone from the heap, the set included.
+   */
+  public long getRetainedHeapSize(int index) {
+    return retainedSizes[index];
+  }
+
+  /**
+   * Get the retained set of the given object set, including the set
+   * itself.
+   *
+   * @return int[] the sorted object ids, not to be modified, or null if the
+   * members were not requested
+   */
+  public int[] getRetainedSet(int index) {
+    return retainedSets != null ? retainedSets[index] : null;
+  }
+}
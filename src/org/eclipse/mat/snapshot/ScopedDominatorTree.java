@@ -0,0 +1,123 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2008 SAP AG.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * SAP AG - initial API and implementation
+ * *****************************************************************************
+ */
+package org.eclipse.mat.snapshot;
+
+import java.util.Arrays;
+import org.eclipse.mat.collect.ArrayUtils;
+
+/**
+ * This class holds the dominator tree of the objects reachable from some
+ * start objects (see ISnapshot.getDominatorTree()). The start objects are
+ * referenced by an artificial root, objects which are only dominated by it
+ * have the dominator -1.
+ * <p>
+ * The tree is kept in arrays, sorted by object id.
+ *
+ * @noinstantiate
+ */
+public final class ScopedDominatorTree {
+  private int[] objectIds;
+  private int[] dominators;
+  private long[] retainedSizes;
+
+  // the dominated objects, sorted by retained size: those of the root
+  // first, then those of objectIds[ii] at ii + 1
+  private int[] dominatedOffsets;
+  private int[] dominated;
+
+  /**
+   * @param objectIds the objects in scope, sorted
+   * @param dominators per object the id of its immediate dominator, or -1
+   * @param retainedSizes per object the size it retains within the scope
+   */
+  public ScopedDominatorTree(int[] objectIds, int[] dominators, long[] retainedSizes) {
+    this.objectIds = objectIds;
+    this.dominators = dominators;
+    this.retainedSizes = retainedSizes;
+
+    int length = objectIds.length;
+    dominatedOffsets = new int[length + 2];
+    for (int ii = 0; ii < length; ii++)
+      dominatedOffsets[indexOf(dominators[ii]) + 2]++;
+    for (int ii = 0; ii <= length; ii++)
+      dominatedOffsets[ii + 1] += dominatedOffsets[ii];
+
+    dominated = new int[length];
+    int[] next = new int[length + 1];
+    System.arraycopy(dominatedOffsets, 0, next, 0, length + 1);
+    for (int ii = 0; ii < length; ii++)
+      dominated[next[indexOf(dominators[ii]) + 1]++] = objectIds[ii];
+
+    for (int ii = 0; ii <= length; ii++) {
+      int from = dominatedOffsets[ii];
+      int to = dominatedOffsets[ii + 1];
+      if (to - from > 1) {
+        int[] ids = Arrays.copyOfRange(dominated, from, to);
+        long[] sizes = new long[ids.length];
+        for (int jj = 0; jj < ids.length; jj++)
+          sizes[jj] = retainedSizes[indexOf(ids[jj])];
+        ArrayUtils.sortDesc(sizes, ids);
+        System.arraycopy(ids, 0, dominated, from, ids.length);
+      }
+    }
+  }
+
+  /**
+   * Get all objects in scope, i.e. reachable from the start objects.
+   *
+   * @return int[] the sorted object ids, not to be modified
+   */
+  public int[] getObjectIds() {
+    return objectIds;
+  }
+
+  public boolean contains(int objectId) {
+    return Arrays.binarySearch(objectIds, objectId) >= 0;
+  }
+
+  /**
+   * Get the immediate dominator of an object in scope.
+   *
+   * @return int the id of the dominator, -1 if it is the artificial root
+   */
+  public int getImmediateDominatorId(int objectId) {
+    return dominators[indexOf(objectId)];
+  }
+
+  /**
+   * Get the objects directly dominated by the given one, sorted by retained
+   * size (descending).
+   *
+   * @param objectId an object in scope, or -1 for the artificial root
+   */
+  public int[] getImmediateDominatedIds(int objectId) {
+    int index = indexOf(objectId) + 1;
+    return Arrays.copyOfRange(dominated, dominatedOffsets[index], dominatedOffsets[index + 1]);
+  }
+
+  /**
+   * Get the size of the objects in scope which would be garbage collected
+   * together with the given one.
+   */
+  public long getRetainedHeapSize(int objectId) {
+    return retainedSizes[indexOf(objectId)];
+  }
+
+  private int indexOf(int objectId) {
+    if (objectId == -1) return -1;
+
+    int index = Arrays.binarySearch(objectIds, objectId);
+    if (index < 0) throw new IllegalArgumentException(String.valueOf(objectId));
+    return index;
+  }
+}
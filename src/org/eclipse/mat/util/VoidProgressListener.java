@@ -22,7 +22,7 @@ import org.eclipse.mat.hprof.Messages;
  * @see IProgressListener
  */
 public class VoidProgressListener implements IProgressListener {
-  private boolean cancelled = false;
+  private volatile boolean cancelled = false;
 
   /**
    * Does nothing.